@@ -0,0 +1,81 @@
+package com.graylog2.inputs.mongoprofiler.input.mongodb;
+
+import com.graylog2.inputs.mongoprofiler.input.mongodb.parser.RawParser;
+import com.graylog2.inputs.mongoprofiler.input.mongodb.parser.RawProfileDocument;
+import com.mongodb.ServerAddress;
+import org.graylog2.plugin.Message;
+import org.graylog2.plugin.configuration.Configuration;
+import org.graylog2.plugin.journal.RawMessage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Decoding journal messages into Graylog messages, and the whole way from the BSON read from the server to a
+ * message.
+ */
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+public class MongoDBProfilerCodecBenchmark {
+    private static final int BATCH_SIZE = 16;
+
+    @Param({"SMALL_FIND", "DEEP_OR_IN", "LARGE_UPDATE", "AGGREGATE", "MIXED_VERSIONS"})
+    public ProfileCorpus corpus;
+
+    private final RawParser rawParser = new RawParser(new ClusterMember("shard0", new ServerAddress("db1.example.org", 27018)).getMessageFields());
+    private final MongoDBProfilerCodec codec = new MongoDBProfilerCodec(Configuration.EMPTY_CONFIGURATION);
+    private List<byte[]> encoded;
+    private List<RawMessage> messages;
+    private List<RawMessage> batches;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        encoded = corpus.getEncodedDocuments();
+
+        final List<RawProfileDocument> docs = new ArrayList<>();
+        messages = new ArrayList<>();
+        for (byte[] bytes : encoded) {
+            final RawProfileDocument doc = new RawProfileDocument(bytes);
+            docs.add(doc);
+            messages.add(rawParser.parse(doc));
+        }
+
+        batches = new ArrayList<>();
+        for (int i = 0; i + BATCH_SIZE <= docs.size(); i += BATCH_SIZE) {
+            batches.add(rawParser.parse(docs.subList(i, i + BATCH_SIZE)));
+        }
+    }
+
+    @Benchmark
+    public Message decode() {
+        next = (next + 1) % messages.size();
+        return codec.decode(messages.get(next));
+    }
+
+    @Benchmark
+    public Collection<Message> decodeBatch() {
+        next = (next + 1) % batches.size();
+        return codec.decodeMessages(batches.get(next));
+    }
+
+    /**
+     * Encode, decode and parse, from the BSON of a cursor reply to the message.
+     */
+    @Benchmark
+    public Message endToEnd() {
+        next = (next + 1) % encoded.size();
+        return codec.decode(rawParser.parse(new RawProfileDocument(encoded.get(next))));
+    }
+}
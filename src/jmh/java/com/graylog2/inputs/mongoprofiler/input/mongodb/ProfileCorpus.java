@@ -0,0 +1,236 @@
+package com.graylog2.inputs.mongoprofiler.input.mongodb;
+
+import com.google.common.collect.ImmutableList;
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import com.mongodb.DefaultDBEncoder;
+import org.bson.types.ObjectId;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Profile documents as written by different MongoDB versions, for the benchmarks. The documents are generated
+ * with a fixed seed, so every run works on the same data.
+ */
+public enum ProfileCorpus {
+    /**
+     * Small finds by ID or a single field, as written by MongoDB 2.6 to 3.2.
+     */
+    SMALL_FIND {
+        @Override
+        List<DBObject> build(Random random) {
+            final List<DBObject> docs = new ArrayList<>();
+            for (int i = 0; i < SIZE; i++) {
+                final DBObject query = new BasicDBObject("email", "user" + random.nextInt(100000) + "@example.org");
+                final DBObject doc = i % 2 == 0
+                        ? v26("query", "app.users", query, random)
+                        : v32("query", "app.users", new BasicDBObject("find", "users").append("filter", query).append("limit", 1), random);
+                docs.add(doc);
+            }
+            return docs;
+        }
+    },
+    /**
+     * Queries with nested {@code $or} clauses and long {@code $in} lists.
+     */
+    DEEP_OR_IN {
+        @Override
+        List<DBObject> build(Random random) {
+            final List<DBObject> docs = new ArrayList<>();
+            for (int i = 0; i < SIZE; i++) {
+                final BasicDBList or = new BasicDBList();
+                for (int j = 0; j < 10; j++) {
+                    final BasicDBList in = new BasicDBList();
+                    for (int k = 0; k < 50; k++) {
+                        in.add(new ObjectId(new Date(1459468800000L + random.nextInt(1000000)), random.nextInt(0xffffff)));
+                    }
+
+                    final BasicDBList and = new BasicDBList();
+                    and.add(new BasicDBObject("owner", new BasicDBObject("$in", in)));
+                    and.add(new BasicDBObject("state", new BasicDBObject("$nin", ImmutableList.of("deleted", "archived"))));
+                    and.add(new BasicDBObject("updated", new BasicDBObject("$gte", new Date(1459468800000L + random.nextInt(1000000)))));
+                    or.add(new BasicDBObject("$and", and));
+                }
+
+                final DBObject query = new BasicDBObject("$or", or).append("tenant", random.nextInt(100));
+                docs.add(v30("query", "app.documents", query, random));
+            }
+            return docs;
+        }
+    },
+    /**
+     * Updates with large update objects.
+     */
+    LARGE_UPDATE {
+        @Override
+        List<DBObject> build(Random random) {
+            final List<DBObject> docs = new ArrayList<>();
+            for (int i = 0; i < SIZE; i++) {
+                final BasicDBObject set = new BasicDBObject();
+                for (int j = 0; j < 100; j++) {
+                    set.append("attributes.a" + j, random.nextInt(3) == 0 ? random.nextDouble() : "value-" + random.nextLong());
+                }
+                final BasicDBList history = new BasicDBList();
+                for (int j = 0; j < 20; j++) {
+                    history.add(new BasicDBObject("at", new Date(1459468800000L + j)).append("by", "user" + random.nextInt(1000)));
+                }
+
+                final DBObject update = new BasicDBObject("$set", set)
+                        .append("$push", new BasicDBObject("history", new BasicDBObject("$each", history)))
+                        .append("$inc", new BasicDBObject("version", 1));
+                final DBObject doc = v30("update", "app.profiles", new BasicDBObject("_id", new ObjectId()), random)
+                        .append("updateobj", update)
+                        .append("nMatched", 1)
+                        .append("nModified", 1)
+                        .append("keyUpdates", random.nextInt(3));
+                docs.add(doc);
+            }
+            return docs;
+        }
+    },
+    /**
+     * Aggregation commands with several stages.
+     */
+    AGGREGATE {
+        @Override
+        List<DBObject> build(Random random) {
+            final List<DBObject> docs = new ArrayList<>();
+            for (int i = 0; i < SIZE; i++) {
+                final BasicDBList pipeline = new BasicDBList();
+                pipeline.add(new BasicDBObject("$match", new BasicDBObject("customer", random.nextInt(10000))
+                        .append("created", new BasicDBObject("$gte", new Date(1459468800000L)).append("$lt", new Date(1462060800000L)))));
+                pipeline.add(new BasicDBObject("$unwind", "$items"));
+                pipeline.add(new BasicDBObject("$group", new BasicDBObject("_id", "$items.sku")
+                        .append("quantity", new BasicDBObject("$sum", "$items.quantity"))
+                        .append("revenue", new BasicDBObject("$sum", new BasicDBObject("$multiply", ImmutableList.of("$items.quantity", "$items.price"))))));
+                pipeline.add(new BasicDBObject("$sort", new BasicDBObject("revenue", -1)));
+                pipeline.add(new BasicDBObject("$limit", 10));
+
+                final DBObject command = new BasicDBObject("aggregate", "orders")
+                        .append("pipeline", pipeline)
+                        .append("cursor", new BasicDBObject());
+                final BasicDBObject doc = v32("command", "app.$cmd", command, random);
+                // Commands are profiled with the command instead of a query.
+                doc.removeField("query");
+                docs.add(doc.append("command", command));
+            }
+            return docs;
+        }
+    },
+    /**
+     * Entries of all supported MongoDB versions, with their different lock statistics.
+     */
+    MIXED_VERSIONS {
+        @Override
+        List<DBObject> build(Random random) {
+            final List<DBObject> docs = new ArrayList<>();
+            for (int i = 0; i < SIZE; i++) {
+                final DBObject query = new BasicDBObject("status", "open").append("priority", new BasicDBObject("$gt", random.nextInt(5)));
+                switch (i % 4) {
+                    case 0:
+                        docs.add(v24("query", "app.tickets", query, random));
+                        break;
+                    case 1:
+                        docs.add(v26("query", "app.tickets", query, random));
+                        break;
+                    case 2:
+                        docs.add(v30("query", "app.tickets", query, random));
+                        break;
+                    default:
+                        docs.add(v32("query", "app.tickets", new BasicDBObject("find", "tickets").append("filter", query), random));
+                }
+            }
+            return docs;
+        }
+    };
+
+    private static final int SIZE = 64;
+
+    private final List<DBObject> documents = build(new Random(ordinal()));
+
+    abstract List<DBObject> build(Random random);
+
+    public List<DBObject> getDocuments() {
+        return documents;
+    }
+
+    /**
+     * The documents as BSON, like they are received from the server.
+     */
+    public List<byte[]> getEncodedDocuments() {
+        final List<byte[]> encoded = new ArrayList<>(documents.size());
+        for (DBObject doc : documents) {
+            encoded.add(new DefaultDBEncoder().encode(doc));
+        }
+        return encoded;
+    }
+
+    private static BasicDBObject base(String op, String ns, DBObject query, Random random) {
+        return new BasicDBObject("op", op)
+                .append("ns", ns)
+                .append("query", query)
+                .append("ntoreturn", 0)
+                .append("ntoskip", 0)
+                .append("nreturned", random.nextInt(100))
+                .append("responseLength", random.nextInt(100000))
+                .append("millis", random.nextInt(500))
+                .append("ts", new Date(1459468800000L + random.nextInt(86400000)))
+                .append("client", "10.0.0." + random.nextInt(255))
+                .append("allUsers", new BasicDBList())
+                .append("user", "");
+    }
+
+    private static DBObject timeMicros(Random random) {
+        return new BasicDBObject("r", (long) random.nextInt(1000)).append("w", (long) random.nextInt(1000));
+    }
+
+    // 2.4 has global lock times only.
+    private static BasicDBObject v24(String op, String ns, DBObject query, Random random) {
+        return base(op, ns, query, random)
+                .append("nscanned", random.nextInt(10000))
+                .append("numYield", random.nextInt(10))
+                .append("lockStats", new BasicDBObject("timeLockedMicros", timeMicros(random))
+                        .append("timeAcquiringMicros", timeMicros(random)));
+    }
+
+    private static BasicDBObject v26(String op, String ns, DBObject query, Random random) {
+        return v24(op, ns, query, random)
+                .append("nscannedObjects", random.nextInt(10000))
+                .append("keyUpdates", 0)
+                .append("execStats", new BasicDBObject("type", "COLLSCAN").append("works", random.nextInt(10000)));
+    }
+
+    // 3.0 replaced the lock statistics with counts per lock type.
+    private static BasicDBObject v30(String op, String ns, DBObject query, Random random) {
+        final DBObject acquireCount = new BasicDBObject("r", (long) random.nextInt(100));
+        return base(op, ns, query, random)
+                .append("nscanned", random.nextInt(10000))
+                .append("nscannedObjects", random.nextInt(10000))
+                .append("numYield", random.nextInt(10))
+                .append("locks", new BasicDBObject("Global", new BasicDBObject("acquireCount", acquireCount))
+                        .append("MMAPV1Journal", new BasicDBObject("acquireCount", acquireCount))
+                        .append("Database", new BasicDBObject("acquireCount", acquireCount))
+                        .append("Collection", new BasicDBObject("acquireCount", acquireCount)))
+                .append("execStats", new BasicDBObject("stage", "FETCH")
+                        .append("inputStage", new BasicDBObject("stage", "IXSCAN").append("keysExamined", random.nextInt(10000))));
+    }
+
+    // 3.2 renamed the scan counters.
+    private static BasicDBObject v32(String op, String ns, DBObject query, Random random) {
+        final DBObject acquireCount = new BasicDBObject("r", (long) random.nextInt(100));
+        return base(op, ns, query, random)
+                .append("keysExamined", random.nextInt(10000))
+                .append("docsExamined", random.nextInt(10000))
+                .append("cursorExhausted", true)
+                .append("numYield", random.nextInt(10))
+                .append("locks", new BasicDBObject("Global", new BasicDBObject("acquireCount", acquireCount))
+                        .append("Database", new BasicDBObject("acquireCount", acquireCount))
+                        .append("Collection", new BasicDBObject("acquireCount", acquireCount)))
+                .append("protocol", "op_command")
+                .append("planSummary", "IXSCAN { email: 1 }");
+    }
+}
@@ -0,0 +1,297 @@
+package com.graylog2.inputs.mongoprofiler.input.mongodb;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.base.Splitter;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.graylog2.inputs.mongoprofiler.input.MongoDBProfilerInput;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.graylog2.plugin.LocalMetricRegistry;
+import org.graylog2.plugin.Message;
+import org.graylog2.plugin.ServerStatus;
+import org.graylog2.plugin.buffers.InputBuffer;
+import org.graylog2.plugin.configuration.Configuration;
+import org.graylog2.plugin.inputs.MessageInput;
+import org.graylog2.plugin.inputs.transports.Transport;
+import org.graylog2.plugin.journal.RawMessage;
+import org.graylog2.plugin.system.NodeId;
+
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Pushes synthetic profile entries through subscribers, the pipeline, the input and the codec for a while and
+ * reports the sustained throughput, the lag and the heap usage. Run it with
+ * <pre>
+ * mvn -P jmh test-compile exec:exec -Djmh.main=com.graylog2.inputs.mongoprofiler.input.mongodb.SoakHarness \
+ *     -Djmh.args="duration=600 rate=20000 output=soak.properties"
+ * </pre>
+ *
+ * All options are given as {@code key=value}:
+ * <dl>
+ * <dt>duration</dt><dd>seconds to run, default 300</dd>
+ * <dt>rate</dt><dd>entries written per second over all databases, 0 for as fast as possible, default 10000</dd>
+ * <dt>databases</dt><dd>number of databases tailed, default 4</dd>
+ * <dt>corpus</dt><dd>comma separated {@link ProfileCorpus} names, default all</dd>
+ * <dt>batch_size, entries_per_message, buffer_size, processors, workers</dt><dd>the input settings</dd>
+ * <dt>report</dt><dd>seconds between reports, default 10</dd>
+ * <dt>output</dt><dd>file to write the results to</dd>
+ * <dt>baseline</dt><dd>results of an earlier run to compare to, the run fails if it did worse</dd>
+ * <dt>tolerance</dt><dd>how much worse than the baseline is still fine, default 0.1</dd>
+ * </dl>
+ */
+public class SoakHarness {
+    private static final String RESULT_RATE = "messagesPerSecond";
+    private static final String RESULT_LAG_P99 = "lagP99Millis";
+    private static final String RESULT_LIVE_HEAP = "liveHeapBytes";
+
+    private final Map<String, String> options;
+    private final LocalMetricRegistry metricRegistry = new LocalMetricRegistry();
+    private final Meter messages = metricRegistry.meter("soak.messages");
+    // Time from an entry being written to its message being decoded.
+    private final Recorder lag = new Recorder(TimeUnit.MINUTES.toMillis(10), 3);
+    private final Histogram totalLag = new Histogram(TimeUnit.MINUTES.toMillis(10), 3);
+
+    private SoakHarness(Map<String, String> options) {
+        this.options = options;
+    }
+
+    public static void main(String[] args) throws Exception {
+        final Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            final List<String> option = Splitter.on('=').limit(2).splitToList(arg);
+            if (option.size() != 2) {
+                throw new IllegalArgumentException("Options must be given as key=value: " + arg);
+            }
+            options.put(option.get(0), option.get(1));
+        }
+
+        new SoakHarness(options).run();
+    }
+
+    private void run() throws Exception {
+        final long duration = TimeUnit.SECONDS.toNanos(longOption("duration", 300));
+        final long report = TimeUnit.SECONDS.toNanos(longOption("report", 10));
+        final int databases = (int) longOption("databases", 4);
+        final double rate = longOption("rate", 10000);
+        final List<ProfileCorpus> corpora = new ArrayList<>();
+        for (String name : Splitter.on(',').trimResults().omitEmptyStrings().split(options.getOrDefault("corpus", ""))) {
+            corpora.add(ProfileCorpus.valueOf(name));
+        }
+        if (corpora.isEmpty()) {
+            for (ProfileCorpus corpus : ProfileCorpus.values()) {
+                corpora.add(corpus);
+            }
+        }
+
+        final MongoDBProfilerCodec codec = new MongoDBProfilerCodec(Configuration.EMPTY_CONFIGURATION);
+        final MessageInput input = launchInput(codec);
+        CodecMetrics.register(input.getId(), metricRegistry, MetricRegistry.name(input.getUniqueReadableId(), "codec"));
+
+        final ScheduledExecutorService executor = Executors.newScheduledThreadPool((int) longOption("workers", 2),
+                new ThreadFactoryBuilder().setNameFormat("soak-reader-%d").build());
+        final ProfilePipeline pipeline = new ProfilePipeline(input, metricRegistry,
+                (int) longOption("buffer_size", 1024), (int) longOption("processors", 2),
+                (int) longOption("entries_per_message", 1),
+                new ThreadFactoryBuilder().setNameFormat("soak-processor-%d").build());
+        final TailingContext context = new TailingContext(input, metricRegistry, executor, pipeline, () -> false)
+                .setBatchSize((int) longOption("batch_size", 100))
+                .setMaxBatchLatencyMillis(100);
+
+        final List<ProfileSubscriber> subscribers = new ArrayList<>();
+        for (int i = 0; i < databases; i++) {
+            final ProfileSource source = new SyntheticProfileSource("soak" + i, corpora, rate / databases);
+            final ProfileSubscriber subscriber = new ProfileSubscriber(source, null, context);
+            subscribers.add(subscriber);
+            subscriber.start();
+        }
+
+        System.out.printf(Locale.ENGLISH, "Running for %ds at %s entries/s over %d databases with %s.%n",
+                TimeUnit.NANOSECONDS.toSeconds(duration), rate > 0 ? String.valueOf((long) rate) : "unlimited", databases, corpora);
+
+        final long start = System.nanoTime();
+        long lastReport = start;
+        long lastCount = 0L;
+        long firstLiveHeap = -1L;
+        while (System.nanoTime() - start < duration) {
+            Thread.sleep(TimeUnit.NANOSECONDS.toMillis(report));
+
+            final long now = System.nanoTime();
+            final long count = messages.getCount();
+            final double intervalRate = (count - lastCount) / ((now - lastReport) / 1e9);
+            final Histogram intervalLag = lag.getIntervalHistogram();
+            totalLag.add(intervalLag);
+            final long liveHeap = liveHeap();
+            if (firstLiveHeap < 0) {
+                // The first interval includes the warm up.
+                firstLiveHeap = liveHeap;
+            }
+
+            System.out.printf(Locale.ENGLISH,
+                    "%5ds %10.0f msg/s  lag p50 %6dms p99 %6dms max %6dms  reader lag %6dms  heap %5dMB live %5dMB%n",
+                    TimeUnit.NANOSECONDS.toSeconds(now - start), intervalRate,
+                    intervalLag.getValueAtPercentile(50), intervalLag.getValueAtPercentile(99), intervalLag.getMaxValue(),
+                    maxReaderLag(), usedHeap() >> 20, liveHeap >> 20);
+
+            lastReport = now;
+            lastCount = count;
+        }
+
+        for (ProfileSubscriber subscriber : subscribers) {
+            subscriber.terminate();
+        }
+        executor.shutdown();
+        executor.awaitTermination(10, TimeUnit.SECONDS);
+        pipeline.shutdown(10, TimeUnit.SECONDS);
+        CodecMetrics.release(input.getId());
+
+        final double elapsed = (System.nanoTime() - start) / 1e9;
+        final Properties results = new Properties();
+        results.setProperty(RESULT_RATE, String.valueOf((long) (messages.getCount() / elapsed)));
+        results.setProperty(RESULT_LAG_P99, String.valueOf(totalLag.getValueAtPercentile(99)));
+        results.setProperty(RESULT_LIVE_HEAP, String.valueOf(liveHeap()));
+        System.out.printf(Locale.ENGLISH, "%d messages in %.0fs: %s msg/s, lag p99 %sms, live heap %dMB (%dMB after the first interval).%n",
+                messages.getCount(), elapsed, results.getProperty(RESULT_RATE), results.getProperty(RESULT_LAG_P99),
+                liveHeap() >> 20, firstLiveHeap >> 20);
+
+        final String output = options.get("output");
+        if (output != null) {
+            try (OutputStream out = new FileOutputStream(output)) {
+                results.store(out, "Soak test results");
+            }
+        }
+
+        final List<String> regressions = new ArrayList<>();
+        if (rate > 0 && Long.parseLong(results.getProperty(RESULT_RATE)) < rate * 0.95) {
+            regressions.add("Could not keep up with " + (long) rate + " entries/s.");
+        }
+        final String baseline = options.get("baseline");
+        if (baseline != null) {
+            regressions.addAll(compare(load(baseline), results, Double.parseDouble(options.getOrDefault("tolerance", "0.1"))));
+        }
+        if (!regressions.isEmpty()) {
+            throw new IllegalStateException("Regressions: " + String.join(" ", regressions));
+        }
+    }
+
+    private MessageInput launchInput(MongoDBProfilerCodec codec) throws Exception {
+        final NodeId nodeId = mock(NodeId.class);
+        when(nodeId.toString()).thenReturn("soak-node");
+        final ServerStatus serverStatus = mock(ServerStatus.class);
+        when(serverStatus.getNodeId()).thenReturn(nodeId);
+
+        final MessageInput input = new MessageInput(new MetricRegistry(), Configuration.EMPTY_CONFIGURATION,
+                mock(Transport.class), metricRegistry, codec, new MessageInput.Config(new MongoDBProfilerTransport.Config(), new MongoDBProfilerCodec.Config()) {
+                },
+                new MongoDBProfilerInput.Descriptor(), serverStatus) {
+        };
+        input.setPersistId("soak");
+        input.initialize();
+        input.launch(new InputBuffer() {
+            @Override
+            public void insert(RawMessage rawMessage) {
+                decode(codec, rawMessage);
+            }
+
+            @Override
+            public long getUsage() {
+                return 0L;
+            }
+        });
+
+        return input;
+    }
+
+    private void decode(MongoDBProfilerCodec codec, RawMessage rawMessage) {
+        final Collection<Message> decoded = codec.decodeMessages(rawMessage);
+        if (decoded == null) {
+            return;
+        }
+
+        final long now = System.currentTimeMillis();
+        for (Message message : decoded) {
+            lag.recordValue(Math.max(0L, Math.min(now - message.getTimestamp().getMillis(), TimeUnit.MINUTES.toMillis(10))));
+        }
+        messages.mark(decoded.size());
+    }
+
+    private long maxReaderLag() {
+        long max = 0L;
+        for (Map.Entry<String, Gauge> gauge : metricRegistry.getGauges((name, metric) -> name.endsWith(".lagMillis")).entrySet()) {
+            max = Math.max(max, ((Number) gauge.getValue().getValue()).longValue());
+        }
+        return max;
+    }
+
+    private static long usedHeap() {
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    /**
+     * The heap still used after the last collections, which only grows if something leaks.
+     */
+    private static long liveHeap() {
+        long live = 0L;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            final MemoryUsage usage = pool.getCollectionUsage();
+            if (pool.getType() == MemoryType.HEAP && usage != null) {
+                live += usage.getUsed();
+            }
+        }
+        return live;
+    }
+
+    private static List<String> compare(Properties baseline, Properties results, double tolerance) {
+        final List<String> regressions = new ArrayList<>();
+        final long baselineRate = Long.parseLong(baseline.getProperty(RESULT_RATE, "0"));
+        final long rate = Long.parseLong(results.getProperty(RESULT_RATE));
+        if (rate < baselineRate * (1.0 - tolerance)) {
+            regressions.add("Throughput dropped from " + baselineRate + " to " + rate + " msg/s.");
+        }
+
+        for (String key : new String[]{RESULT_LAG_P99, RESULT_LIVE_HEAP}) {
+            final long before = Long.parseLong(baseline.getProperty(key, String.valueOf(Long.MAX_VALUE)));
+            final long after = Long.parseLong(results.getProperty(key));
+            if (after > before * (1.0 + tolerance)) {
+                regressions.add(key + " grew from " + before + " to " + after + ".");
+            }
+        }
+
+        return regressions;
+    }
+
+    private static Properties load(String file) throws IOException {
+        final Properties properties = new Properties();
+        try (InputStream in = new FileInputStream(file)) {
+            properties.load(in);
+        }
+        return properties;
+    }
+
+    private long longOption(String key, long defaultValue) {
+        final String value = options.get(key);
+        return value == null ? defaultValue : Long.parseLong(value);
+    }
+}
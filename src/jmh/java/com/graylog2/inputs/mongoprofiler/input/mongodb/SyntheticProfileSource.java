@@ -0,0 +1,105 @@
+package com.graylog2.inputs.mongoprofiler.input.mongodb;
+
+import com.google.common.util.concurrent.RateLimiter;
+import com.graylog2.inputs.mongoprofiler.input.mongodb.parser.RawProfileDocument;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import com.mongodb.DefaultDBEncoder;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.function.IntConsumer;
+
+/**
+ * Generates profile entries from the {@link ProfileCorpus} as if they were written right when they are read,
+ * at a fixed rate. There are no existing entries to backfill.
+ */
+public class SyntheticProfileSource implements ProfileSource {
+    private final String database;
+    private final List<DBObject> docs;
+    @Nullable
+    private final RateLimiter rateLimiter;
+
+    /**
+     * @param entriesPerSecond the rate entries are written at, 0 for as fast as they are read
+     */
+    public SyntheticProfileSource(String database, List<ProfileCorpus> corpora, double entriesPerSecond) {
+        this.database = database;
+        this.docs = new ArrayList<>();
+        for (ProfileCorpus corpus : corpora) {
+            for (DBObject doc : corpus.getDocuments()) {
+                // Move the entries to this database.
+                final String ns = String.valueOf(doc.get("ns"));
+                final BasicDBObject copy = new BasicDBObject(doc.toMap());
+                copy.put("ns", database + ns.substring(ns.indexOf('.')));
+                docs.add(copy);
+            }
+        }
+        this.rateLimiter = entriesPerSecond > 0 ? RateLimiter.create(entriesPerSecond) : null;
+    }
+
+    @Override
+    public String getDatabase() {
+        return database;
+    }
+
+    @Override
+    public boolean isReady() {
+        return true;
+    }
+
+    @Override
+    public Cursor tail(@Nullable Date from, int batchSize, IntConsumer onRead) {
+        return new Cursor() {
+            private final DefaultDBEncoder encoder = new DefaultDBEncoder();
+            private int next;
+
+            @Nullable
+            @Override
+            public RawProfileDocument tryNext() {
+                if (rateLimiter != null && !rateLimiter.tryAcquire()) {
+                    return null;
+                }
+
+                final BasicDBObject doc = new BasicDBObject(docs.get(next).toMap());
+                next = (next + 1) % docs.size();
+                doc.put("ts", new Date());
+
+                final byte[] bytes = encoder.encode(doc);
+                onRead.accept(bytes.length);
+                return new RawProfileDocument(bytes);
+            }
+
+            @Override
+            public boolean isExhausted() {
+                return false;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+
+    @Override
+    public Cursor read(@Nullable Date from, int batchSize, IntConsumer onRead) {
+        return new Cursor() {
+            @Nullable
+            @Override
+            public RawProfileDocument tryNext() {
+                return null;
+            }
+
+            @Override
+            public boolean isExhausted() {
+                return true;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+}
@@ -0,0 +1,54 @@
+package com.graylog2.inputs.mongoprofiler.input.mongodb.normalizer;
+
+import com.graylog2.inputs.mongoprofiler.input.mongodb.ProfileCorpus;
+import com.mongodb.DBObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Normalizing and hashing the queries, commands and update objects of profile entries.
+ */
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+public class NormalizerBenchmark {
+    @Param({"SMALL_FIND", "DEEP_OR_IN", "LARGE_UPDATE", "AGGREGATE", "MIXED_VERSIONS"})
+    public ProfileCorpus corpus;
+
+    @Param({"MD5", "MURMUR3_128", "SIPHASH_2_4"})
+    public FingerprintAlgorithm algorithm;
+
+    @Param({"COLLAPSE", "LEGACY"})
+    public ArrayNormalization arrays;
+
+    private List<DBObject> objects;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        objects = new ArrayList<>();
+        for (DBObject doc : corpus.getDocuments()) {
+            for (String key : new String[]{"query", "command", "updateobj"}) {
+                if (doc.get(key) instanceof DBObject) {
+                    objects.add((DBObject) doc.get(key));
+                }
+            }
+        }
+    }
+
+    @Benchmark
+    public Normalizer normalize() {
+        next = (next + 1) % objects.size();
+        return new Normalizer(objects.get(next), "app", "collection", algorithm, arrays);
+    }
+}
@@ -0,0 +1,53 @@
+package com.graylog2.inputs.mongoprofiler.input.mongodb.parser;
+
+import com.graylog2.inputs.mongoprofiler.input.mongodb.ProfileCorpus;
+import com.graylog2.inputs.mongoprofiler.input.mongodb.normalizer.FingerprintAlgorithm;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.DefaultDBDecoder;
+import org.graylog2.plugin.Message;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Building messages from profile entries, as decoded by the codec.
+ */
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+public class ParserBenchmark {
+    @Param({"SMALL_FIND", "DEEP_OR_IN", "LARGE_UPDATE", "AGGREGATE", "MIXED_VERSIONS"})
+    public ProfileCorpus corpus;
+
+    @Param({"MD5", "MURMUR3_128"})
+    public FingerprintAlgorithm algorithm;
+
+    private Parser parser;
+    private List<DBObject> docs;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        parser = new Parser(algorithm);
+        docs = new ArrayList<>();
+        for (byte[] bytes : corpus.getEncodedDocuments()) {
+            docs.add(new DefaultDBDecoder().decode(bytes, (DBCollection) null));
+        }
+    }
+
+    @Benchmark
+    public Message parse() throws Parser.UnparsableException {
+        next = (next + 1) % docs.size();
+        return parser.parse(docs.get(next));
+    }
+}
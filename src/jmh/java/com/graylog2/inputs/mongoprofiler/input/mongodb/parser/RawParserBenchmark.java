@@ -0,0 +1,53 @@
+package com.graylog2.inputs.mongoprofiler.input.mongodb.parser;
+
+import com.graylog2.inputs.mongoprofiler.input.mongodb.ProfileCorpus;
+import org.graylog2.plugin.journal.RawMessage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Serializing profile entries read from the server into journal messages.
+ */
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+public class RawParserBenchmark {
+    private static final int BATCH_SIZE = 16;
+
+    @Param({"SMALL_FIND", "DEEP_OR_IN", "LARGE_UPDATE", "AGGREGATE", "MIXED_VERSIONS"})
+    public ProfileCorpus corpus;
+
+    private final RawParser rawParser = new RawParser();
+    private List<RawProfileDocument> docs;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        docs = new ArrayList<>();
+        for (byte[] bytes : corpus.getEncodedDocuments()) {
+            docs.add(new RawProfileDocument(bytes));
+        }
+    }
+
+    @Benchmark
+    public RawMessage parse() {
+        next = (next + 1) % docs.size();
+        return rawParser.parse(docs.get(next));
+    }
+
+    @Benchmark
+    public RawMessage parseBatch() {
+        next = (next + BATCH_SIZE) % (docs.size() - BATCH_SIZE);
+        return rawParser.parse(docs.subList(next, next + BATCH_SIZE));
+    }
+}
@@ -0,0 +1,35 @@
+package com.graylog2.inputs.mongoprofiler.input.mongodb;
+
+import com.google.common.util.concurrent.RateLimiter;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Limits for reading the existing contents of a profiler collection before tailing it.
+ *
+ * One instance is shared by all subscribers of an input, so the throughput cap applies to the input as a whole.
+ */
+public class Backfill {
+    private final int batchSize;
+    private final RateLimiter rateLimiter;
+
+    /**
+     * @param maxEntriesPerSecond the throughput cap, 0 for none
+     */
+    public Backfill(int batchSize, int maxEntriesPerSecond) {
+        checkArgument(batchSize > 0, "The backfill batch size must be positive.");
+        this.batchSize = batchSize;
+        this.rateLimiter = maxEntriesPerSecond > 0 ? RateLimiter.create(maxEntriesPerSecond) : null;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Returns whether the next batch may be read now. Never blocks, the caller should retry later otherwise.
+     */
+    public boolean tryAcquireBatch() {
+        return rateLimiter == null || rateLimiter.tryAcquire(batchSize);
+    }
+}
@@ -0,0 +1,89 @@
+package com.graylog2.inputs.mongoprofiler.input.mongodb;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Streams the entries of a BSON dump file. Tailing keeps checking the end of the file for entries appended to it.
+ */
+public class BsonDumpProfileSource extends FileProfileSource {
+    private static final int BUFFER_SIZE = 1024 * 1024;
+
+    public BsonDumpProfileSource(Path file, ProfileFilter filter) {
+        super(file, filter);
+    }
+
+    @Override
+    protected Reader openReader(Path file) throws IOException {
+        final FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+
+        return new Reader() {
+            private ByteBuffer buffer = emptyBuffer(BUFFER_SIZE);
+            // File offset of the buffer's position.
+            private long offset;
+
+            @Nullable
+            @Override
+            public byte[] next() throws IOException {
+                if (!fill(4)) {
+                    return null;
+                }
+
+                final int size = buffer.getInt(buffer.position());
+                checkSize(size, offset, file);
+                if (!fill(size)) {
+                    // Not written completely yet.
+                    return null;
+                }
+
+                final byte[] doc = new byte[size];
+                buffer.get(doc);
+                offset += size;
+                return doc;
+            }
+
+            /**
+             * Reads until at least {@code size} bytes are buffered or the end of the file is reached.
+             */
+            private boolean fill(int size) throws IOException {
+                if (buffer.remaining() >= size) {
+                    return true;
+                }
+
+                if (buffer.capacity() < size) {
+                    final ByteBuffer larger = emptyBuffer(Math.max(size, buffer.capacity() * 2));
+                    larger.limit(buffer.remaining());
+                    larger.put(buffer).flip();
+                    buffer = larger;
+                }
+
+                buffer.compact();
+                try {
+                    while (buffer.position() < size && channel.read(buffer) > 0) {
+                        // Keep reading.
+                    }
+                } finally {
+                    buffer.flip();
+                }
+
+                return buffer.remaining() >= size;
+            }
+
+            @Override
+            public void close() throws IOException {
+                channel.close();
+            }
+        };
+    }
+
+    private static ByteBuffer emptyBuffer(int capacity) {
+        final ByteBuffer buffer = ByteBuffer.allocate(capacity).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.flip();
+        return buffer;
+    }
+}
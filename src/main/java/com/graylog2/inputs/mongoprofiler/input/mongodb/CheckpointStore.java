@@ -0,0 +1,145 @@
+package com.graylog2.inputs.mongoprofiler.input.mongodb;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Keeps the position of every tailed profiler collection of an input in a local file, so that tailing
+ * resumes where it stopped after a restart.
+ *
+ * Checkpoints are updated in memory and written to disk by calling {@link #flush()} periodically.
+ */
+public class CheckpointStore {
+    private static final Logger LOG = LoggerFactory.getLogger(CheckpointStore.class);
+
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+    private static final TypeReference<Map<String, Checkpoint>> CHECKPOINTS_TYPE = new TypeReference<Map<String, Checkpoint>>() {
+    };
+
+    private final Path file;
+    private final ConcurrentMap<String, Checkpoint> checkpoints = new ConcurrentHashMap<>();
+    private final AtomicBoolean dirty = new AtomicBoolean(false);
+
+    private CheckpointStore(Path file) {
+        this.file = file;
+    }
+
+    /**
+     * Opens the store kept in {@code file}. A missing or unreadable file results in an empty store.
+     */
+    public static CheckpointStore open(Path file) {
+        final CheckpointStore store = new CheckpointStore(file);
+        if (Files.exists(file)) {
+            try {
+                store.checkpoints.putAll(OBJECT_MAPPER.readValue(file.toFile(), CHECKPOINTS_TYPE));
+            } catch (IOException e) {
+                LOG.warn("Could not read MongoDB profiler checkpoints from " + file + ". Starting without checkpoints.", e);
+            }
+        }
+
+        return store;
+    }
+
+    @Nullable
+    public Checkpoint get(String key) {
+        return checkpoints.get(key);
+    }
+
+    public void update(String key, Checkpoint checkpoint) {
+        if (!checkpoint.equals(checkpoints.put(key, checkpoint))) {
+            dirty.set(true);
+        }
+    }
+
+    /**
+     * Writes the checkpoints to disk if they changed since the last flush. The file is replaced atomically.
+     */
+    public synchronized void flush() throws IOException {
+        if (!dirty.getAndSet(false)) {
+            return;
+        }
+
+        try {
+            final Path parent = file.toAbsolutePath().getParent();
+            Files.createDirectories(parent);
+
+            final Path tmp = Files.createTempFile(parent, file.getFileName().toString(), ".tmp");
+            OBJECT_MAPPER.writeValue(tmp.toFile(), new TreeMap<>(checkpoints));
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            dirty.set(true);
+            throw e;
+        }
+    }
+
+    public void flushQuietly() {
+        try {
+            flush();
+        } catch (Exception e) {
+            LOG.error("Could not write MongoDB profiler checkpoints to " + file + ".", e);
+        }
+    }
+
+    /**
+     * The timestamp of the last processed profile entry, and how many entries with exactly this timestamp
+     * have been processed. Profile timestamps have millisecond precision, so ties are common under load.
+     */
+    public static class Checkpoint {
+        private final long timestamp;
+        private final int count;
+
+        @JsonCreator
+        public Checkpoint(@JsonProperty("timestamp") long timestamp, @JsonProperty("count") int count) {
+            this.timestamp = timestamp;
+            this.count = count;
+        }
+
+        @JsonProperty
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        @JsonProperty
+        public int getCount() {
+            return count;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+
+            final Checkpoint that = (Checkpoint) o;
+            return timestamp == that.timestamp && count == that.count;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * Long.hashCode(timestamp) + count;
+        }
+
+        @Override
+        public String toString() {
+            return timestamp + "#" + count;
+        }
+    }
+}
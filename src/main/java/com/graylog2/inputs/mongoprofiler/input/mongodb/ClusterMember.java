@@ -0,0 +1,88 @@
+package com.graylog2.inputs.mongoprofiler.input.mongodb;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import com.mongodb.ServerAddress;
+
+import javax.annotation.Nullable;
+import java.util.Objects;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * A single mongod whose profiler collections are tailed over a direct connection.
+ */
+public class ClusterMember {
+    public static final String FIELD_HOST = "host";
+    public static final String FIELD_SHARD = "shard";
+
+    private final String shard;
+    private final ServerAddress address;
+
+    public ClusterMember(@Nullable String shard, ServerAddress address) {
+        this.shard = shard;
+        this.address = requireNonNull(address);
+    }
+
+    @Nullable
+    public String getShard() {
+        return shard;
+    }
+
+    public ServerAddress getAddress() {
+        return address;
+    }
+
+    public String getHost() {
+        return address.getHost() + ":" + address.getPort();
+    }
+
+    /**
+     * Fields identifying this member, added to every message read from it.
+     */
+    public DBObject getMessageFields() {
+        final DBObject fields = new BasicDBObject(FIELD_HOST, getHost());
+        if (shard != null) {
+            fields.put(FIELD_SHARD, shard);
+        }
+
+        return fields;
+    }
+
+    /**
+     * A name for this member that can be used as a single metric name component.
+     */
+    public String getMetricName() {
+        return metricName(shard, getHost());
+    }
+
+    /**
+     * The metric name of the member with the given message fields.
+     */
+    public static String metricName(@Nullable String shard, String host) {
+        return (shard == null ? host : shard + "_" + host).replaceAll("[.:]", "_");
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+
+        final ClusterMember that = (ClusterMember) o;
+        return Objects.equals(shard, that.shard) && address.equals(that.address);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(shard, address);
+    }
+
+    @Override
+    public String toString() {
+        return shard == null ? getHost() : shard + "/" + getHost();
+    }
+}
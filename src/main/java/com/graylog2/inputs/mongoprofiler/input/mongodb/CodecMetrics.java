@@ -0,0 +1,95 @@
+package com.graylog2.inputs.mongoprofiler.input.mongodb;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+
+import javax.annotation.Nullable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+/**
+ * Metrics of the codecs decoding the messages of an input, kept in the input's metric registry.
+ *
+ * Codecs are created for every single message, so the metrics are registered by the transport when the input
+ * is launched and looked up by the codecs by input ID, like the {@link com.graylog2.inputs.mongoprofiler.input.mongodb.normalizer.FingerprintCache}.
+ */
+public class CodecMetrics {
+    public static final String ERROR_DESERIALIZE = "deserialize";
+    public static final String ERROR_UNPARSABLE = "unparsable";
+
+    private static final ConcurrentMap<String, CodecMetrics> METRICS = new ConcurrentHashMap<>();
+
+    private final MetricRegistry metricRegistry;
+    private final String metricName;
+    private final ConcurrentMap<String, Source> sources = new ConcurrentHashMap<>();
+
+    private CodecMetrics(MetricRegistry metricRegistry, String metricName) {
+        this.metricRegistry = metricRegistry;
+        this.metricName = metricName;
+    }
+
+    public static CodecMetrics register(String inputId, MetricRegistry metricRegistry, String metricName) {
+        final CodecMetrics metrics = new CodecMetrics(metricRegistry, metricName);
+        METRICS.put(inputId, metrics);
+
+        return metrics;
+    }
+
+    /**
+     * Returns the metrics of a running input, {@code null} if the input isn't running on this node.
+     */
+    @Nullable
+    public static CodecMetrics forInput(@Nullable String inputId) {
+        return inputId == null ? null : METRICS.get(inputId);
+    }
+
+    public static void release(String inputId) {
+        final CodecMetrics metrics = METRICS.remove(inputId);
+        if (metrics != null) {
+            metrics.metricRegistry.removeMatching((name, metric) -> name.startsWith(metrics.metricName + "."));
+        }
+    }
+
+    public Meter errors(String cause) {
+        return metricRegistry.meter(name(metricName, "errors", cause));
+    }
+
+    /**
+     * The timers of the messages read from a database, on a member if the member is known.
+     */
+    public Source forSource(@Nullable String member, @Nullable String database) {
+        final String db = database == null ? "unknown" : database;
+        final String sourceName = member == null
+                ? name(metricName, "databases", db)
+                : name(metricName, "members", member, "databases", db);
+
+        return sources.computeIfAbsent(sourceName, Source::new);
+    }
+
+    public class Source {
+        private final Timer deserializeTime;
+        private final Timer parseTime;
+        private final Timer normalizeTime;
+
+        private Source(String sourceName) {
+            this.deserializeTime = metricRegistry.timer(name(sourceName, "deserializeTime"));
+            this.parseTime = metricRegistry.timer(name(sourceName, "parseTime"));
+            this.normalizeTime = metricRegistry.timer(name(sourceName, "normalizeTime"));
+        }
+
+        public Timer getDeserializeTime() {
+            return deserializeTime;
+        }
+
+        public Timer getParseTime() {
+            return parseTime;
+        }
+
+        public Timer getNormalizeTime() {
+            return normalizeTime;
+        }
+    }
+}
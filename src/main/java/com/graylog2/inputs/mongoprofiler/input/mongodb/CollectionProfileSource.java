@@ -0,0 +1,119 @@
+package com.graylog2.inputs.mongoprofiler.input.mongodb;
+
+import com.graylog2.inputs.mongoprofiler.input.mongodb.parser.RawProfileDocument;
+import com.mongodb.BasicDBObject;
+import com.mongodb.Bytes;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.MongoClient;
+import com.mongodb.QueryBuilder;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.util.Date;
+import java.util.function.IntConsumer;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Reads the "system.profile" collection of a database, tailing it with a tailable cursor.
+ */
+public class CollectionProfileSource implements ProfileSource {
+    private static final Logger LOG = LoggerFactory.getLogger(CollectionProfileSource.class);
+
+    private final DB db;
+    private final DBCollection profile;
+    private final ProfileFilter filter;
+
+    public CollectionProfileSource(MongoClient mongoClient, String dbName, ProfileFilter filter) {
+        this.db = mongoClient.getDB(dbName);
+
+        checkArgument(db.collectionExists("system.profile"), "The \"system.profile\" collection doesn't exist in database \"%s\". Please enable profiling for database \"%s\"", dbName, dbName);
+        this.profile = db.getCollection("system.profile");
+        this.filter = filter;
+    }
+
+    @Override
+    public String getDatabase() {
+        return db.getName();
+    }
+
+    @Override
+    public boolean isReady() {
+        // The collection is capped after profiling is turned on.
+        if (!profile.isCapped()) {
+            LOG.warn("Profiler collection is not capped. Please enable profiling for database [{}]", db.getName());
+            return false;
+        }
+
+        return true;
+    }
+
+    @Override
+    public Cursor tail(@Nullable Date from, int batchSize, IntConsumer onRead) {
+        final QueryBuilder query = QueryBuilder.start("ts");
+        if (from == null) {
+            query.greaterThan(DateTime.now(DateTimeZone.UTC).toDate());
+        } else {
+            query.greaterThanEquals(from);
+        }
+
+        final DBCursor cursor = find(filter.apply(query, db.getName()).get(), batchSize, onRead)
+                .addOption(Bytes.QUERYOPTION_TAILABLE);
+
+        return new Cursor() {
+            @Nullable
+            @Override
+            public RawProfileDocument tryNext() {
+                return (RawProfileDocument) cursor.tryNext();
+            }
+
+            @Override
+            public boolean isExhausted() {
+                // The server gave up on the cursor, e.g. because nothing matched when it was created.
+                return cursor.getCursorId() == 0;
+            }
+
+            @Override
+            public void close() {
+                cursor.close();
+            }
+        };
+    }
+
+    @Override
+    public Cursor read(@Nullable Date from, int batchSize, IntConsumer onRead) {
+        final QueryBuilder query = from == null ? QueryBuilder.start() : QueryBuilder.start("ts").greaterThanEquals(from);
+        final DBCursor cursor = find(filter.apply(query, db.getName()).get(), batchSize, onRead);
+
+        return new Cursor() {
+            @Nullable
+            @Override
+            public RawProfileDocument tryNext() {
+                return cursor.hasNext() ? (RawProfileDocument) cursor.next() : null;
+            }
+
+            @Override
+            public boolean isExhausted() {
+                return !cursor.hasNext();
+            }
+
+            @Override
+            public void close() {
+                cursor.close();
+            }
+        };
+    }
+
+    private DBCursor find(DBObject query, int batchSize, IntConsumer onRead) {
+        return profile.find(query, filter.getProjection())
+                .sort(new BasicDBObject("$natural", 1))
+                .batchSize(batchSize)
+                .setDecoderFactory(RawProfileDocument.decoderFactory(onRead));
+    }
+}
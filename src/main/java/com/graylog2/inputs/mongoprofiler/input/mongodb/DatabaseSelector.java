@@ -0,0 +1,88 @@
+package com.graylog2.inputs.mongoprofiler.input.mongodb;
+
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableSet;
+
+import javax.annotation.Nullable;
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Selects the databases profiled by an input.
+ *
+ * The selection is either a comma separated list of database names, a regular expression enclosed in
+ * slashes (e.g. {@code /^app_.+$/}) or {@code *} for all databases. Patterns never match the internal
+ * "admin", "local" and "config" databases, those have to be listed explicitly.
+ */
+public class DatabaseSelector {
+    public static final String ALL_DATABASES = "*";
+
+    private static final Set<String> INTERNAL_DATABASES = ImmutableSet.of("admin", "local", "config");
+
+    private final Set<String> names;
+    private final Pattern pattern;
+
+    private DatabaseSelector(@Nullable Set<String> names, @Nullable Pattern pattern) {
+        this.names = names;
+        this.pattern = pattern;
+    }
+
+    public static DatabaseSelector parse(String selection) {
+        checkArgument(selection != null && !selection.trim().isEmpty(), "No MongoDB database given.");
+
+        final String trimmed = selection.trim();
+        if (ALL_DATABASES.equals(trimmed)) {
+            return new DatabaseSelector(null, null);
+        }
+
+        if (trimmed.length() > 1 && trimmed.startsWith("/") && trimmed.endsWith("/")) {
+            try {
+                return new DatabaseSelector(null, Pattern.compile(trimmed.substring(1, trimmed.length() - 1)));
+            } catch (PatternSyntaxException e) {
+                throw new IllegalArgumentException("Invalid MongoDB database pattern " + trimmed, e);
+            }
+        }
+
+        final Set<String> names = ImmutableSet.copyOf(Splitter.on(',').trimResults().omitEmptyStrings().split(trimmed));
+        checkArgument(!names.isEmpty(), "No MongoDB database given.");
+
+        return new DatabaseSelector(names, null);
+    }
+
+    /**
+     * Whether the selection is a fixed list of databases. Otherwise, the databases have to be discovered.
+     */
+    public boolean isStatic() {
+        return names != null;
+    }
+
+    /**
+     * The listed databases, empty unless the selection {@link #isStatic() is static}.
+     */
+    public Set<String> getNames() {
+        return names == null ? ImmutableSet.of() : names;
+    }
+
+    public boolean matches(String database) {
+        if (names != null) {
+            return names.contains(database);
+        }
+        if (INTERNAL_DATABASES.contains(database)) {
+            return false;
+        }
+
+        return pattern == null || pattern.matcher(database).find();
+    }
+
+    @Override
+    public String toString() {
+        if (names != null) {
+            return String.join(",", names);
+        }
+
+        return pattern == null ? ALL_DATABASES : "/" + pattern.pattern() + "/";
+    }
+}
@@ -0,0 +1,227 @@
+package com.graylog2.inputs.mongoprofiler.input.mongodb;
+
+import com.google.common.collect.ImmutableMap;
+import com.graylog2.inputs.mongoprofiler.input.mongodb.parser.RawProfileDocument;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Date;
+import java.util.Map;
+import java.util.function.IntConsumer;
+
+/**
+ * Reads profile entries from a file of concatenated BSON documents, like a mongodump of a "system.profile"
+ * collection, instead of from MongoDB.
+ *
+ * The entries of a "system.profile.bson" file belong to the database named like its directory, which is the
+ * layout of mongodump ({@code dump/<database>/system.profile.bson}). For other files, the database is the part
+ * of the file name before the first dot, like "app" for "app.profile.bson". Files are read from the start, the
+ * conditions of the {@link ProfileFilter} are checked for every entry.
+ */
+public abstract class FileProfileSource implements ProfileSource {
+    private static final Logger LOG = LoggerFactory.getLogger(FileProfileSource.class);
+
+    // Profile entries are truncated by the server long before they get anywhere near the BSON size limit.
+    private static final int MAX_DOCUMENT_SIZE = 16 * 1024 * 1024;
+
+    public enum Mode {
+        STREAM("Stream, following entries appended to the files"),
+        MAPPED("Memory-mapped, reading the files as they are at full speed");
+
+        private final String description;
+
+        Mode(String description) {
+            this.description = description;
+        }
+
+        /**
+         * Returns the mode with the given name, falling back to {@link #STREAM} for empty or unknown names.
+         */
+        public static Mode fromName(@Nullable String name) {
+            if (name != null) {
+                for (Mode mode : values()) {
+                    if (mode.name().equals(name)) {
+                        return mode;
+                    }
+                }
+            }
+
+            return STREAM;
+        }
+
+        public static Map<String, String> choices() {
+            final ImmutableMap.Builder<String, String> choices = ImmutableMap.builder();
+            for (Mode mode : values()) {
+                choices.put(mode.name(), mode.description);
+            }
+
+            return choices.build();
+        }
+    }
+
+    protected final Path file;
+    private final String name;
+    private final String database;
+    private final ProfileFilter filter;
+
+    protected FileProfileSource(Path file, ProfileFilter filter) {
+        this.file = file;
+        this.name = file.toAbsolutePath().normalize().toString();
+        this.database = databaseOf(file);
+        this.filter = filter;
+    }
+
+    public static FileProfileSource open(Path file, Mode mode, ProfileFilter filter) {
+        switch (mode) {
+            case MAPPED:
+                return new MappedProfileSource(file, filter);
+            default:
+                return new BsonDumpProfileSource(file, filter);
+        }
+    }
+
+    private static String databaseOf(Path file) {
+        final String name = file.getFileName().toString();
+        final Path parent = file.toAbsolutePath().getParent();
+        if (name.equals("system.profile.bson") && parent != null && parent.getFileName() != null) {
+            return parent.getFileName().toString();
+        }
+
+        final int x = name.indexOf('.');
+        return x > 0 ? name.substring(0, x) : name;
+    }
+
+    @Override
+    public String getDatabase() {
+        return database;
+    }
+
+    /**
+     * The absolute path of the file, so dumps of the same database are kept apart.
+     */
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public boolean isReady() {
+        if (!Files.isReadable(file)) {
+            LOG.warn("Profile file [{}] of database [{}] doesn't exist or isn't readable.", file, database);
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Reads the whole file and then keeps checking for new entries if the mode supports it.
+     */
+    @Override
+    public Cursor tail(@Nullable Date from, int batchSize, IntConsumer onRead) {
+        return new FileCursor(openReader(), from, onRead, true);
+    }
+
+    @Override
+    public Cursor read(@Nullable Date from, int batchSize, IntConsumer onRead) {
+        return new FileCursor(openReader(), from, onRead, false);
+    }
+
+    private Reader openReader() {
+        try {
+            return openReader(file);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not open profile file " + file, e);
+        }
+    }
+
+    protected abstract Reader openReader(Path file) throws IOException;
+
+    protected static void checkSize(int size, long offset, Path file) throws IOException {
+        if (size < 5 || size > MAX_DOCUMENT_SIZE) {
+            throw new IOException("Invalid BSON document size " + size + " at offset " + offset + " of " + file);
+        }
+    }
+
+    protected interface Reader extends Closeable {
+        /**
+         * Returns the next BSON document, {@code null} if the end of the file has been reached for now.
+         */
+        @Nullable
+        byte[] next() throws IOException;
+    }
+
+    private class FileCursor implements Cursor {
+        private final Reader reader;
+        @Nullable
+        private final Date from;
+        private final IntConsumer onRead;
+        private final boolean follow;
+        private RawProfileDocument next;
+
+        private FileCursor(Reader reader, @Nullable Date from, IntConsumer onRead, boolean follow) {
+            this.reader = reader;
+            this.from = from;
+            this.onRead = onRead;
+            this.follow = follow;
+        }
+
+        @Nullable
+        @Override
+        public RawProfileDocument tryNext() {
+            if (next != null) {
+                final RawProfileDocument doc = next;
+                next = null;
+                return doc;
+            }
+
+            return fetch();
+        }
+
+        @Override
+        public boolean isExhausted() {
+            if (follow) {
+                return false;
+            }
+
+            if (next == null) {
+                next = fetch();
+            }
+            return next == null;
+        }
+
+        @Nullable
+        private RawProfileDocument fetch() {
+            try {
+                byte[] bytes;
+                while ((bytes = reader.next()) != null) {
+                    onRead.accept(bytes.length);
+                    final RawProfileDocument doc = new RawProfileDocument(bytes);
+                    final Date ts = doc.getTimestamp();
+                    if ((from == null || ts != null && !ts.before(from)) && filter.matches(doc, database)) {
+                        return doc;
+                    }
+                }
+
+                return null;
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not read profile file " + file, e);
+            }
+        }
+
+        @Override
+        public void close() {
+            try {
+                reader.close();
+            } catch (IOException e) {
+                LOG.debug("Could not close profile file [{}].", file, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package com.graylog2.inputs.mongoprofiler.input.mongodb;
+
+import com.google.common.annotations.VisibleForTesting;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads the entries of a BSON dump file through a memory mapping, without a system call per read. Only the
+ * entries the file holds when tailing starts are read.
+ *
+ * Files are mapped in windows, and every window is unmapped as soon as reading moves past it. Otherwise a
+ * mapping is only released once the GC collects its buffer, so replaying a huge file could keep gigabytes
+ * mapped. Where the JVM doesn't allow unmapping, that's left to the GC after all.
+ */
+public class MappedProfileSource extends FileProfileSource {
+    private static final Logger LOG = LoggerFactory.getLogger(MappedProfileSource.class);
+
+    // Windows are remapped at document boundaries, so documents never span two of them.
+    private static final long WINDOW_SIZE = 256L * 1024 * 1024;
+
+    // Unmaps a buffer with sun.misc.Unsafe#invokeCleaner on Java 9 and later, or its cleaner on Java 8.
+    @Nullable
+    private static final Object UNSAFE;
+    @Nullable
+    private static final Method INVOKE_CLEANER;
+    @Nullable
+    private static final Method CLEANER;
+    @Nullable
+    private static final Method CLEAN;
+
+    static {
+        Object unsafe = null;
+        Method invokeCleaner = null;
+        Method cleaner = null;
+        Method clean = null;
+        try {
+            final Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            final Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            unsafe = theUnsafe.get(null);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            invokeCleaner = null;
+            try {
+                cleaner = Class.forName("sun.nio.ch.DirectBuffer").getMethod("cleaner");
+                clean = Class.forName("sun.misc.Cleaner").getMethod("clean");
+            } catch (ReflectiveOperationException | RuntimeException e2) {
+                LOG.debug("Mapped profile files can't be unmapped, this is left to the GC.", e2);
+                cleaner = null;
+                clean = null;
+            }
+        }
+        UNSAFE = unsafe;
+        INVOKE_CLEANER = invokeCleaner;
+        CLEANER = cleaner;
+        CLEAN = clean;
+    }
+
+    private final long windowSize;
+
+    public MappedProfileSource(Path file, ProfileFilter filter) {
+        this(file, filter, WINDOW_SIZE);
+    }
+
+    @VisibleForTesting
+    MappedProfileSource(Path file, ProfileFilter filter, long windowSize) {
+        super(file, filter);
+        this.windowSize = windowSize;
+    }
+
+    @Override
+    protected Reader openReader(Path file) throws IOException {
+        final FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        final long size = channel.size();
+
+        return new Reader() {
+            private MappedByteBuffer window;
+            private long windowStart;
+            private long offset;
+
+            @Nullable
+            @Override
+            public byte[] next() throws IOException {
+                if (size - offset < 4) {
+                    return null;
+                }
+
+                map(4);
+                final int docSize = window.getInt((int) (offset - windowStart));
+                checkSize(docSize, offset, file);
+                if (size - offset < docSize) {
+                    // Truncated at the end of the file.
+                    return null;
+                }
+
+                map(docSize);
+                final byte[] doc = new byte[docSize];
+                window.position((int) (offset - windowStart));
+                window.get(doc);
+                offset += docSize;
+                return doc;
+            }
+
+            private void map(int length) throws IOException {
+                if (window == null || offset + length > windowStart + window.limit()) {
+                    unmapWindow();
+                    windowStart = offset;
+                    window = channel.map(FileChannel.MapMode.READ_ONLY, offset, Math.min(windowSize, size - offset));
+                    window.order(ByteOrder.LITTLE_ENDIAN);
+                }
+            }
+
+            private void unmapWindow() {
+                if (window != null) {
+                    // The buffer must not be touched once it's unmapped.
+                    final MappedByteBuffer unmapped = window;
+                    window = null;
+                    unmap(unmapped);
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                unmapWindow();
+                channel.close();
+            }
+        };
+    }
+
+    private static void unmap(MappedByteBuffer buffer) {
+        try {
+            if (INVOKE_CLEANER != null) {
+                INVOKE_CLEANER.invoke(UNSAFE, buffer);
+            } else if (CLEANER != null && CLEAN != null) {
+                final Object cleaner = CLEANER.invoke(buffer);
+                if (cleaner != null) {
+                    CLEAN.invoke(cleaner);
+                }
+            }
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            LOG.debug("Could not unmap profile file window, this is left to the GC.", e);
+        }
+    }
+}
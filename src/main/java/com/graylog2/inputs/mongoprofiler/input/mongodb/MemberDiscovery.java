@@ -0,0 +1,183 @@
+package com.graylog2.inputs.mongoprofiler.input.mongodb;
+
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableMap;
+import com.mongodb.CommandResult;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.MongoClient;
+import com.mongodb.ServerAddress;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Finds the mongod processes whose profiler collections have to be tailed.
+ *
+ * {@code system.profile} is local to every mongod, so covering a replica set or a sharded cluster
+ * requires a direct connection to each of its data bearing members.
+ */
+public class MemberDiscovery {
+    private static final Logger LOG = LoggerFactory.getLogger(MemberDiscovery.class);
+
+    private static final int STATE_PRIMARY = 1;
+    private static final int STATE_SECONDARY = 2;
+
+    public enum Mode {
+        DRIVER("None, tail the member selected by the driver"),
+        STATIC("Every configured host"),
+        REPLICA_SET("All members of the replica set"),
+        SHARDED("All members of all shards (connect to a mongos)");
+
+        private final String description;
+
+        Mode(String description) {
+            this.description = description;
+        }
+
+        /**
+         * Returns the mode with the given name, falling back to {@link #DRIVER} for empty or unknown names.
+         */
+        public static Mode fromName(@Nullable String name) {
+            if (name != null) {
+                for (Mode mode : values()) {
+                    if (mode.name().equals(name)) {
+                        return mode;
+                    }
+                }
+            }
+
+            return DRIVER;
+        }
+
+        public static Map<String, String> choices() {
+            final ImmutableMap.Builder<String, String> choices = ImmutableMap.builder();
+            for (Mode mode : values()) {
+                choices.put(mode.name(), mode.description);
+            }
+
+            return choices.build();
+        }
+    }
+
+    private final Mode mode;
+    private final List<ServerAddress> seeds;
+    private final Function<List<ServerAddress>, MongoClient> clientFactory;
+
+    /**
+     * @param clientFactory creates the temporary clients used to inspect the replica sets of a sharded cluster
+     */
+    public MemberDiscovery(Mode mode, List<ServerAddress> seeds, Function<List<ServerAddress>, MongoClient> clientFactory) {
+        this.mode = mode;
+        this.seeds = seeds;
+        this.clientFactory = clientFactory;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * Returns the members to tail. Always empty in {@link Mode#DRIVER} mode.
+     *
+     * @param seedClient a client connected to the configured hosts
+     */
+    public List<ClusterMember> discover(MongoClient seedClient) {
+        final List<ClusterMember> members = new ArrayList<>();
+        switch (mode) {
+            case STATIC:
+                for (ServerAddress seed : seeds) {
+                    members.add(new ClusterMember(null, seed));
+                }
+                break;
+            case REPLICA_SET:
+                members.addAll(replicaSetMembers(replSetGetStatus(seedClient), null));
+                break;
+            case SHARDED:
+                try (DBCursor shards = seedClient.getDB("config").getCollection("shards").find()) {
+                    for (DBObject shard : shards) {
+                        members.addAll(shardMembers(String.valueOf(shard.get("_id")), String.valueOf(shard.get("host"))));
+                    }
+                }
+                break;
+            default:
+                break;
+        }
+
+        return members;
+    }
+
+    private List<ClusterMember> shardMembers(String shard, String hosts) {
+        final List<ServerAddress> addresses = parseShardHosts(hosts);
+        if (!hosts.contains("/")) {
+            // A shard without replica set.
+            final List<ClusterMember> members = new ArrayList<>(addresses.size());
+            for (ServerAddress address : addresses) {
+                members.add(new ClusterMember(shard, address));
+            }
+
+            return members;
+        }
+
+        final MongoClient client = clientFactory.apply(addresses);
+        try {
+            return replicaSetMembers(replSetGetStatus(client), shard);
+        } catch (Exception e) {
+            LOG.error("Could not discover members of shard [" + shard + "].", e);
+            return new ArrayList<>();
+        } finally {
+            client.close();
+        }
+    }
+
+    private static DBObject replSetGetStatus(MongoClient client) {
+        final CommandResult status = client.getDB("admin").command("replSetGetStatus");
+        status.throwOnError();
+
+        return status;
+    }
+
+    /**
+     * Extracts the primary and secondaries from the result of {@code replSetGetStatus}.
+     */
+    static List<ClusterMember> replicaSetMembers(DBObject status, @Nullable String shard) {
+        final List<ClusterMember> members = new ArrayList<>();
+        final Object memberList = status.get("members");
+        if (!(memberList instanceof List)) {
+            return members;
+        }
+
+        for (Object o : (List<?>) memberList) {
+            if (!(o instanceof DBObject)) {
+                continue;
+            }
+
+            final DBObject member = (DBObject) o;
+            final Object state = member.get("state");
+            if (state instanceof Number
+                    && (((Number) state).intValue() == STATE_PRIMARY || ((Number) state).intValue() == STATE_SECONDARY)) {
+                members.add(new ClusterMember(shard, new ServerAddress(String.valueOf(member.get("name")))));
+            }
+        }
+
+        return members;
+    }
+
+    /**
+     * Parses the host string of a {@code config.shards} entry, like {@code rs0/db1:27017,db2:27017}.
+     */
+    static List<ServerAddress> parseShardHosts(String hosts) {
+        final int slash = hosts.indexOf('/');
+        final List<ServerAddress> addresses = new ArrayList<>();
+        for (String host : Splitter.on(',').trimResults().omitEmptyStrings().split(hosts.substring(slash + 1))) {
+            addresses.add(new ServerAddress(host));
+        }
+
+        return addresses;
+    }
+}
@@ -1,58 +1,254 @@
 package com.graylog2.inputs.mongoprofiler.input.mongodb;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.Iterables;
+import com.google.inject.assistedinject.Assisted;
+import com.graylog2.inputs.mongoprofiler.input.mongodb.normalizer.BoundedJsonWriter;
+import com.graylog2.inputs.mongoprofiler.input.mongodb.normalizer.ArrayNormalization;
+import com.graylog2.inputs.mongoprofiler.input.mongodb.normalizer.FingerprintAlgorithm;
+import com.graylog2.inputs.mongoprofiler.input.mongodb.normalizer.FingerprintCache;
+import com.graylog2.inputs.mongoprofiler.input.mongodb.parser.FieldSelection;
 import com.graylog2.inputs.mongoprofiler.input.mongodb.parser.Parser;
+import com.graylog2.inputs.mongoprofiler.input.mongodb.parser.RawParser;
+import com.mongodb.DBCollection;
+import com.mongodb.DBDecoder;
 import com.mongodb.DBObject;
+import com.mongodb.DefaultDBDecoder;
 import org.graylog2.plugin.Message;
 import org.graylog2.plugin.configuration.Configuration;
 import org.graylog2.plugin.configuration.ConfigurationRequest;
+import org.graylog2.plugin.configuration.fields.BooleanField;
+import org.graylog2.plugin.configuration.fields.ConfigurationField;
+import org.graylog2.plugin.configuration.fields.DropdownField;
+import org.graylog2.plugin.configuration.fields.NumberField;
+import org.graylog2.plugin.configuration.fields.TextField;
 import org.graylog2.plugin.inputs.annotations.ConfigClass;
 import org.graylog2.plugin.inputs.annotations.FactoryClass;
 import org.graylog2.plugin.inputs.codecs.Codec;
 import org.graylog2.plugin.inputs.codecs.CodecAggregator;
+import org.graylog2.plugin.inputs.codecs.MultiMessageCodec;
 import org.graylog2.plugin.journal.RawMessage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
+import javax.inject.Inject;
 import java.io.ByteArrayInputStream;
+import java.io.IOException;
 import java.io.ObjectInputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 import static java.util.Objects.requireNonNull;
 
-public class MongoDBProfilerCodec implements Codec {
+public class MongoDBProfilerCodec implements MultiMessageCodec {
+    private static final Logger LOG = LoggerFactory.getLogger(MongoDBProfilerCodec.class);
+
+    static final String CK_FINGERPRINT_ALGORITHM = "fingerprint_algorithm";
+    static final String CK_FINGERPRINT_CACHE_SIZE = "fingerprint_cache_size";
+    static final int DEFAULT_FINGERPRINT_CACHE_SIZE = 10000;
+    static final String CK_ARRAY_NORMALIZATION = "array_normalization";
+    static final String CK_MESSAGE_FIELDS = "message_fields";
+    static final String CK_MAX_JSON_BYTES = "max_json_bytes";
+    static final String CK_REDACT_LITERALS = "redact_literals";
+    // Longer values can't be indexed as a single term by Elasticsearch.
+    static final int DEFAULT_MAX_JSON_BYTES = 32766;
+
+    private final Configuration configuration;
     private final Parser parser;
 
-    public MongoDBProfilerCodec() {
-        this(new Parser());
+    @Inject
+    public MongoDBProfilerCodec(@Assisted Configuration configuration) {
+        this(configuration, new Parser(
+                FingerprintAlgorithm.fromName(configuration.getString(CK_FINGERPRINT_ALGORITHM)),
+                FieldSelection.forSpec(configuration.getString(CK_MESSAGE_FIELDS)),
+                Math.max(configuration.getInt(CK_MAX_JSON_BYTES, DEFAULT_MAX_JSON_BYTES), 0),
+                configuration.getBoolean(CK_REDACT_LITERALS),
+                ArrayNormalization.fromName(configuration.getString(CK_ARRAY_NORMALIZATION))));
     }
 
     @VisibleForTesting
     protected MongoDBProfilerCodec(final Parser parser) {
+        this(Configuration.EMPTY_CONFIGURATION, parser);
+    }
+
+    private MongoDBProfilerCodec(final Configuration configuration, final Parser parser) {
+        this.configuration = requireNonNull(configuration);
         this.parser = requireNonNull(parser);
     }
 
     @Nullable
     @Override
     public Message decode(@Nonnull RawMessage rawMessage) {
+        final byte[] payload = rawMessage.getPayload();
+        final CodecMetrics metrics = CodecMetrics.forInput(inputId(rawMessage));
+        if (payload.length > 0 && payload[0] == RawParser.FORMAT_ROLLUP) {
+            return decodeRollup(payload, metrics);
+        }
+        if (payload.length > 0 && payload[0] == RawParser.FORMAT_BSON_BATCH) {
+            markError(metrics, CodecMetrics.ERROR_DESERIALIZE);
+            throw new IllegalArgumentException("Batches of MongoDB profiler information can only be decoded as multiple messages. Skipping.");
+        }
+
+        final long start = System.nanoTime();
+        final DBObject fields;
         final DBObject doc;
-        try (
-                final ByteArrayInputStream b = new ByteArrayInputStream(rawMessage.getPayload());
-                final ObjectInputStream o = new ObjectInputStream(b)) {
-            doc = (DBObject) o.readObject();
+        try {
+            if (payload.length > 0 && payload[0] == RawParser.FORMAT_BSON_WITH_FIELDS) {
+                final ByteArrayInputStream b = new ByteArrayInputStream(payload, 1, payload.length - 1);
+                final DBDecoder decoder = new DefaultDBDecoder();
+                fields = decoder.decode(b, (DBCollection) null);
+                doc = decoder.decode(b, (DBCollection) null);
+            } else {
+                fields = null;
+                doc = readDocument(payload);
+            }
         } catch (Exception e) {
+            markError(metrics, CodecMetrics.ERROR_DESERIALIZE);
             throw new IllegalArgumentException("Could not de-serialize MongoDB profiler information from raw message. Skipping.", e);
         }
+        final long deserializeNanos = System.nanoTime() - start;
 
         try {
-            return parser.parse(doc);
+            return buildMessage(doc, fields, fingerprintCache(rawMessage), metrics, deserializeNanos);
         } catch (Parser.UnparsableException e) {
+            markError(metrics, CodecMetrics.ERROR_UNPARSABLE);
             throw new RuntimeException("Could not parse MongoDB profiler information. Skipping.", e);
         }
     }
 
+    @Nullable
+    @Override
+    public Collection<Message> decodeMessages(@Nonnull RawMessage rawMessage) {
+        final byte[] payload = rawMessage.getPayload();
+        if (payload.length == 0 || payload[0] != RawParser.FORMAT_BSON_BATCH) {
+            final Message message = decode(rawMessage);
+            return message == null ? null : Collections.singletonList(message);
+        }
+
+        final CodecMetrics metrics = CodecMetrics.forInput(inputId(rawMessage));
+        final FingerprintCache fingerprintCache = fingerprintCache(rawMessage);
+        final ByteArrayInputStream b = new ByteArrayInputStream(payload, 1, payload.length - 1);
+        final DBDecoder decoder = new DefaultDBDecoder();
+        final List<Message> messages = new ArrayList<>();
+        int format;
+        while ((format = b.read()) != -1) {
+            final long start = System.nanoTime();
+            final DBObject fields;
+            final DBObject doc;
+            try {
+                if (format == RawParser.FORMAT_BSON_WITH_FIELDS) {
+                    fields = decoder.decode(b, (DBCollection) null);
+                } else if (format == RawParser.FORMAT_BSON) {
+                    fields = null;
+                } else {
+                    throw new IOException("Unknown format " + format + " of batched profile document.");
+                }
+                doc = decoder.decode(b, (DBCollection) null);
+            } catch (Exception e) {
+                markError(metrics, CodecMetrics.ERROR_DESERIALIZE);
+                throw new IllegalArgumentException("Could not de-serialize MongoDB profiler information from raw message. Skipping.", e);
+            }
+            final long deserializeNanos = System.nanoTime() - start;
+
+            // Don't let a single document take the others down with it.
+            try {
+                messages.add(buildMessage(doc, fields, fingerprintCache, metrics, deserializeNanos));
+            } catch (Parser.UnparsableException e) {
+                markError(metrics, CodecMetrics.ERROR_UNPARSABLE);
+                LOG.debug("Could not parse MongoDB profiler information. Skipping.", e);
+            }
+        }
+
+        return messages;
+    }
+
+    private Message buildMessage(DBObject doc, @Nullable DBObject fields, @Nullable FingerprintCache fingerprintCache,
+                                 @Nullable CodecMetrics metrics, long deserializeNanos) throws Parser.UnparsableException {
+        final long start = System.nanoTime();
+        final Parser.Result result = parser.parseEntry(doc, fingerprintCache);
+        final Message message = result.getMessage();
+        final long parseNanos = System.nanoTime() - start;
+
+        if (fields != null) {
+            for (String key : fields.keySet()) {
+                message.addField(key, fields.get(key));
+            }
+        }
+
+        if (metrics != null) {
+            final Object host = message.getField(ClusterMember.FIELD_HOST);
+            final Object shard = message.getField(ClusterMember.FIELD_SHARD);
+            final CodecMetrics.Source source = metrics.forSource(
+                    host == null ? null : ClusterMember.metricName(shard == null ? null : shard.toString(), host.toString()),
+                    result.getDatabase());
+
+            source.getDeserializeTime().update(deserializeNanos, TimeUnit.NANOSECONDS);
+            source.getParseTime().update(parseNanos, TimeUnit.NANOSECONDS);
+            source.getNormalizeTime().update(result.getNormalizeNanos(), TimeUnit.NANOSECONDS);
+        }
+
+        return message;
+    }
+
+    private static void markError(@Nullable CodecMetrics metrics, String cause) {
+        if (metrics != null) {
+            metrics.errors(cause).mark();
+        }
+    }
+
+    private Message decodeRollup(byte[] payload, @Nullable CodecMetrics metrics) {
+        final DBObject rollup;
+        try {
+            final ByteArrayInputStream b = new ByteArrayInputStream(payload, 1, payload.length - 1);
+            rollup = new DefaultDBDecoder().decode(b, (DBCollection) null);
+        } catch (Exception e) {
+            markError(metrics, CodecMetrics.ERROR_DESERIALIZE);
+            throw new IllegalArgumentException("Could not de-serialize MongoDB profiler rollup from raw message. Skipping.", e);
+        }
+
+        return parser.parseRollup(rollup);
+    }
+
+    @Nullable
+    private FingerprintCache fingerprintCache(RawMessage rawMessage) {
+        final int size = configuration.getInt(CK_FINGERPRINT_CACHE_SIZE, DEFAULT_FINGERPRINT_CACHE_SIZE);
+        final String inputId = inputId(rawMessage);
+        if (size <= 0 || inputId == null) {
+            return null;
+        }
+
+        return FingerprintCache.forInput(inputId, size);
+    }
+
+    @Nullable
+    private static String inputId(RawMessage rawMessage) {
+        final RawMessage.SourceNode sourceNode = Iterables.getLast(rawMessage.getSourceNodes(), null);
+        return sourceNode == null ? null : sourceNode.inputId;
+    }
+
+    private DBObject readDocument(byte[] payload) throws IOException, ClassNotFoundException {
+        if (payload.length > 0 && payload[0] == RawParser.FORMAT_BSON) {
+            final ByteArrayInputStream b = new ByteArrayInputStream(payload, 1, payload.length - 1);
+            return new DefaultDBDecoder().decode(b, (DBCollection) null);
+        }
+
+        // Journal entries written before the BSON format was introduced.
+        try (
+                final ByteArrayInputStream b = new ByteArrayInputStream(payload);
+                final ObjectInputStream o = new ObjectInputStream(b)) {
+            return (DBObject) o.readObject();
+        }
+    }
+
     @Nullable
     @Override
     public CodecAggregator getAggregator() {
+        // Aggregators reassemble chunked network payloads. Batches are split up in decodeMessages instead.
         return null;
     }
 
@@ -64,7 +260,7 @@ public class MongoDBProfilerCodec implements Codec {
     @Nonnull
     @Override
     public Configuration getConfiguration() {
-        return Configuration.EMPTY_CONFIGURATION;
+        return configuration;
     }
 
     @FactoryClass
@@ -80,7 +276,71 @@ public class MongoDBProfilerCodec implements Codec {
     public static class Config implements Codec.Config {
         @Override
         public ConfigurationRequest getRequestedConfiguration() {
-            return new ConfigurationRequest();
+            final ConfigurationRequest request = new ConfigurationRequest();
+
+            request.addField(
+                    new DropdownField(
+                            CK_FINGERPRINT_ALGORITHM,
+                            "Fingerprint algorithm",
+                            FingerprintAlgorithm.MD5.name(),
+                            FingerprintAlgorithm.choices(),
+                            "Hash function used for the query and update object fingerprints. Changing it changes all hash values, so keep MD5 if existing dashboards rely on them.",
+                            ConfigurationField.Optional.OPTIONAL)
+            );
+
+            request.addField(
+                    new NumberField(
+                            CK_FINGERPRINT_CACHE_SIZE,
+                            "Fingerprint cache size",
+                            DEFAULT_FINGERPRINT_CACHE_SIZE,
+                            "Maximum number of query shapes whose fields hash is cached, long shapes count as several. Set to 0 to disable the cache.",
+                            ConfigurationField.Optional.OPTIONAL)
+            );
+
+            request.addField(
+                    new DropdownField(
+                            CK_ARRAY_NORMALIZATION,
+                            "Array normalization",
+                            ArrayNormalization.LEGACY.name(),
+                            ArrayNormalization.choices(),
+                            "How fields hashes and shapes describe arrays. Collapsing gives an $in with 50 values the same hash as one "
+                                    + "with 51, but changes all hashes of queries with arrays, so keep describing them by position if "
+                                    + "existing dashboards rely on them.",
+                            ConfigurationField.Optional.OPTIONAL)
+            );
+
+            request.addField(
+                    new TextField(
+                            CK_MESSAGE_FIELDS,
+                            "Message fields",
+                            "",
+                            "Comma separated names of the message fields to build from profile entries, like "
+                                    + "\"operation,database,collection,millis,query_fields_hash,docs_examined\". Names ending in * select "
+                                    + "all fields starting with the rest of the name, like lockwait_*. Leave empty for all fields.",
+                            ConfigurationField.Optional.OPTIONAL)
+            );
+
+            request.addField(
+                    new NumberField(
+                            CK_MAX_JSON_BYTES,
+                            "Maximum query size",
+                            DEFAULT_MAX_JSON_BYTES,
+                            "Maximum size in bytes of the JSON of a query, command or update object. Longer ones are cut off and end with "
+                                    + BoundedJsonWriter.TRUNCATION_MARKER + ", their hashes still cover everything. Set to 0 for no limit.",
+                            ConfigurationField.Optional.OPTIONAL,
+                            NumberField.Attribute.ONLY_POSITIVE)
+            );
+
+            request.addField(
+                    new BooleanField(
+                            CK_REDACT_LITERALS,
+                            "Redact values?",
+                            false,
+                            "Replace the values in the JSON of queries, commands and update objects with "
+                                    + BoundedJsonWriter.PLACEHOLDER + ", to keep them, and any personal data among them, out of the messages.")
+            );
+
+            return request;
         }
 
         @Override
@@ -1,12 +1,26 @@
 package com.graylog2.inputs.mongoprofiler.input.mongodb;
 
+import com.codahale.metrics.Gauge;
 import com.codahale.metrics.MetricSet;
+import com.codahale.metrics.Timer;
+import com.google.common.base.Splitter;
+import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.eventbus.EventBus;
 import com.google.common.eventbus.Subscribe;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.inject.assistedinject.Assisted;
+import com.graylog2.inputs.mongoprofiler.input.mongodb.normalizer.ArrayNormalization;
+import com.graylog2.inputs.mongoprofiler.input.mongodb.normalizer.FingerprintAlgorithm;
+import com.graylog2.inputs.mongoprofiler.input.mongodb.normalizer.FingerprintCache;
+import com.graylog2.inputs.mongoprofiler.input.mongodb.parser.FieldSelection;
+import com.graylog2.inputs.mongoprofiler.input.mongodb.parser.RawParser;
+import com.mongodb.DBObject;
 import com.mongodb.MongoClient;
+import com.mongodb.MongoClientOptions;
 import com.mongodb.MongoCredential;
+import com.mongodb.ReadPreference;
 import com.mongodb.ServerAddress;
 import org.graylog2.plugin.LocalMetricRegistry;
 import org.graylog2.plugin.ServerStatus;
@@ -14,6 +28,7 @@ import org.graylog2.plugin.configuration.Configuration;
 import org.graylog2.plugin.configuration.ConfigurationRequest;
 import org.graylog2.plugin.configuration.fields.BooleanField;
 import org.graylog2.plugin.configuration.fields.ConfigurationField;
+import org.graylog2.plugin.configuration.fields.DropdownField;
 import org.graylog2.plugin.configuration.fields.NumberField;
 import org.graylog2.plugin.configuration.fields.TextField;
 import org.graylog2.plugin.inputs.MessageInput;
@@ -24,14 +39,33 @@ import org.graylog2.plugin.inputs.codecs.CodecAggregator;
 import org.graylog2.plugin.inputs.transports.ThrottleableTransport;
 import org.graylog2.plugin.inputs.transports.Transport;
 import org.graylog2.plugin.lifecycles.Lifecycle;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.annotation.Nullable;
 import javax.inject.Inject;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
-public class MongoDBProfilerTransport implements Transport {
+import static com.codahale.metrics.MetricRegistry.name;
+
+public class MongoDBProfilerTransport extends ThrottleableTransport {
 
     private static final Logger LOG = LoggerFactory.getLogger(MongoDBProfilerTransport.class);
 
@@ -41,11 +75,82 @@ public class MongoDBProfilerTransport implements Transport {
     private static final String CK_MONGO_USE_AUTH = "mongo_use_auth";
     private static final String CK_MONGO_USER = "mongo_user";
     private static final String CK_MONGO_PW = "mongo_password";
+    private static final String CK_MONGO_AUTH_DB = "mongo_auth_db";
+    private static final String CK_WORKER_THREADS = "worker_threads";
+    private static final String CK_DISCOVERY_INTERVAL = "database_discovery_interval";
+    private static final String CK_MEMBER_DISCOVERY = "member_discovery";
+    private static final String CK_CHECKPOINT_DIR = "checkpoint_directory";
+    private static final String CK_BACKFILL = "backfill";
+    private static final String CK_BACKFILL_BATCH_SIZE = "backfill_batch_size";
+    private static final String CK_BACKFILL_RATE = "backfill_rate";
+    private static final String CK_CURSOR_BATCH_SIZE = "cursor_batch_size";
+    private static final String CK_BATCH_SIZE = "batch_size";
+    private static final String CK_BATCH_MAX_LATENCY = "batch_max_latency";
+    private static final String CK_BUFFER_SIZE = "buffer_size";
+    private static final String CK_PROCESSOR_THREADS = "processor_threads";
+    private static final String CK_ENTRIES_PER_MESSAGE = "entries_per_message";
+    private static final String CK_MIN_MILLIS = "min_millis";
+    private static final String CK_OPERATIONS = "operations";
+    private static final String CK_EXCLUDED_OPERATIONS = "excluded_operations";
+    private static final String CK_NAMESPACES = "namespaces";
+    private static final String CK_EXCLUDED_NAMESPACES = "excluded_namespaces";
+    private static final String CK_SAMPLING = "sampling";
+    private static final String CK_SAMPLING_SLOW_THRESHOLD = "sampling_slow_threshold";
+    private static final String CK_SAMPLING_RATE = "sampling_rate";
+    private static final String CK_ROLLUPS = "rollups";
+    private static final String CK_ROLLUP_WINDOW = "rollup_window";
+    private static final String CK_ROLLUP_MAX_SHAPES = "rollup_max_shapes";
+    private static final String CK_ROLLUPS_ONLY = "rollups_only";
+    private static final String CK_REPLAY_FILES = "replay_files";
+    private static final String CK_REPLAY_MODE = "replay_mode";
+
+    private static final int DEFAULT_WORKER_THREADS = 4;
+    private static final int DEFAULT_DISCOVERY_INTERVAL = 60;
+    private static final String DEFAULT_CHECKPOINT_DIR = "data/mongodb-profiler";
+    private static final int CHECKPOINT_FLUSH_INTERVAL = 5;
+    private static final int DEFAULT_BACKFILL_BATCH_SIZE = 500;
+    private static final int DEFAULT_BACKFILL_RATE = 1000;
+    private static final int DEFAULT_CURSOR_BATCH_SIZE = 1000;
+    private static final int DEFAULT_BATCH_SIZE = 100;
+    private static final int DEFAULT_BATCH_MAX_LATENCY = 100;
+    private static final int DEFAULT_BUFFER_SIZE = 4096;
+    private static final int DEFAULT_PROCESSOR_THREADS = 2;
+    private static final int DEFAULT_ENTRIES_PER_MESSAGE = 1;
+    private static final int DEFAULT_SAMPLING_SLOW_THRESHOLD = 100;
+    private static final int DEFAULT_SAMPLING_RATE = 10;
+    private static final int DEFAULT_ROLLUP_WINDOW = 60;
+    private static final int DEFAULT_ROLLUP_MAX_SHAPES = 1000;
 
     private final EventBus serverEventBus;
     private final ServerStatus serverStatus;
+    private final boolean throttlingAllowed;
+
+    // The tailed mongod processes by member name, or a single one with an empty name if the driver selects it.
+    private final ConcurrentMap<String, Target> targets = new ConcurrentHashMap<>();
+    private MongoClient mongoClient;
+    private List<MongoCredential> credentialList;
+    private MemberDiscovery memberDiscovery;
+    private ScheduledExecutorService executor;
+    private CheckpointStore checkpoints;
+    private ProfilePipeline pipeline;
+    private TailingContext context;
+    private RollupAggregator aggregator;
+    private RawParser rollupParser;
+    private Date rollupWindowStart;
+    private String rollupMetrics;
+    private String samplingMetrics;
+    private DatabaseSelector databases;
+    private ProfileFilter filter;
+    private MessageInput input;
+    private String databasesMetric;
 
-    private ProfileSubscriber subscriber;
+    private String inputId;
+    private String fingerprintCacheMetrics;
+
+    // Start of the current throttling period, 0 if not throttled.
+    private final AtomicLong throttledSince = new AtomicLong(0L);
+    private Timer throttleTime;
+    private String throttleTimeMetric;
 
     private final LocalMetricRegistry localRegistry;
 
@@ -54,6 +159,8 @@ public class MongoDBProfilerTransport implements Transport {
                                     final EventBus serverEventBus,
                                     final LocalMetricRegistry localRegistry,
                                     final ServerStatus serverStatus) {
+        super(serverEventBus, configuration);
+        this.throttlingAllowed = configuration.getBoolean(CK_THROTTLING_ALLOWED);
         this.localRegistry = localRegistry;
         this.serverEventBus = serverEventBus;
         this.serverStatus = serverStatus;
@@ -61,7 +168,7 @@ public class MongoDBProfilerTransport implements Transport {
 
     @Override
     public void setMessageAggregator(CodecAggregator codecAggregator) {
-        // Not supported.
+        // Not needed, profile entries are never chunked. They are combined into journal entries by the pipeline.
     }
 
     @Subscribe
@@ -71,34 +178,189 @@ public class MongoDBProfilerTransport implements Transport {
             case PAUSED:
             case FAILED:
             case HALTING:
-                if (subscriber != null) {
-                    subscriber.terminate();
-                }
+                stopTailing();
                 break;
             default:
-                if (subscriber != null) {
-                    subscriber.terminate();
-                }
+                stopTailing();
                 break;
         }
     }
 
     @Override
-    public void launch(MessageInput input) throws MisfireException {
+    protected void doLaunch(MessageInput input) throws MisfireException {
         serverStatus.awaitRunning(() -> lifecycleStateChange(Lifecycle.RUNNING));
         serverEventBus.register(this);
 
         LOG.debug("Launching MongoDB profiler reader.");
         final Configuration configuration = input.getConfiguration();
 
+        try {
+            databases = DatabaseSelector.parse(configuration.getString(CK_MONGO_DB));
+            filter = ProfileFilter.parse(
+                    Math.max(configuration.getInt(CK_MIN_MILLIS, 0), 0),
+                    configuration.getString(CK_OPERATIONS),
+                    configuration.getString(CK_EXCLUDED_OPERATIONS),
+                    configuration.getString(CK_NAMESPACES),
+                    configuration.getString(CK_EXCLUDED_NAMESPACES));
+            // Compiled by the codecs, which can't refuse to start.
+            FieldSelection.parse(configuration.getString(MongoDBProfilerCodec.CK_MESSAGE_FIELDS));
+        } catch (IllegalArgumentException e) {
+            throw new MisfireException(e.getMessage(), e);
+        }
+
+        // Files listed twice are only replayed once.
+        final Set<Path> replayFiles = new LinkedHashSet<>();
+        for (String file : Splitter.on(',').trimResults().omitEmptyStrings().split(Strings.nullToEmpty(configuration.getString(CK_REPLAY_FILES)))) {
+            final Path path = Paths.get(file);
+            if (!Files.isReadable(path)) {
+                throw new MisfireException("Replay file " + file + " doesn't exist or isn't readable.");
+            }
+            replayFiles.add(path.toAbsolutePath().normalize());
+        }
+
+        // Replaying doesn't connect to MongoDB at all.
+        if (replayFiles.isEmpty()) {
+            connect(configuration);
+        }
+
+        this.input = input;
+        throttleTimeMetric = name(input.getUniqueReadableId(), "throttleTime");
+        throttleTime = localRegistry.timer(throttleTimeMetric);
+        executor = Executors.newScheduledThreadPool(
+                configuration.getInt(CK_WORKER_THREADS, DEFAULT_WORKER_THREADS),
+                new ThreadFactoryBuilder()
+                        .setDaemon(true)
+                        .setNameFormat("mongodb-profiler-" + input.getId() + "-%d")
+                        .build());
+
+        final String checkpointDir = configuration.getString(CK_CHECKPOINT_DIR);
+        if (checkpointDir != null && !checkpointDir.trim().isEmpty()) {
+            checkpoints = CheckpointStore.open(Paths.get(checkpointDir.trim(), input.getId() + ".json"));
+            executor.scheduleWithFixedDelay(checkpoints::flushQuietly,
+                    CHECKPOINT_FLUSH_INTERVAL, CHECKPOINT_FLUSH_INTERVAL, TimeUnit.SECONDS);
+        }
+
+        final int batchSize = Math.max(configuration.getInt(CK_BATCH_SIZE, DEFAULT_BATCH_SIZE), 1);
+        pipeline = new ProfilePipeline(
+                input,
+                localRegistry,
+                Math.max(configuration.getInt(CK_BUFFER_SIZE, DEFAULT_BUFFER_SIZE), batchSize),
+                Math.max(configuration.getInt(CK_PROCESSOR_THREADS, DEFAULT_PROCESSOR_THREADS), 1),
+                Math.max(configuration.getInt(CK_ENTRIES_PER_MESSAGE, DEFAULT_ENTRIES_PER_MESSAGE), 1),
+                new ThreadFactoryBuilder()
+                        .setDaemon(true)
+                        .setNameFormat("mongodb-profiler-" + input.getId() + "-processor-%d")
+                        .build());
+
+        context = new TailingContext(input, localRegistry, executor, pipeline, this::checkThrottled)
+                .setFilter(filter)
+                .setCheckpoints(checkpoints)
+                .setCursorBatchSize(Math.max(configuration.getInt(CK_CURSOR_BATCH_SIZE, DEFAULT_CURSOR_BATCH_SIZE), 0))
+                .setBatchSize(batchSize)
+                .setMaxBatchLatencyMillis(Math.max(configuration.getInt(CK_BATCH_MAX_LATENCY, DEFAULT_BATCH_MAX_LATENCY), 0));
+        final int fingerprintCacheSize = configuration.getInt(MongoDBProfilerCodec.CK_FINGERPRINT_CACHE_SIZE,
+                MongoDBProfilerCodec.DEFAULT_FINGERPRINT_CACHE_SIZE);
+        final FingerprintCache fingerprintCache = fingerprintCacheSize > 0 ? FingerprintCache.forInput(input.getId(), fingerprintCacheSize) : null;
+        final FingerprintAlgorithm fingerprintAlgorithm = FingerprintAlgorithm.fromName(
+                configuration.getString(MongoDBProfilerCodec.CK_FINGERPRINT_ALGORITHM));
+        final ArrayNormalization arrayNormalization = ArrayNormalization.fromName(
+                configuration.getString(MongoDBProfilerCodec.CK_ARRAY_NORMALIZATION));
+        if (configuration.getBoolean(CK_SAMPLING)) {
+            final Sampler sampler = new Sampler(
+                    fingerprintAlgorithm,
+                    arrayNormalization,
+                    fingerprintCache,
+                    Math.max(configuration.getInt(CK_SAMPLING_SLOW_THRESHOLD, DEFAULT_SAMPLING_SLOW_THRESHOLD), 0),
+                    Math.max(configuration.getInt(CK_SAMPLING_RATE, DEFAULT_SAMPLING_RATE), 0));
+            context.setSampler(sampler);
+
+            samplingMetrics = name(input.getUniqueReadableId(), "sampling");
+            localRegistry.register(samplingMetrics, sampler.getMetricSet());
+        }
+        if (configuration.getBoolean(CK_ROLLUPS)) {
+            aggregator = new RollupAggregator(
+                    fingerprintAlgorithm,
+                    arrayNormalization,
+                    fingerprintCache,
+                    Math.max(configuration.getInt(CK_ROLLUP_MAX_SHAPES, DEFAULT_ROLLUP_MAX_SHAPES), 1));
+            rollupParser = new RawParser();
+            rollupWindowStart = DateTime.now(DateTimeZone.UTC).toDate();
+            context.setAggregator(aggregator, configuration.getBoolean(CK_ROLLUPS_ONLY));
+
+            rollupMetrics = name(input.getUniqueReadableId(), "rollups");
+            localRegistry.register(rollupMetrics, aggregator.getMetricSet());
+
+            final int window = Math.max(configuration.getInt(CK_ROLLUP_WINDOW, DEFAULT_ROLLUP_WINDOW), 1);
+            executor.scheduleAtFixedRate(this::emitRollups, window, window, TimeUnit.SECONDS);
+        }
+        if (configuration.getBoolean(CK_BACKFILL)) {
+            context.setBackfill(new Backfill(
+                    Math.max(configuration.getInt(CK_BACKFILL_BATCH_SIZE, DEFAULT_BACKFILL_BATCH_SIZE), 1),
+                    configuration.getInt(CK_BACKFILL_RATE, DEFAULT_BACKFILL_RATE)));
+        }
+
+        if (!replayFiles.isEmpty()) {
+            final FileProfileSource.Mode mode = FileProfileSource.Mode.fromName(configuration.getString(CK_REPLAY_MODE));
+            final Target target = new Target(null, null);
+            targets.put("", target);
+            try {
+                for (Path file : replayFiles) {
+                    final FileProfileSource source = FileProfileSource.open(file, mode, filter);
+                    if (databases.matches(source.getDatabase())) {
+                        startSubscriber(target, source.getName(), source);
+                    } else {
+                        LOG.info("Database [{}] of replay file [{}] doesn't match [{}]. Skipping.", source.getDatabase(), file, databases);
+                    }
+                }
+            } catch (RuntimeException e) {
+                stopTailing();
+                throw new MisfireException("Could not start replaying the MongoDB profile files.", e);
+            }
+        } else if (memberDiscovery.getMode() == MemberDiscovery.Mode.DRIVER && databases.isStatic()) {
+            final Target target = new Target(null, mongoClient);
+            targets.put("", target);
+            try {
+                for (String db : databases.getNames()) {
+                    startSubscriber(target, db, new CollectionProfileSource(target.client, db, filter));
+                }
+            } catch (RuntimeException e) {
+                stopTailing();
+                throw new MisfireException("Could not start reading the MongoDB profiler collections.", e);
+            }
+        } else {
+            final int interval = configuration.getInt(CK_DISCOVERY_INTERVAL, DEFAULT_DISCOVERY_INTERVAL);
+            executor.scheduleWithFixedDelay(this::discover, 0, Math.max(interval, 1), TimeUnit.SECONDS);
+        }
+
+        databasesMetric = name(input.getUniqueReadableId(), "profiledDatabases");
+        localRegistry.register(databasesMetric, (Gauge<Integer>) () -> {
+            int count = 0;
+            for (Target target : targets.values()) {
+                count += target.subscribers.size();
+            }
+            return count;
+        });
+
+        // Updated by the codecs decoding this input's messages.
+        inputId = input.getId();
+        CodecMetrics.register(inputId, localRegistry, name(input.getUniqueReadableId(), "codec"));
+
+        // The cache itself is filled by the codecs decoding this input's messages.
+        if (fingerprintCache != null) {
+            fingerprintCacheMetrics = name(input.getUniqueReadableId(), "fingerprintCache");
+            localRegistry.register(fingerprintCacheMetrics, fingerprintCache.getMetricSet());
+        }
+    }
+
+    /**
+     * Sets up the discovery of cluster members and verifies the connection to MongoDB.
+     */
+    private void connect(Configuration configuration) throws MisfireException {
         final int port = configuration.getInt(CK_MONGO_PORT);
-        final MongoClient mongoClient;
-        final List<MongoCredential> credentialList;
-        final String db = configuration.getString(CK_MONGO_DB);
         if (configuration.getBoolean(CK_MONGO_USE_AUTH)) {
             final MongoCredential credentials = MongoCredential.createCredential(
                     configuration.getString(CK_MONGO_USER),
-                    db,
+                    authenticationDatabase(configuration),
                     configuration.getString(CK_MONGO_PW).toCharArray()
             );
 
@@ -113,26 +375,240 @@ public class MongoDBProfilerTransport implements Transport {
         for (String host : hosts) {
             replicaHosts.add(new ServerAddress(host, port));
         }
-        mongoClient = new MongoClient(replicaHosts, credentialList);
 
-        // Try the connection.
+        memberDiscovery = new MemberDiscovery(
+                MemberDiscovery.Mode.fromName(configuration.getString(CK_MEMBER_DISCOVERY)),
+                replicaHosts,
+                seeds -> new MongoClient(seeds, credentialList));
+
+        // The configured hosts of a static member list don't need to form a replica set.
+        if (memberDiscovery.getMode() != MemberDiscovery.Mode.STATIC) {
+            // A single client, and thus a single connection pool, is shared by all profiled databases.
+            mongoClient = new MongoClient(replicaHosts, credentialList);
+
+            // Try the connection.
+            try {
+                if (databases.isStatic()) {
+                    for (String db : databases.getNames()) {
+                        mongoClient.getDB(db).getStats();
+                    }
+                } else {
+                    mongoClient.listDatabaseNames().first();
+                }
+            } catch (Exception e) {
+                stopTailing();
+                throw new MisfireException("Could not verify MongoDB profiler connection.", e);
+            }
+        }
+    }
+
+    private String authenticationDatabase(Configuration configuration) {
+        final String authDb = configuration.getString(CK_MONGO_AUTH_DB);
+        if (authDb != null && !authDb.trim().isEmpty()) {
+            return authDb.trim();
+        }
+
+        // Keep authenticating against the profiled database if there is only one.
+        if (databases.getNames().size() == 1) {
+            return databases.getNames().iterator().next();
+        }
+
+        return "admin";
+    }
+
+    /**
+     * Starts tailing new cluster members and databases, and stops tailing members that are gone.
+     */
+    private synchronized void discover() {
+        if (executor == null) {
+            return;
+        }
+
+        if (memberDiscovery.getMode() == MemberDiscovery.Mode.DRIVER) {
+            discoverDatabases(targets.computeIfAbsent("", name -> new Target(null, mongoClient)));
+            return;
+        }
+
+        final List<ClusterMember> members;
         try {
-            mongoClient.getDB(db).getStats();
+            members = memberDiscovery.discover(mongoClient);
         } catch (Exception e) {
-            throw new MisfireException("Could not verify MongoDB profiler connection.", e);
+            LOG.error("Could not discover the members of the MongoDB cluster. Retrying.", e);
+            return;
+        }
+
+        final Set<String> names = new HashSet<>();
+        for (ClusterMember member : members) {
+            names.add(member.toString());
+        }
+        for (String name : ImmutableSet.copyOf(targets.keySet())) {
+            if (!names.contains(name)) {
+                LOG.info("Cluster member [{}] is gone or not readable anymore.", name);
+                targets.remove(name).stop();
+            }
         }
 
-        subscriber = new ProfileSubscriber(mongoClient, db, input, localRegistry);
-        subscriber.start();
+        for (ClusterMember member : members) {
+            final Target target = targets.computeIfAbsent(member.toString(), name -> {
+                LOG.info("Discovered cluster member [{}].", member);
+                final MongoClientOptions options = MongoClientOptions.builder()
+                        .readPreference(ReadPreference.nearest())
+                        .build();
+                return new Target(member, new MongoClient(member.getAddress(), credentialList, options));
+            });
+            discoverDatabases(target);
+        }
     }
 
-    @Override
-    public void stop() {
-        if (subscriber != null) {
+    /**
+     * Starts tailing the databases of a target matching the selection that have profiling enabled and aren't tailed yet.
+     */
+    private void discoverDatabases(Target target) {
+        try {
+            final Iterable<String> names = databases.isStatic() ? databases.getNames() : target.client.listDatabaseNames();
+            for (String db : names) {
+                if (target.subscribers.containsKey(db) || !databases.matches(db)) {
+                    continue;
+                }
+
+                if (!target.client.getDB(db).collectionExists("system.profile")) {
+                    LOG.debug("Profiling is not enabled for database [{}] on [{}]. Skipping.", db, target);
+                    continue;
+                }
+
+                LOG.info("Discovered profiled database [{}] on [{}].", db, target);
+                startSubscriber(target, db, new CollectionProfileSource(target.client, db, filter));
+            }
+        } catch (Exception e) {
+            LOG.error("Could not discover MongoDB databases matching [" + databases + "] on [" + target + "]. Retrying.", e);
+        }
+    }
+
+    /**
+     * @param key the database on a MongoDB target, the {@link ProfileSource#getName() name} of the file when replaying
+     */
+    private void startSubscriber(Target target, String key, ProfileSource source) {
+        final ProfileSubscriber subscriber = new ProfileSubscriber(source, target.member, context);
+        target.subscribers.put(key, subscriber);
+        try {
+            subscriber.start();
+        } catch (RejectedExecutionException e) {
+            // The input is being stopped.
+            target.subscribers.remove(key);
             subscriber.terminate();
         }
+    }
+
+    private synchronized void stopTailing() {
+        final List<ProfileSubscriber> stopped = new ArrayList<>();
+        for (Target target : targets.values()) {
+            stopped.addAll(target.subscribers.values());
+            target.stop();
+        }
+        targets.clear();
+
+        if (executor != null) {
+            executor.shutdownNow();
+            try {
+                executor.awaitTermination(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            executor = null;
+        }
 
-        serverEventBus.unregister(this);
+        if (pipeline != null) {
+            // Hand over what has been read already, so the checkpoints can cover it.
+            pipeline.shutdown(5, TimeUnit.SECONDS);
+            for (ProfileSubscriber subscriber : stopped) {
+                subscriber.checkpoint();
+            }
+            pipeline = null;
+        }
+
+        if (aggregator != null) {
+            // The last, partial window.
+            emitRollups();
+            aggregator = null;
+        }
+
+        if (checkpoints != null) {
+            checkpoints.flushQuietly();
+            checkpoints = null;
+        }
+
+        if (mongoClient != null) {
+            mongoClient.close();
+            mongoClient = null;
+        }
+    }
+
+    /**
+     * Hands the rollups of the window that just ended to the input.
+     */
+    private void emitRollups() {
+        final Date windowEnd = DateTime.now(DateTimeZone.UTC).toDate();
+        try {
+            for (DBObject rollup : aggregator.drain(rollupWindowStart, windowEnd)) {
+                input.processRawMessage(rollupParser.parseRollup(rollup));
+            }
+        } catch (Exception e) {
+            LOG.error("Could not emit MongoDB profiler rollups.", e);
+        }
+        rollupWindowStart = windowEnd;
+    }
+
+    /**
+     * Returns whether the journal asks inputs to slow down, recording the duration of throttling periods.
+     */
+    private boolean checkThrottled() {
+        final boolean throttled = isThrottled();
+        final long since = throttledSince.get();
+        if (throttled && since == 0L) {
+            if (throttledSince.compareAndSet(0L, System.nanoTime())) {
+                LOG.debug("Throttling reads of profile entries.");
+            }
+        } else if (!throttled && since != 0L && throttledSince.compareAndSet(since, 0L)) {
+            LOG.debug("Resuming reads of profile entries.");
+            throttleTime.update(System.nanoTime() - since, TimeUnit.NANOSECONDS);
+        }
+
+        return throttled;
+    }
+
+    @Override
+    protected void doStop() {
+        stopTailing();
+
+        if (throttleTimeMetric != null) {
+            localRegistry.remove(throttleTimeMetric);
+        }
+
+        if (databasesMetric != null) {
+            localRegistry.remove(databasesMetric);
+        }
+
+        if (rollupMetrics != null) {
+            localRegistry.removeMatching((name, metric) -> name.startsWith(rollupMetrics + "."));
+        }
+
+        if (samplingMetrics != null) {
+            localRegistry.removeMatching((name, metric) -> name.startsWith(samplingMetrics + "."));
+        }
+
+        if (fingerprintCacheMetrics != null) {
+            localRegistry.removeMatching((name, metric) -> name.startsWith(fingerprintCacheMetrics));
+            FingerprintCache.release(inputId);
+        }
+
+        if (inputId != null) {
+            CodecMetrics.release(inputId);
+        }
+
+        // Otherwise, ThrottleableTransport unregisters this transport itself.
+        if (!throttlingAllowed) {
+            serverEventBus.unregister(this);
+        }
     }
 
     @FactoryClass
@@ -170,15 +646,304 @@ public class MongoDBProfilerTransport implements Transport {
                     )
             );
 
+            request.addField(
+                    new DropdownField(
+                            CK_MEMBER_DISCOVERY,
+                            "Member discovery",
+                            MemberDiscovery.Mode.DRIVER.name(),
+                            MemberDiscovery.Mode.choices(),
+                            "The profiler collections are local to every mongod. Tail every configured host, every replica set member "
+                                    + "(requires the clusterMonitor role) or every member of every shard (the hostname must be a mongos) "
+                                    + "over direct connections. The user has to exist on every member.",
+                            ConfigurationField.Optional.OPTIONAL)
+            );
+
             request.addField(
                     new TextField(
                             CK_MONGO_DB,
                             "MongoDB database",
                             "",
-                            "The name of the profiled MongoDB database.",
+                            "The name of the profiled MongoDB database. You can also supply comma separated names, "
+                                    + "a regular expression enclosed in slashes like /^app_/ or * for all databases.",
                             ConfigurationField.Optional.NOT_OPTIONAL)
             );
 
+            request.addField(
+                    new NumberField(
+                            CK_DISCOVERY_INTERVAL,
+                            "Database discovery interval",
+                            DEFAULT_DISCOVERY_INTERVAL,
+                            "How often, in seconds, to look for new databases matching a regular expression or * and for new cluster members.",
+                            ConfigurationField.Optional.OPTIONAL,
+                            NumberField.Attribute.ONLY_POSITIVE
+                    )
+            );
+
+            request.addField(
+                    new TextField(
+                            CK_REPLAY_FILES,
+                            "Replay files",
+                            "",
+                            "Comma separated paths of BSON dumps of profiler collections, like dump/app/system.profile.bson, "
+                                    + "to read instead of MongoDB. Their database is the name of the directory for system.profile.bson "
+                                    + "files and the file name up to the first dot otherwise. Leave empty to read from MongoDB.",
+                            ConfigurationField.Optional.OPTIONAL)
+            );
+
+            request.addField(
+                    new DropdownField(
+                            CK_REPLAY_MODE,
+                            "Replay mode",
+                            FileProfileSource.Mode.STREAM.name(),
+                            FileProfileSource.Mode.choices(),
+                            "How to read the replay files.",
+                            ConfigurationField.Optional.OPTIONAL)
+            );
+
+            request.addField(
+                    new NumberField(
+                            CK_MIN_MILLIS,
+                            "Minimum duration",
+                            0,
+                            "Only read operations that took at least this many milliseconds. Set to 0 for all operations.",
+                            ConfigurationField.Optional.OPTIONAL,
+                            NumberField.Attribute.ONLY_POSITIVE
+                    )
+            );
+
+            request.addField(
+                    new TextField(
+                            CK_OPERATIONS,
+                            "Operations",
+                            "",
+                            "Comma separated operation types to read, like query,update,command. Leave empty for all operations.",
+                            ConfigurationField.Optional.OPTIONAL)
+            );
+
+            request.addField(
+                    new TextField(
+                            CK_EXCLUDED_OPERATIONS,
+                            "Excluded operations",
+                            "",
+                            "Comma separated operation types to skip, like getmore,killcursors.",
+                            ConfigurationField.Optional.OPTIONAL)
+            );
+
+            request.addField(
+                    new TextField(
+                            CK_NAMESPACES,
+                            "Namespaces",
+                            "",
+                            "Comma separated namespaces (database.collection) to read. You can also supply regular expressions enclosed in slashes "
+                                    + "like /^app\\.orders/. Leave empty for all namespaces.",
+                            ConfigurationField.Optional.OPTIONAL)
+            );
+
+            request.addField(
+                    new TextField(
+                            CK_EXCLUDED_NAMESPACES,
+                            "Excluded namespaces",
+                            "",
+                            "Comma separated namespaces (database.collection) or regular expressions enclosed in slashes to skip.",
+                            ConfigurationField.Optional.OPTIONAL)
+            );
+
+            request.addField(
+                    new BooleanField(
+                            CK_SAMPLING,
+                            "Sample operations?",
+                            false,
+                            "Keep every slow operation, but only a sample of the others per query shape. "
+                                    + "Messages get a sample_weight field holding the number of operations they stand for."
+                    )
+            );
+
+            request.addField(
+                    new NumberField(
+                            CK_SAMPLING_SLOW_THRESHOLD,
+                            "Sampling slow threshold",
+                            DEFAULT_SAMPLING_SLOW_THRESHOLD,
+                            "Operations taking at least this many milliseconds are never sampled out.",
+                            ConfigurationField.Optional.OPTIONAL,
+                            NumberField.Attribute.ONLY_POSITIVE
+                    )
+            );
+
+            request.addField(
+                    new NumberField(
+                            CK_SAMPLING_RATE,
+                            "Sampling rate",
+                            DEFAULT_SAMPLING_RATE,
+                            "Number of faster operations kept per query shape and minute. The operations skipped in a minute "
+                                    + "are added to the sample_weight of the next operation kept for their shape, which may be in a "
+                                    + "later minute. Those of shapes that aren't seen again within two minutes are only counted by "
+                                    + "the droppedSkips metric.",
+                            ConfigurationField.Optional.OPTIONAL,
+                            NumberField.Attribute.ONLY_POSITIVE
+                    )
+            );
+
+            request.addField(
+                    new BooleanField(
+                            CK_ROLLUPS,
+                            "Emit rollups?",
+                            false,
+                            "Emit one message per query shape (database, collection, operation and query_fields_hash) and window, "
+                                    + "with the number of operations, their latency distribution, docs scanned and returned and response bytes."
+                    )
+            );
+
+            request.addField(
+                    new NumberField(
+                            CK_ROLLUP_WINDOW,
+                            "Rollup window",
+                            DEFAULT_ROLLUP_WINDOW,
+                            "Length of the rollup windows in seconds.",
+                            ConfigurationField.Optional.OPTIONAL,
+                            NumberField.Attribute.ONLY_POSITIVE
+                    )
+            );
+
+            request.addField(
+                    new NumberField(
+                            CK_ROLLUP_MAX_SHAPES,
+                            "Rollup shapes",
+                            DEFAULT_ROLLUP_MAX_SHAPES,
+                            "Maximum number of query shapes aggregated per window. The least recently seen shapes are dropped if there are more.",
+                            ConfigurationField.Optional.OPTIONAL,
+                            NumberField.Attribute.ONLY_POSITIVE
+                    )
+            );
+
+            request.addField(
+                    new BooleanField(
+                            CK_ROLLUPS_ONLY,
+                            "Only emit rollups?",
+                            false,
+                            "Don't emit a message for every single operation if rollups are enabled."
+                    )
+            );
+
+            request.addField(
+                    new TextField(
+                            CK_CHECKPOINT_DIR,
+                            "Checkpoint directory",
+                            DEFAULT_CHECKPOINT_DIR,
+                            "Directory to keep the position of every tailed profiler collection in, so tailing resumes without gaps after a restart. "
+                                    + "Leave empty to always start with the current time.",
+                            ConfigurationField.Optional.OPTIONAL)
+            );
+
+            request.addField(
+                    new BooleanField(
+                            CK_BACKFILL,
+                            "Backfill existing entries?",
+                            false,
+                            "Read the entries already in the profiler collection when a database is tailed for the first time, instead of starting with the current time."
+                    )
+            );
+
+            request.addField(
+                    new NumberField(
+                            CK_BACKFILL_BATCH_SIZE,
+                            "Backfill batch size",
+                            DEFAULT_BACKFILL_BATCH_SIZE,
+                            "Number of existing entries read from a database at once while backfilling.",
+                            ConfigurationField.Optional.OPTIONAL,
+                            NumberField.Attribute.ONLY_POSITIVE
+                    )
+            );
+
+            request.addField(
+                    new NumberField(
+                            CK_BACKFILL_RATE,
+                            "Backfill rate",
+                            DEFAULT_BACKFILL_RATE,
+                            "Maximum number of existing entries read per second while backfilling, for all databases together. Set to 0 for no limit.",
+                            ConfigurationField.Optional.OPTIONAL,
+                            NumberField.Attribute.ONLY_POSITIVE
+                    )
+            );
+
+            request.addField(
+                    new NumberField(
+                            CK_CURSOR_BATCH_SIZE,
+                            "Cursor batch size",
+                            DEFAULT_CURSOR_BATCH_SIZE,
+                            "Number of profile entries MongoDB returns per round trip. Set to 0 for the server default.",
+                            ConfigurationField.Optional.OPTIONAL,
+                            NumberField.Attribute.ONLY_POSITIVE
+                    )
+            );
+
+            request.addField(
+                    new NumberField(
+                            CK_BATCH_SIZE,
+                            "Batch size",
+                            DEFAULT_BATCH_SIZE,
+                            "Maximum number of profile entries handed to Graylog at once.",
+                            ConfigurationField.Optional.OPTIONAL,
+                            NumberField.Attribute.ONLY_POSITIVE
+                    )
+            );
+
+            request.addField(
+                    new NumberField(
+                            CK_BATCH_MAX_LATENCY,
+                            "Batch latency",
+                            DEFAULT_BATCH_MAX_LATENCY,
+                            "Maximum time, in milliseconds, profile entries are held back to fill a batch.",
+                            ConfigurationField.Optional.OPTIONAL,
+                            NumberField.Attribute.ONLY_POSITIVE
+                    )
+            );
+
+            request.addField(
+                    new NumberField(
+                            CK_BUFFER_SIZE,
+                            "Buffer size",
+                            DEFAULT_BUFFER_SIZE,
+                            "Number of profile entries buffered between reading and processing them, rounded up to a power of two. "
+                                    + "Reading pauses while the buffer is full.",
+                            ConfigurationField.Optional.OPTIONAL,
+                            NumberField.Attribute.ONLY_POSITIVE
+                    )
+            );
+
+            request.addField(
+                    new NumberField(
+                            CK_PROCESSOR_THREADS,
+                            "Processor threads",
+                            DEFAULT_PROCESSOR_THREADS,
+                            "Number of threads encoding profile entries and handing them to Graylog.",
+                            ConfigurationField.Optional.OPTIONAL,
+                            NumberField.Attribute.ONLY_POSITIVE
+                    )
+            );
+
+            request.addField(
+                    new NumberField(
+                            CK_ENTRIES_PER_MESSAGE,
+                            "Entries per journal entry",
+                            DEFAULT_ENTRIES_PER_MESSAGE,
+                            "Maximum number of profile entries combined into a single journal entry. Higher values reduce the journal overhead "
+                                    + "of high volume inputs, up to the batch size.",
+                            ConfigurationField.Optional.OPTIONAL,
+                            NumberField.Attribute.ONLY_POSITIVE
+                    )
+            );
+
+            request.addField(
+                    new NumberField(
+                            CK_WORKER_THREADS,
+                            "Worker threads",
+                            DEFAULT_WORKER_THREADS,
+                            "Number of threads reading from the profiled databases.",
+                            ConfigurationField.Optional.OPTIONAL,
+                            NumberField.Attribute.ONLY_POSITIVE
+                    )
+            );
+
             request.addField(
                     new BooleanField(
                             CK_MONGO_USE_AUTH,
@@ -208,6 +973,15 @@ public class MongoDBProfilerTransport implements Transport {
                     )
             );
 
+            request.addField(
+                    new TextField(
+                            CK_MONGO_AUTH_DB,
+                            "MongoDB authentication database",
+                            "",
+                            "Database holding the MongoDB user. Defaults to the profiled database if there is only one, \"admin\" otherwise.",
+                            ConfigurationField.Optional.OPTIONAL)
+            );
+
             return request;
         }
     }
@@ -216,4 +990,42 @@ public class MongoDBProfilerTransport implements Transport {
     public MetricSet getMetricSet() {
         return localRegistry;
     }
+
+    /**
+     * A mongod, or the member selected by the driver, and the subscribers tailing its databases. The subscribers
+     * reading replay files have a target without member and client.
+     */
+    private static class Target {
+        @Nullable
+        private final ClusterMember member;
+        @Nullable
+        private final MongoClient client;
+        private final ConcurrentMap<String, ProfileSubscriber> subscribers = new ConcurrentHashMap<>();
+
+        private Target(@Nullable ClusterMember member, @Nullable MongoClient client) {
+            this.member = member;
+            this.client = client;
+        }
+
+        private void stop() {
+            for (ProfileSubscriber subscriber : subscribers.values()) {
+                subscriber.terminate();
+            }
+            subscribers.clear();
+
+            // The shared client is closed separately.
+            if (member != null) {
+                client.close();
+            }
+        }
+
+        @Override
+        public String toString() {
+            if (member != null) {
+                return member.toString();
+            }
+
+            return client == null ? "replay files" : "default member";
+        }
+    }
 }
@@ -0,0 +1,169 @@
+package com.graylog2.inputs.mongoprofiler.input.mongodb;
+
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.graylog2.inputs.mongoprofiler.input.mongodb.parser.Parser;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import com.mongodb.QueryBuilder;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Selects the profile entries read by an input. The conditions are part of the cursor's query, so entries
+ * that aren't wanted never leave the server. Sources that can't be queried check every entry instead.
+ *
+ * Operations are given as comma separated lists of "op" values. Namespaces are given as comma separated lists
+ * of "database.collection" names or regular expressions enclosed in slashes, like {@code /^app\.orders_/}.
+ */
+public class ProfileFilter {
+    public static final ProfileFilter ALL = new ProfileFilter(0, ImmutableSet.of(), ImmutableSet.of(),
+            ImmutableList.of(), ImmutableList.of());
+
+    private static final DBObject PROJECTION;
+
+    static {
+        final BasicDBObject projection = new BasicDBObject();
+        for (String field : Parser.PROFILE_PATHS) {
+            projection.put(field, 1);
+        }
+        // Returned unless excluded explicitly.
+        projection.put("_id", 0);
+        PROJECTION = projection;
+    }
+
+    private final int minMillis;
+    private final Set<String> operations;
+    private final Set<String> excludedOperations;
+    private final List<Object> namespaces;
+    private final List<Object> excludedNamespaces;
+
+    private ProfileFilter(int minMillis, Set<String> operations, Set<String> excludedOperations,
+                          List<Object> namespaces, List<Object> excludedNamespaces) {
+        this.minMillis = minMillis;
+        this.operations = operations;
+        this.excludedOperations = excludedOperations;
+        this.namespaces = namespaces;
+        this.excludedNamespaces = excludedNamespaces;
+    }
+
+    /**
+     * @param minMillis          the minimum duration of an operation, 0 for all operations
+     * @param operations         the operations to read, empty for all
+     * @param excludedOperations the operations to skip
+     * @param namespaces         the namespaces to read, empty for all
+     * @param excludedNamespaces the namespaces to skip
+     */
+    public static ProfileFilter parse(int minMillis, @Nullable String operations, @Nullable String excludedOperations,
+                                      @Nullable String namespaces, @Nullable String excludedNamespaces) {
+        checkArgument(minMillis >= 0, "The minimum duration must not be negative.");
+
+        return new ProfileFilter(
+                minMillis,
+                ImmutableSet.copyOf(split(operations)),
+                ImmutableSet.copyOf(split(excludedOperations)),
+                parseNamespaces(namespaces),
+                parseNamespaces(excludedNamespaces));
+    }
+
+    private static Iterable<String> split(@Nullable String list) {
+        return Splitter.on(',').trimResults().omitEmptyStrings().split(list == null ? "" : list);
+    }
+
+    private static List<Object> parseNamespaces(@Nullable String list) {
+        final List<Object> namespaces = new ArrayList<>();
+        for (String namespace : split(list)) {
+            if (namespace.length() > 1 && namespace.startsWith("/") && namespace.endsWith("/")) {
+                try {
+                    namespaces.add(Pattern.compile(namespace.substring(1, namespace.length() - 1)));
+                } catch (PatternSyntaxException e) {
+                    throw new IllegalArgumentException("Invalid MongoDB namespace pattern " + namespace, e);
+                }
+            } else {
+                namespaces.add(namespace);
+            }
+        }
+
+        return ImmutableList.copyOf(namespaces);
+    }
+
+    /**
+     * Adds the conditions to a query on the profiler collection of {@code database}. Entries about the
+     * profiler collection itself are always skipped.
+     */
+    public QueryBuilder apply(QueryBuilder query, String database) {
+        final List<Object> excluded = new ArrayList<>(excludedNamespaces.size() + 1);
+        excluded.add(database + ".system.profile");
+        excluded.addAll(excludedNamespaces);
+        query.and("ns").notIn(excluded);
+        if (!namespaces.isEmpty()) {
+            query.and("ns").in(namespaces);
+        }
+
+        if (!operations.isEmpty()) {
+            query.and("op").in(operations);
+        }
+        if (!excludedOperations.isEmpty()) {
+            query.and("op").notIn(excludedOperations);
+        }
+
+        if (minMillis > 0) {
+            query.and("millis").greaterThanEquals(minMillis);
+        }
+
+        return query;
+    }
+
+    /**
+     * Whether a profile entry of {@code database} matches the conditions, for sources that can't be queried.
+     */
+    public boolean matches(DBObject doc, String database) {
+        final Object ns = doc.get("ns");
+        if ((database + ".system.profile").equals(ns) || matchesAny(excludedNamespaces, ns)) {
+            return false;
+        }
+        if (!namespaces.isEmpty() && !matchesAny(namespaces, ns)) {
+            return false;
+        }
+
+        final Object op = doc.get("op");
+        if (!operations.isEmpty() && !operations.contains(op) || excludedOperations.contains(op)) {
+            return false;
+        }
+
+        if (minMillis > 0) {
+            final Object millis = doc.get("millis");
+            return millis instanceof Number && ((Number) millis).doubleValue() >= minMillis;
+        }
+
+        return true;
+    }
+
+    private static boolean matchesAny(List<Object> namespaces, @Nullable Object ns) {
+        for (Object namespace : namespaces) {
+            // Like the server, patterns match anywhere in the namespace unless anchored.
+            if (namespace instanceof Pattern
+                    ? ns instanceof String && ((Pattern) namespace).matcher((String) ns).find()
+                    : namespace.equals(ns)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * The fields to read from the profile entries, everything the parser doesn't use is left on the server.
+     */
+    public DBObject getProjection() {
+        return PROJECTION;
+    }
+}
@@ -0,0 +1,197 @@
+package com.graylog2.inputs.mongoprofiler.input.mongodb;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Timer;
+import com.graylog2.inputs.mongoprofiler.input.mongodb.parser.RawParser;
+import com.graylog2.inputs.mongoprofiler.input.mongodb.parser.RawProfileDocument;
+import com.lmax.disruptor.BlockingWaitStrategy;
+import com.lmax.disruptor.InsufficientCapacityException;
+import com.lmax.disruptor.RingBuffer;
+import com.lmax.disruptor.TimeoutException;
+import com.lmax.disruptor.WorkHandler;
+import com.lmax.disruptor.dsl.Disruptor;
+import com.lmax.disruptor.dsl.ProducerType;
+import org.graylog2.plugin.LocalMetricRegistry;
+import org.graylog2.plugin.inputs.MessageInput;
+import org.graylog2.plugin.journal.RawMessage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import static com.codahale.metrics.MetricRegistry.name;
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Hands the profile entries read by the subscribers of an input to a pool of processor threads, which
+ * encode them and submit them to the input.
+ *
+ * A bounded ring buffer decouples reading from processing. Publishing never blocks: if the buffer is full,
+ * subscribers stop reading until the processors caught up, so back-pressure reaches the cursors.
+ *
+ * Every slot of the buffer holds the entries of one message. With more than one entry per message, the
+ * entries of a batch are combined into journal entries of up to that many profile documents.
+ */
+public class ProfilePipeline {
+    private static final Logger LOG = LoggerFactory.getLogger(ProfilePipeline.class);
+
+    private final LocalMetricRegistry metricRegistry;
+    private final String metricName;
+    private final Disruptor<Entry> disruptor;
+    private final RingBuffer<Entry> ringBuffer;
+    private final int entriesPerMessage;
+
+    private final Meter backPressure;
+    private final Meter dropped;
+    private final Timer queueTime;
+    private final Timer processTime;
+    private final Timer serializeTime;
+
+    /**
+     * @param bufferSize        minimum number of messages the buffer holds, rounded up to a power of two
+     * @param entriesPerMessage maximum number of profile entries combined into one message
+     */
+    public ProfilePipeline(MessageInput sourceInput, LocalMetricRegistry metricRegistry, int bufferSize, int processors,
+                           int entriesPerMessage, ThreadFactory threadFactory) {
+        checkArgument(bufferSize > 0, "The buffer size must be positive.");
+        checkArgument(processors > 0, "The number of processors must be positive.");
+        checkArgument(entriesPerMessage > 0, "The number of entries per message must be positive.");
+        this.entriesPerMessage = entriesPerMessage;
+
+        this.metricRegistry = metricRegistry;
+        this.metricName = name(sourceInput.getUniqueReadableId(), "pipeline");
+        this.backPressure = metricRegistry.meter(name(metricName, "backPressure"));
+        this.dropped = metricRegistry.meter(name(metricName, "dropped"));
+        this.queueTime = metricRegistry.timer(name(metricName, "queueTime"));
+        this.processTime = metricRegistry.timer(name(metricName, "processTime"));
+        this.serializeTime = metricRegistry.timer(name(metricName, "serializeTime"));
+
+        this.disruptor = new Disruptor<>(
+                Entry::new,
+                ringBufferSize(bufferSize),
+                threadFactory,
+                ProducerType.MULTI,
+                new BlockingWaitStrategy());
+
+        @SuppressWarnings("unchecked")
+        final WorkHandler<Entry>[] handlers = (WorkHandler<Entry>[]) new WorkHandler<?>[processors];
+        for (int i = 0; i < processors; i++) {
+            handlers[i] = entry -> process(sourceInput, entry);
+        }
+        disruptor.handleEventsWithWorkerPool(handlers);
+
+        this.ringBuffer = disruptor.start();
+
+        metricRegistry.register(name(metricName, "occupancy"),
+                (Gauge<Long>) () -> ringBuffer.getBufferSize() - ringBuffer.remainingCapacity());
+    }
+
+    public int getBufferSize() {
+        return ringBuffer.getBufferSize();
+    }
+
+    /**
+     * Publishes all given entries, or none of them if there is not enough room left in the buffer.
+     *
+     * @param serializeTime the subscriber's timer for encoding the entries, in addition to the input's
+     * @return the sequence of the last published message, -1 if the buffer is full
+     */
+    public long tryPublish(List<RawProfileDocument> docs, RawParser rawParser, @Nullable Timer serializeTime) {
+        final int messages = (docs.size() + entriesPerMessage - 1) / entriesPerMessage;
+        final long hi;
+        try {
+            hi = ringBuffer.tryNext(messages);
+        } catch (InsufficientCapacityException e) {
+            backPressure.mark();
+            return -1L;
+        }
+
+        final long lo = hi - messages + 1;
+        final long now = System.nanoTime();
+        for (int i = 0; i < messages; i++) {
+            final Entry entry = ringBuffer.get(lo + i);
+            final int from = i * entriesPerMessage;
+            // The caller reuses its list.
+            entry.docs = entriesPerMessage == 1
+                    ? Collections.singletonList(docs.get(from))
+                    : new ArrayList<>(docs.subList(from, Math.min(from + entriesPerMessage, docs.size())));
+            entry.rawParser = rawParser;
+            entry.serializeTime = serializeTime;
+            entry.published = now;
+        }
+        ringBuffer.publish(lo, hi);
+
+        return hi;
+    }
+
+    /**
+     * All entries up to and including this sequence have been handed to the input.
+     */
+    public long getProcessedSequence() {
+        return ringBuffer.getMinimumGatingSequence();
+    }
+
+    /**
+     * Waits until the published entries have been processed, then stops the processor threads.
+     */
+    public void shutdown(long timeout, TimeUnit unit) {
+        try {
+            disruptor.shutdown(timeout, unit);
+        } catch (TimeoutException e) {
+            LOG.warn("Profile entries still not processed after {} {}. Dropping them.", timeout, unit);
+            disruptor.halt();
+        }
+
+        metricRegistry.removeMatching((name, metric) -> name.startsWith(metricName + "."));
+    }
+
+    private static int ringBufferSize(int minimumSize) {
+        int size = 1;
+        while (size < minimumSize) {
+            size <<= 1;
+        }
+
+        return size;
+    }
+
+    private void process(MessageInput sourceInput, Entry entry) {
+        final long start = System.nanoTime();
+        queueTime.update(start - entry.published, TimeUnit.NANOSECONDS);
+
+        try {
+            final RawMessage rawMessage = entry.docs.size() == 1
+                    ? entry.rawParser.parse(entry.docs.get(0))
+                    : entry.rawParser.parse(entry.docs);
+
+            final long serialized = System.nanoTime() - start;
+            serializeTime.update(serialized, TimeUnit.NANOSECONDS);
+            if (entry.serializeTime != null) {
+                entry.serializeTime.update(serialized, TimeUnit.NANOSECONDS);
+            }
+
+            sourceInput.processRawMessage(rawMessage);
+        } catch (Exception e) {
+            dropped.mark(entry.docs.size());
+            LOG.error("Error when trying to process profile info.", e);
+        } finally {
+            // Don't keep the documents alive until the slot is reused.
+            entry.docs = null;
+            entry.rawParser = null;
+            entry.serializeTime = null;
+            processTime.update(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private static class Entry {
+        private List<RawProfileDocument> docs;
+        private RawParser rawParser;
+        private Timer serializeTime;
+        private long published;
+    }
+}
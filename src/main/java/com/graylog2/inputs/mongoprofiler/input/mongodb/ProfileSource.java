@@ -0,0 +1,66 @@
+package com.graylog2.inputs.mongoprofiler.input.mongodb;
+
+import com.graylog2.inputs.mongoprofiler.input.mongodb.parser.RawProfileDocument;
+
+import javax.annotation.Nullable;
+import java.util.Date;
+import java.util.function.IntConsumer;
+
+/**
+ * Where a {@link ProfileSubscriber} reads the profile entries of a single database from, in the order they
+ * were written.
+ */
+public interface ProfileSource {
+    /**
+     * The name of the database the entries belong to.
+     */
+    String getDatabase();
+
+    /**
+     * The name the checkpoint and the metrics of the source's subscriber are kept under. Several sources of
+     * an input may read the same database, but their names differ.
+     */
+    default String getName() {
+        return getDatabase();
+    }
+
+    /**
+     * Whether entries can be read yet. Subscribers check this again after a while if not.
+     */
+    boolean isReady();
+
+    /**
+     * Opens a cursor returning the entries as they are written.
+     *
+     * @param from      the timestamp of the first entry to return, {@code null} to start where the source starts
+     *                  by default, for a profiler collection with the entries written from now on
+     * @param batchSize the number of entries to fetch at once, 0 for the source's default
+     * @param onRead    called with the size in bytes of every entry fetched
+     */
+    Cursor tail(@Nullable Date from, int batchSize, IntConsumer onRead);
+
+    /**
+     * Opens a cursor over the entries that exist now.
+     *
+     * @param from      the timestamp of the first entry to return, {@code null} for all entries
+     * @param batchSize the number of entries to fetch at once, 0 for the source's default
+     * @param onRead    called with the size in bytes of every entry fetched
+     */
+    Cursor read(@Nullable Date from, int batchSize, IntConsumer onRead);
+
+    interface Cursor extends AutoCloseable {
+        /**
+         * Returns the next entry, {@code null} if there is none right now.
+         */
+        @Nullable
+        RawProfileDocument tryNext();
+
+        /**
+         * Whether the cursor won't return any more entries. Tailing continues with a new cursor.
+         */
+        boolean isExhausted();
+
+        @Override
+        void close();
+    }
+}
@@ -1,140 +1,466 @@
 package com.graylog2.inputs.mongoprofiler.input.mongodb;
 
+import com.codahale.metrics.Gauge;
 import com.codahale.metrics.Meter;
-import com.github.rholder.retry.RetryException;
-import com.github.rholder.retry.Retryer;
-import com.github.rholder.retry.RetryerBuilder;
-import com.github.rholder.retry.StopStrategies;
-import com.github.rholder.retry.WaitStrategies;
-import com.google.common.base.Throwables;
-import com.google.common.util.concurrent.Uninterruptibles;
+import com.codahale.metrics.Timer;
 import com.graylog2.inputs.mongoprofiler.input.mongodb.parser.RawParser;
-import com.mongodb.BasicDBObject;
-import com.mongodb.Bytes;
-import com.mongodb.DB;
-import com.mongodb.DBCollection;
-import com.mongodb.DBCursor;
-import com.mongodb.DBObject;
-import com.mongodb.MongoClient;
-import com.mongodb.QueryBuilder;
+import com.graylog2.inputs.mongoprofiler.input.mongodb.parser.RawProfileDocument;
 import org.graylog2.plugin.LocalMetricRegistry;
-import org.graylog2.plugin.inputs.MessageInput;
 import org.joda.time.DateTime;
 import org.joda.time.DateTimeZone;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.IOException;
-import java.util.concurrent.ExecutionException;
+import javax.annotation.Nullable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.IntConsumer;
 
 import static com.codahale.metrics.MetricRegistry.name;
-import static com.google.common.base.Preconditions.checkArgument;
 
-public class ProfileSubscriber extends Thread {
+/**
+ * Tails the profile entries of a single database, usually the "system.profile" collection.
+ *
+ * The subscribers of all databases of an input share a small worker pool. Every run reads what is currently
+ * available from the tailable cursor, up to {@link #MAX_READS_PER_RUN} entries, and then reschedules itself,
+ * so a busy database can't starve the others and idle databases don't occupy a thread.
+ *
+ * Entries are published to the input's {@link ProfilePipeline} in batches, which are flushed when they are full,
+ * when they have been held back for the maximum latency, when there is nothing more to read for now and at the
+ * end of every run. If the pipeline is full, reading pauses until the batch could be published.
+ */
+public class ProfileSubscriber implements Runnable {
     private static final Logger LOG = LoggerFactory.getLogger(ProfileSubscriber.class);
 
-    private final MongoClient mongoClient;
-    private final DB db;
-    private final DBCollection profile;
+    private static final int MAX_READS_PER_RUN = 1000;
+    private static final long IDLE_DELAY_MILLIS = 250;
+    private static final long RETRY_DELAY_MILLIS = 1000;
+    private static final long READY_CHECK_DELAY_MILLIS = 30000;
+    private static final long BACKFILL_THROTTLE_DELAY_MILLIS = 100;
+    private static final long THROTTLED_DELAY_MILLIS = 100;
+    private static final long BACK_PRESSURE_DELAY_MILLIS = 10;
 
-    private final MessageInput sourceInput;
+    private final ProfileSource source;
 
+    private final TailingContext context;
+    private final ProfilePipeline pipeline;
+    private final ScheduledExecutorService executor;
+    private final RawParser rawParser;
+    @Nullable
+    private final Sampler sampler;
+    @Nullable
+    private final RollupAggregator aggregator;
+    private final boolean rollupsOnly;
+    private final String description;
+    private final int maxReadsPerRun;
+    private final long maxBatchLatencyNanos;
+
+    private final LocalMetricRegistry metricRegistry;
+    private final String databaseMetrics;
     private final Meter newCursors;
     private final Meter cursorReads;
+    private final Meter databaseReads;
+    private final Meter backfillReads;
+    private final Meter sampledOut;
+    private final Meter bytesRead;
+    private final Meter databaseBytesRead;
+    private final Timer fetchTime;
+    private final Timer serializeTime;
 
-    private AtomicBoolean stopRequested;
+    private final AtomicBoolean stopRequested;
 
-    public ProfileSubscriber(MongoClient mongoClient, String dbName, MessageInput sourceInput, LocalMetricRegistry metricRegistry) {
-        LOG.debug("Connecting ProfileSubscriber.");
+    // Only used by the run currently executing. Runs of one subscriber never overlap.
+    private ProfileSource.Cursor cursor;
+    private final IntConsumer onRead;
+    // Number of entries fetched by the source, which only happens when it received a reply.
+    private long fetched;
+    private boolean ready;
+    private final List<RawProfileDocument> batch;
+    private long batchStart;
 
-        this.stopRequested = new AtomicBoolean(false);
+    // Read positions after published batches, by the pipeline sequence of the batch's last entry.
+    private final Deque<Position> published = new ArrayDeque<>();
+    private long lastSequence = -1L;
+    // Position up to which all entries have been handed to the input.
+    private Position processed;
 
-        this.mongoClient = mongoClient;
+    @Nullable
+    private final CheckpointStore checkpoints;
 
-        this.db = mongoClient.getDB(dbName);
+    // Timestamp of the last profile entry read and the number of entries read with exactly this timestamp.
+    // New cursors resume from here, skipping the entries that were already read. Checkpoints only ever
+    // record the processed position.
+    private volatile Date lastTimestamp;
+    private int lastTimestampCount;
+    private int skip;
 
-        checkArgument(db.collectionExists("system.profile"), "The \"system.profile\" collection doesn't exist in database \"%s\". Please enable profiling for database \"%s\"", dbName, dbName);
-        this.profile = db.getCollection("system.profile");
+    // Set while the existing entries are read, before tailing starts.
+    @Nullable
+    private final Backfill backfill;
+    private boolean backfilling;
+    private final Date backfillStart;
 
-        this.sourceInput = sourceInput;
+    /**
+     * @param member the member the entries of {@code source} are written by, {@code null} if unknown
+     */
+    public ProfileSubscriber(ProfileSource source, @Nullable ClusterMember member, TailingContext context) {
+        final String sourceName = source.getName();
+        this.description = member == null ? sourceName : sourceName + "@" + member;
+        LOG.debug("Connecting ProfileSubscriber for database [{}].", description);
+
+        this.stopRequested = new AtomicBoolean(false);
+        this.source = source;
+
+        this.context = context;
+        this.pipeline = context.getPipeline();
+        this.executor = context.getExecutor();
+        this.rawParser = new RawParser(member == null ? null : member.getMessageFields());
+        this.sampler = context.getSampler();
+        this.aggregator = context.getAggregator();
+        this.rollupsOnly = context.isRollupsOnly();
+        this.metricRegistry = context.getMetricRegistry();
+        this.maxReadsPerRun = Math.max(MAX_READS_PER_RUN, context.getBatchSize());
+        this.maxBatchLatencyNanos = TimeUnit.MILLISECONDS.toNanos(context.getMaxBatchLatencyMillis());
+        this.batch = new ArrayList<>(context.getBatchSize());
+
+        this.checkpoints = context.getCheckpoints();
+        final CheckpointStore.Checkpoint checkpoint = checkpoints == null ? null : checkpoints.get(description);
+        if (checkpoint != null) {
+            LOG.info("Resuming database [{}] from checkpoint {}.", description, checkpoint);
+            this.lastTimestamp = new Date(checkpoint.getTimestamp());
+            this.lastTimestampCount = checkpoint.getCount();
+            this.processed = new Position(-1L, lastTimestamp, lastTimestampCount);
+        }
 
-        String metricName = sourceInput.getUniqueReadableId();
+        this.backfill = context.getBackfill();
+        this.backfilling = backfill != null && lastTimestamp == null;
+        this.backfillStart = DateTime.now(DateTimeZone.UTC).toDate();
+
+        String metricName = context.getSourceInput().getUniqueReadableId();
         this.cursorReads = metricRegistry.meter(name(metricName, "cursorReads"));
         this.newCursors = metricRegistry.meter(name(metricName, "newCursors"));
+        this.sampledOut = metricRegistry.meter(name(metricName, "sampledOut"));
+        this.bytesRead = metricRegistry.meter(name(metricName, "bytesRead"));
+
+        // Database names never contain these, but the paths of replayed files do.
+        final String sourceMetricName = sourceName.replaceAll("[.:]", "_");
+        this.databaseMetrics = member == null
+                ? name(metricName, "databases", sourceMetricName)
+                : name(metricName, "members", member.getMetricName(), "databases", sourceMetricName);
+        this.databaseReads = metricRegistry.meter(name(databaseMetrics, "cursorReads"));
+        this.backfillReads = metricRegistry.meter(name(databaseMetrics, "backfillReads"));
+        this.databaseBytesRead = metricRegistry.meter(name(databaseMetrics, "bytesRead"));
+        this.fetchTime = metricRegistry.timer(name(databaseMetrics, "fetchTime"));
+        this.serializeTime = metricRegistry.timer(name(databaseMetrics, "serializeTime"));
+        metricRegistry.register(name(databaseMetrics, "lagMillis"), (Gauge<Long>) () -> {
+            final Date ts = lastTimestamp;
+            return ts == null ? 0L : Math.max(0L, System.currentTimeMillis() - ts.getTime());
+        });
+
+        this.onRead = size -> {
+            fetched++;
+            bytesRead.mark(size);
+            databaseBytesRead.mark(size);
+        };
+    }
+
+    public void start() {
+        executor.execute(this);
     }
 
     @Override
     public void run() {
-        // Wait until the collection is ready. (It is capped after profiling is turned on)
-        if (!this.profile.isCapped()) {
-            LOG.warn("Profiler collection is not capped. Please enable profiling for database [{}]", this.db.getName());
+        if (this.stopRequested.get()) {
+            closeCursor();
+            return;
+        }
 
-            final Retryer<Boolean> retryer = RetryerBuilder.<Boolean>newBuilder()
-                    .retryIfResult(result -> !result)
-                    .retryIfException()
-                    .withStopStrategy(StopStrategies.neverStop())
-                    .withWaitStrategy(WaitStrategies.exponentialWait(30L, TimeUnit.SECONDS))
-                    .build();
+        long delay;
+        try {
+            if (!flush()) {
+                // A batch is still waiting for room in the pipeline.
+                delay = BACK_PRESSURE_DELAY_MILLIS;
+            } else {
+                // Keep the cursor while throttled, reading simply continues where it stopped.
+                delay = context.isThrottled() ? THROTTLED_DELAY_MILLIS : poll();
+            }
+        } catch (Exception e) {
+            LOG.error("Error when reading MongoDB profile information from database [" + description + "]. Retrying.", e);
+            closeCursor();
 
-            try {
-                retryer.call(profile::isCapped);
-            } catch (ExecutionException | RetryException e) {
-                final Throwable rootCause = Throwables.getRootCause(e);
-                Throwables.propagate(rootCause);
+            // Something broke if we get here. Retry soonish.
+            delay = RETRY_DELAY_MILLIS;
+        }
+
+        // The batch doesn't depend on the cursor, so it is kept if the pipeline is full.
+        flush();
+        checkpoint();
+
+        if (this.stopRequested.get()) {
+            closeCursor();
+            return;
+        }
+
+        try {
+            executor.schedule(this, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // The worker pool has been shut down.
+            closeCursor();
+        }
+    }
+
+    /**
+     * Reads the profile entries currently available and returns the delay until the next run.
+     */
+    private long poll() {
+        if (!ready) {
+            if (!source.isReady()) {
+                return READY_CHECK_DELAY_MILLIS;
             }
+            ready = true;
         }
 
-        final RawParser rawParser = new RawParser();
-        while (!this.stopRequested.get()) {
-            LOG.info("Building new cursor.");
+        if (backfilling) {
+            return pollBackfill();
+        }
+
+        if (cursor == null) {
+            LOG.info("Building new cursor for database [{}].", description);
             newCursors.mark();
-            try (final DBCursor cursor = profile.find(query())
-                    .sort(new BasicDBObject("$natural", 1))
-                    .addOption(Bytes.QUERYOPTION_TAILABLE)
-                    .addOption(Bytes.QUERYOPTION_AWAITDATA)) {
-                while (!this.stopRequested.get() && cursor.hasNext()) {
-                    cursorReads.mark();
-
-                    if (this.stopRequested.get()) {
-                        LOG.info("Stop requested.");
-                        return;
-                    }
-
-                    try {
-                        sourceInput.processRawMessage(rawParser.parse(cursor.next()));
-                    } catch (IOException e) {
-                        LOG.error("Cannot serialize profile info.", e);
-                    } catch (Exception e) {
-                        LOG.error("Error when trying to parse profile info.", e);
-                    }
+            skip = lastTimestampCount;
+            // Entries sharing the last timestamp are skipped in natural order, see skip.
+            cursor = source.tail(lastTimestamp, context.getCursorBatchSize(), onRead);
+        }
+
+        for (int i = 0; i < maxReadsPerRun; i++) {
+            if (this.stopRequested.get()) {
+                LOG.info("Stop requested.");
+                return 0;
+            }
+
+            final RawProfileDocument next = tryNext();
+            if (next == null) {
+                // Nothing more to wait for.
+                if (!flush()) {
+                    return BACK_PRESSURE_DELAY_MILLIS;
                 }
-            } catch (Exception e) {
-                LOG.error("Error when reading MongoDB profile information. Retrying.", e);
+
+                if (cursor.isExhausted()) {
+                    closeCursor();
+                    return RETRY_DELAY_MILLIS;
+                }
+
+                return IDLE_DELAY_MILLIS;
             }
 
-            // Something broke if we get here. Retry soonish.
-            if (!this.stopRequested.get()) {
-                Uninterruptibles.sleepUninterruptibly(1, TimeUnit.SECONDS);
+            process(next);
+            if (batchDue() && !flush()) {
+                return BACK_PRESSURE_DELAY_MILLIS;
+            }
+        }
+
+        // There is more to read, but give the other databases a turn first.
+        return 0;
+    }
+
+    /**
+     * Reads one batch of the entries that existed before tailing started, with a regular cursor.
+     */
+    private long pollBackfill() {
+        if (!backfill.tryAcquireBatch()) {
+            return BACKFILL_THROTTLE_DELAY_MILLIS;
+        }
+
+        if (cursor == null) {
+            LOG.info("Backfilling existing profile entries of database [{}].", description);
+            newCursors.mark();
+            skip = lastTimestampCount;
+            // Resumes from the last entry read after an error.
+            cursor = source.read(lastTimestamp, backfill.getBatchSize(), onRead);
+        }
+
+        for (int i = 0; i < backfill.getBatchSize(); i++) {
+            if (this.stopRequested.get()) {
+                LOG.info("Stop requested.");
+                return 0;
+            }
+
+            final RawProfileDocument next = tryNext();
+            if (next == null) {
+                break;
+            }
+
+            backfillReads.mark();
+            process(next);
+            if (batchDue() && !flush()) {
+                return BACK_PRESSURE_DELAY_MILLIS;
             }
         }
+
+        if (cursor.isExhausted()) {
+            LOG.info("Backfill of database [{}] complete. Tailing from now on.", description);
+            closeCursor();
+            backfilling = false;
+
+            // Tail everything written since the backfill started if there was nothing to backfill.
+            if (lastTimestamp == null) {
+                lastTimestamp = backfillStart;
+                lastTimestampCount = 0;
+            }
+        }
+
+        return 0;
+    }
+
+    @Nullable
+    private RawProfileDocument tryNext() {
+        final long fetchedBefore = fetched;
+        final long start = System.nanoTime();
+        final RawProfileDocument next = cursor.tryNext();
+        if (next == null || fetched != fetchedBefore) {
+            // Nothing was buffered, so a reply had to be fetched from the server.
+            fetchTime.update(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+
+        return next;
+    }
+
+    private void process(RawProfileDocument doc) {
+        try {
+            final Date ts = doc.getTimestamp();
+            if (skip > 0 && ts != null && ts.equals(lastTimestamp)) {
+                // Already processed before the cursor was (re)built.
+                skip--;
+                return;
+            }
+            skip = 0;
+
+            if (aggregator != null) {
+                // Rollups cover all entries, not just the sampled ones.
+                aggregator.add(doc);
+            }
+
+            if (!rollupsOnly) {
+                batch(doc);
+            }
+
+            // Skipped entries move the position as well.
+            if (ts != null) {
+                if (ts.equals(lastTimestamp)) {
+                    lastTimestampCount++;
+                } else if (lastTimestamp == null || ts.after(lastTimestamp)) {
+                    lastTimestamp = ts;
+                    lastTimestampCount = 1;
+                }
+            }
+        } catch (Exception e) {
+            LOG.error("Error when trying to parse profile info.", e);
+        }
+    }
+
+    private void batch(RawProfileDocument doc) {
+        final int sampleWeight = sampler == null ? 0 : sampler.sample(doc);
+        if (sampler != null && sampleWeight == 0) {
+            sampledOut.mark();
+            return;
+        }
+
+        doc.setSampleWeight(sampleWeight);
+        if (batch.isEmpty()) {
+            batchStart = System.nanoTime();
+        }
+        batch.add(doc);
+    }
+
+    private boolean batchDue() {
+        return batch.size() >= context.getBatchSize() || System.nanoTime() - batchStart >= maxBatchLatencyNanos;
+    }
+
+    /**
+     * Publishes the batched entries to the pipeline.
+     *
+     * @return whether the batch is empty now, {@code false} if there was not enough room in the pipeline
+     */
+    private boolean flush() {
+        if (batch.isEmpty()) {
+            // Entries skipped since the last batch may have moved the position.
+            recordPosition(lastSequence);
+            return true;
+        }
+
+        final long sequence = pipeline.tryPublish(batch, rawParser, serializeTime);
+        if (sequence < 0) {
+            return false;
+        }
+
+        // The batch holds everything read so far.
+        lastSequence = sequence;
+        recordPosition(sequence);
+        cursorReads.mark(batch.size());
+        databaseReads.mark(batch.size());
+        batch.clear();
+
+        return true;
+    }
+
+    /**
+     * Records that everything read so far has been handed to the input once the pipeline passed {@code sequence}.
+     */
+    private void recordPosition(long sequence) {
+        final Position last = published.isEmpty() ? processed : published.peekLast();
+        if (lastTimestamp != null && (last == null || !lastTimestamp.equals(last.timestamp) || lastTimestampCount != last.count)) {
+            published.add(new Position(sequence, lastTimestamp, lastTimestampCount));
+        }
+    }
+
+    /**
+     * Records the position up to which all published entries have been processed in the checkpoint store.
+     * Must not be called concurrently with a run.
+     */
+    public void checkpoint() {
+        final long processedSequence = pipeline.getProcessedSequence();
+        while (!published.isEmpty() && published.peek().sequence <= processedSequence) {
+            processed = published.poll();
+        }
+
+        if (checkpoints != null && processed != null) {
+            checkpoints.update(description, new CheckpointStore.Checkpoint(processed.timestamp.getTime(), processed.count));
+        }
     }
 
     public void terminate() {
         this.stopRequested.set(true);
 
-        if (mongoClient != null) {
-            mongoClient.close();
+        metricRegistry.removeMatching((name, metric) -> name.startsWith(databaseMetrics + "."));
+    }
+
+    private void closeCursor() {
+        if (cursor != null) {
+            try {
+                cursor.close();
+            } catch (Exception e) {
+                LOG.debug("Could not close cursor of database [{}].", description, e);
+            }
+            cursor = null;
         }
     }
 
-    private DBObject query() {
-        return QueryBuilder
-                .start("ts").greaterThan(DateTime.now(DateTimeZone.UTC).toDate())
-                .and("ns").notEquals(db.getName() + ".system.profile")
-                .get();
+    private static class Position {
+        private final long sequence;
+        private final Date timestamp;
+        private final int count;
 
+        private Position(long sequence, Date timestamp, int count) {
+            this.sequence = sequence;
+            this.timestamp = timestamp;
+            this.count = count;
+        }
     }
-
 }
@@ -0,0 +1,238 @@
+package com.graylog2.inputs.mongoprofiler.input.mongodb;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricSet;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableMap;
+import com.graylog2.inputs.mongoprofiler.input.mongodb.normalizer.ArrayNormalization;
+import com.graylog2.inputs.mongoprofiler.input.mongodb.normalizer.FingerprintAlgorithm;
+import com.graylog2.inputs.mongoprofiler.input.mongodb.normalizer.FingerprintCache;
+import com.graylog2.inputs.mongoprofiler.input.mongodb.normalizer.Normalizer;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import org.HdrHistogram.AbstractHistogram;
+import org.HdrHistogram.IntCountsHistogram;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Keeps running statistics of the profile entries of an input per query shape, to be emitted as one rollup
+ * message per shape and window instead of, or in addition to, the raw entries.
+ *
+ * A shape is the database, collection, operation and the "query_fields_hash" of the query or command, which
+ * is computed exactly like the message field. The number of shapes is bounded, the least recently seen
+ * shapes of a window are dropped when there are too many. Windows are based on the time entries are read.
+ */
+public class RollupAggregator {
+    public static final String FIELD_WINDOW_START = "window_start";
+    public static final String FIELD_COUNT = "count";
+
+    private static final int HISTOGRAM_PRECISION = 2;
+
+    private final FingerprintAlgorithm algorithm;
+    private final ArrayNormalization arrayNormalization;
+    @Nullable
+    private final FingerprintCache fingerprintCache;
+    private final Cache<Key, Shape> shapes;
+
+    /**
+     * @param fingerprintCache the cache the codecs of the input use, if any
+     */
+    public RollupAggregator(FingerprintAlgorithm algorithm, ArrayNormalization arrayNormalization,
+                            @Nullable FingerprintCache fingerprintCache, int maxShapes) {
+        checkArgument(maxShapes > 0, "The maximum number of shapes must be positive.");
+        this.algorithm = algorithm;
+        this.arrayNormalization = arrayNormalization;
+        this.fingerprintCache = fingerprintCache;
+        this.shapes = CacheBuilder.newBuilder()
+                .maximumSize(maxShapes)
+                .recordStats()
+                .build();
+    }
+
+    public void add(DBObject doc) {
+        final Key key = keyOf(doc);
+        final long millis = longValue(doc.get("millis"));
+        // Renamed to keysExamined by 3.2.
+        final long scanned = longValue(doc.containsField("keysExamined") ? doc.get("keysExamined") : doc.get("nscanned"));
+        final long returned = longValue(doc.get("nreturned"));
+        final long responseBytes = longValue(doc.get("responseLength"));
+
+        while (true) {
+            final Shape shape;
+            try {
+                shape = shapes.get(key, Shape::new);
+            } catch (ExecutionException e) {
+                throw new IllegalStateException(e);
+            }
+
+            synchronized (shape) {
+                // Retry if the window was closed in the meantime.
+                if (!shape.closed) {
+                    shape.add(millis, scanned, returned, responseBytes);
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Closes the current window and returns the rollups of all shapes seen in it.
+     */
+    public List<DBObject> drain(Date windowStart, Date windowEnd) {
+        final List<DBObject> rollups = new ArrayList<>();
+        for (Map.Entry<Key, Shape> entry : shapes.asMap().entrySet()) {
+            final Shape shape = entry.getValue();
+            shapes.asMap().remove(entry.getKey(), shape);
+
+            synchronized (shape) {
+                shape.closed = true;
+                rollups.add(shape.toRollup(entry.getKey(), windowStart, windowEnd));
+            }
+        }
+
+        return rollups;
+    }
+
+    public MetricSet getMetricSet() {
+        return () -> ImmutableMap.<String, Metric>of(
+                "shapes", (Gauge<Long>) shapes::size,
+                "evictions", (Gauge<Long>) () -> shapes.stats().evictionCount()
+        );
+    }
+
+    private Key keyOf(DBObject doc) {
+        final Object ns = doc.get("ns");
+        String database = null;
+        String collection = null;
+        if (ns instanceof String && ((String) ns).contains(".")) {
+            final String namespace = (String) ns;
+            final int x = namespace.indexOf('.');
+            database = namespace.substring(0, x);
+            collection = namespace.substring(x + 1);
+        }
+
+        // Like the parser, the fields hash of a command wins over the one of a query.
+        Object query = doc.get("command");
+        if (!(query instanceof DBObject)) {
+            query = doc.get("query");
+        }
+
+        String fieldsHash = null;
+        String shape = null;
+        if (query instanceof DBObject) {
+            final Normalizer normalizer = Normalizer.normalizeFields((DBObject) query, database, collection, algorithm,
+                    arrayNormalization, fingerprintCache);
+            fieldsHash = normalizer.getFieldsHash();
+            shape = normalizer.getShape();
+        }
+
+        return new Key(database, collection, String.valueOf(doc.get("op")), fieldsHash, shape);
+    }
+
+    private static long longValue(@Nullable Object value) {
+        return value instanceof Number ? Math.max(((Number) value).longValue(), 0L) : 0L;
+    }
+
+    private static class Key {
+        private final String database;
+        private final String collection;
+        private final String operation;
+        private final String fieldsHash;
+        // Readable form of the fields hash, not part of the key.
+        private final String shape;
+
+        private Key(@Nullable String database, @Nullable String collection, String operation,
+                    @Nullable String fieldsHash, @Nullable String shape) {
+            this.database = database;
+            this.collection = collection;
+            this.operation = operation;
+            this.fieldsHash = fieldsHash;
+            this.shape = shape;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+
+            final Key that = (Key) o;
+            return Objects.equals(database, that.database)
+                    && Objects.equals(collection, that.collection)
+                    && operation.equals(that.operation)
+                    && Objects.equals(fieldsHash, that.fieldsHash);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(database, collection, operation, fieldsHash);
+        }
+    }
+
+    private static class Shape {
+        // Grows with the range of recorded values only.
+        private final AbstractHistogram millis = new IntCountsHistogram(HISTOGRAM_PRECISION);
+        private long count;
+        private long millisSum;
+        private long millisMin = Long.MAX_VALUE;
+        private long millisMax;
+        private long docsScanned;
+        private long docsReturned;
+        private long responseBytes;
+        private boolean closed;
+
+        private void add(long millis, long scanned, long returned, long responseBytes) {
+            this.millis.recordValue(millis);
+            this.count++;
+            this.millisSum += millis;
+            this.millisMin = Math.min(millisMin, millis);
+            this.millisMax = Math.max(millisMax, millis);
+            this.docsScanned += scanned;
+            this.docsReturned += returned;
+            this.responseBytes += responseBytes;
+        }
+
+        private DBObject toRollup(Key key, Date windowStart, Date windowEnd) {
+            final BasicDBObject rollup = new BasicDBObject("ts", windowEnd)
+                    .append(FIELD_WINDOW_START, windowStart)
+                    .append("operation", key.operation)
+                    .append(FIELD_COUNT, count)
+                    .append("millis_sum", millisSum)
+                    .append("millis_min", count == 0 ? 0L : millisMin)
+                    .append("millis_max", millisMax)
+                    .append("millis_mean", count == 0 ? 0.0 : (double) millisSum / count)
+                    .append("millis_p50", millis.getValueAtPercentile(50.0))
+                    .append("millis_p95", millis.getValueAtPercentile(95.0))
+                    .append("millis_p99", millis.getValueAtPercentile(99.0))
+                    .append("docs_scanned", docsScanned)
+                    .append("docs_returned", docsReturned)
+                    .append("response_bytes", responseBytes);
+            putIfNotNull(rollup, "database", key.database);
+            putIfNotNull(rollup, "collection", key.collection);
+            putIfNotNull(rollup, "query_fields_hash", key.fieldsHash);
+            putIfNotNull(rollup, "query_shape", key.shape);
+
+            return rollup;
+        }
+
+        private static void putIfNotNull(DBObject rollup, String key, @Nullable Object value) {
+            if (value != null) {
+                rollup.put(key, value);
+            }
+        }
+    }
+}
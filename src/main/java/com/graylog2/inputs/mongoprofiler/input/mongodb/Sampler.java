@@ -0,0 +1,177 @@
+package com.graylog2.inputs.mongoprofiler.input.mongodb;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricSet;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Ticker;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import com.google.common.collect.ImmutableMap;
+import com.graylog2.inputs.mongoprofiler.input.mongodb.normalizer.ArrayNormalization;
+import com.graylog2.inputs.mongoprofiler.input.mongodb.normalizer.FingerprintAlgorithm;
+import com.graylog2.inputs.mongoprofiler.input.mongodb.normalizer.FingerprintCache;
+import com.graylog2.inputs.mongoprofiler.input.mongodb.normalizer.Normalizer;
+import com.mongodb.DBObject;
+
+import javax.annotation.Nullable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Samples the profile entries of an input per query shape.
+ *
+ * Operations taking at least the slow threshold are always kept. Of the others, only the first entries of
+ * every shape per minute are kept. Every kept entry is weighted with the number of entries it stands for,
+ * that is itself and the entries of its shape skipped since the previous one was kept, so that summing up
+ * the weights gives the actual number of operations. The weight is added to the messages as
+ * {@value com.graylog2.inputs.mongoprofiler.input.mongodb.parser.RawParser#FIELD_SAMPLE_WEIGHT}.
+ *
+ * Weights are only known once the next entry of a shape is kept, so the skipped entries of a minute are
+ * counted in a later one. The skipped entries of shapes that see no entry for two minutes or
+ * are forgotten to make room for others can't be credited to anything anymore. They are counted by the
+ * "droppedSkips" metric instead.
+ *
+ * A shape is the operation together with the fields of its query or command, just like the
+ * "query_fields_hash" message field, which is why it is computed with the same settings. Only the fields
+ * hash is computed, using the fingerprint cache of the input if there is one. One instance is shared by all
+ * subscribers of an input.
+ */
+public class Sampler {
+    private static final int MAX_SHAPES = 10000;
+    private static final long WINDOW_NANOS = TimeUnit.MINUTES.toNanos(1);
+    private static final int QUIET_WINDOWS = 2;
+
+    private final long slowMillis;
+    private final int samplesPerMinute;
+    private final Ticker ticker;
+    private final FingerprintAlgorithm algorithm;
+    private final ArrayNormalization arrayNormalization;
+    @Nullable
+    private final FingerprintCache fingerprintCache;
+    // Forgetting a cold shape only loses the count of its skipped entries.
+    private final Cache<String, Shape> shapes;
+    private final Counter droppedSkips = new Counter();
+
+    /**
+     * @param fingerprintCache the cache the codecs of the input use, if any
+     * @param slowMillis       the minimum duration of operations that are always kept
+     * @param samplesPerMinute the number of other operations kept per shape and minute
+     */
+    public Sampler(FingerprintAlgorithm algorithm, ArrayNormalization arrayNormalization,
+                   @Nullable FingerprintCache fingerprintCache, long slowMillis, int samplesPerMinute) {
+        this(algorithm, arrayNormalization, fingerprintCache, slowMillis, samplesPerMinute, Ticker.systemTicker());
+    }
+
+    @VisibleForTesting
+    Sampler(FingerprintAlgorithm algorithm, ArrayNormalization arrayNormalization,
+            @Nullable FingerprintCache fingerprintCache, long slowMillis, int samplesPerMinute, Ticker ticker) {
+        checkArgument(slowMillis >= 0, "The slow operation threshold must not be negative.");
+        checkArgument(samplesPerMinute >= 0, "The number of samples must not be negative.");
+        this.slowMillis = slowMillis;
+        this.samplesPerMinute = samplesPerMinute;
+        this.ticker = ticker;
+        this.algorithm = algorithm;
+        this.arrayNormalization = arrayNormalization;
+        this.fingerprintCache = fingerprintCache;
+        this.shapes = CacheBuilder.newBuilder()
+                .maximumSize(MAX_SHAPES)
+                .expireAfterAccess(QUIET_WINDOWS * WINDOW_NANOS, TimeUnit.NANOSECONDS)
+                .ticker(ticker)
+                .removalListener((RemovalListener<String, Shape>) removal -> {
+                    final Shape shape = removal.getValue();
+                    synchronized (shape) {
+                        droppedSkips.inc(shape.skipped);
+                    }
+                })
+                .build();
+    }
+
+    /**
+     * Returns the sample weight of a profile entry, 0 if it should be skipped.
+     */
+    public int sample(DBObject doc) {
+        final Object millis = doc.get("millis");
+        if (millis instanceof Number && ((Number) millis).longValue() >= slowMillis) {
+            return 1;
+        }
+
+        final long now = ticker.read();
+        final Shape shape;
+        try {
+            shape = shapes.get(shapeOf(doc), () -> new Shape(now));
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e);
+        }
+
+        synchronized (shape) {
+            if (now - shape.windowStart >= WINDOW_NANOS) {
+                shape.windowStart = now;
+                shape.kept = 0;
+            }
+
+            if (shape.kept >= samplesPerMinute) {
+                shape.skipped++;
+                return 0;
+            }
+
+            shape.kept++;
+            final int weight = shape.skipped + 1;
+            shape.skipped = 0;
+
+            return weight;
+        }
+    }
+
+    public MetricSet getMetricSet() {
+        return () -> ImmutableMap.<String, Metric>of(
+                "shapes", (Gauge<Long>) shapes::size,
+                "droppedSkips", droppedSkips
+        );
+    }
+
+    @VisibleForTesting
+    void cleanUp() {
+        shapes.cleanUp();
+    }
+
+    @VisibleForTesting
+    String shapeOf(DBObject doc) {
+        final String op = String.valueOf(doc.get("op"));
+        final Object ns = doc.get("ns");
+
+        Object query = doc.get("command");
+        if (!(query instanceof DBObject)) {
+            query = doc.get("query");
+        }
+        if (!(query instanceof DBObject)) {
+            return op + "|" + ns;
+        }
+
+        String database = null;
+        String collection = null;
+        if (ns instanceof String && ((String) ns).contains(".")) {
+            final String namespace = (String) ns;
+            final int x = namespace.indexOf('.');
+            database = namespace.substring(0, x);
+            collection = namespace.substring(x + 1);
+        }
+
+        return op + "|" + Normalizer.normalizeFields((DBObject) query, database, collection, algorithm,
+                arrayNormalization, fingerprintCache).getFieldsHash();
+    }
+
+    private static class Shape {
+        private long windowStart;
+        private int kept;
+        private int skipped;
+
+        private Shape(long windowStart) {
+            this.windowStart = windowStart;
+        }
+    }
+}
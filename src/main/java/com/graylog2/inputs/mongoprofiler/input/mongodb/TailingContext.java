@@ -0,0 +1,177 @@
+package com.graylog2.inputs.mongoprofiler.input.mongodb;
+
+import org.graylog2.plugin.LocalMetricRegistry;
+import org.graylog2.plugin.inputs.MessageInput;
+
+import javax.annotation.Nullable;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.function.BooleanSupplier;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Everything the subscribers of an input share: the input itself, its worker pool, pipeline and metrics, and
+ * the settings for reading and handing off profile entries.
+ */
+public class TailingContext {
+    private final MessageInput sourceInput;
+    private final LocalMetricRegistry metricRegistry;
+    private final ScheduledExecutorService executor;
+    private final ProfilePipeline pipeline;
+    private final BooleanSupplier throttled;
+
+    private ProfileFilter filter = ProfileFilter.ALL;
+    private Sampler sampler;
+    private RollupAggregator aggregator;
+    private boolean rollupsOnly;
+    private CheckpointStore checkpoints;
+    private Backfill backfill;
+    private int cursorBatchSize;
+    private int batchSize = 1;
+    private long maxBatchLatencyMillis;
+
+    /**
+     * @param throttled whether the input is throttled and no entries should be read for now
+     */
+    public TailingContext(MessageInput sourceInput, LocalMetricRegistry metricRegistry, ScheduledExecutorService executor,
+                          ProfilePipeline pipeline, BooleanSupplier throttled) {
+        this.sourceInput = requireNonNull(sourceInput);
+        this.metricRegistry = requireNonNull(metricRegistry);
+        this.executor = requireNonNull(executor);
+        this.pipeline = requireNonNull(pipeline);
+        this.throttled = requireNonNull(throttled);
+    }
+
+    public MessageInput getSourceInput() {
+        return sourceInput;
+    }
+
+    public LocalMetricRegistry getMetricRegistry() {
+        return metricRegistry;
+    }
+
+    public ScheduledExecutorService getExecutor() {
+        return executor;
+    }
+
+    public ProfilePipeline getPipeline() {
+        return pipeline;
+    }
+
+    public boolean isThrottled() {
+        return throttled.getAsBoolean();
+    }
+
+    /**
+     * Selects the profile entries to read.
+     */
+    public ProfileFilter getFilter() {
+        return filter;
+    }
+
+    public TailingContext setFilter(ProfileFilter filter) {
+        this.filter = requireNonNull(filter);
+        return this;
+    }
+
+    /**
+     * Selects the profile entries handed to the input, {@code null} to hand over all of them.
+     */
+    @Nullable
+    public Sampler getSampler() {
+        return sampler;
+    }
+
+    public TailingContext setSampler(@Nullable Sampler sampler) {
+        this.sampler = sampler;
+        return this;
+    }
+
+    /**
+     * Aggregator to add every profile entry to, {@code null} if there are no rollups.
+     */
+    @Nullable
+    public RollupAggregator getAggregator() {
+        return aggregator;
+    }
+
+    /**
+     * @param rollupsOnly whether the profile entries are only aggregated and not handed to the input
+     */
+    public TailingContext setAggregator(@Nullable RollupAggregator aggregator, boolean rollupsOnly) {
+        this.aggregator = aggregator;
+        this.rollupsOnly = aggregator != null && rollupsOnly;
+        return this;
+    }
+
+    public boolean isRollupsOnly() {
+        return rollupsOnly;
+    }
+
+    /**
+     * Store to resume from and to record the position in, {@code null} to start at the current time.
+     */
+    @Nullable
+    public CheckpointStore getCheckpoints() {
+        return checkpoints;
+    }
+
+    public TailingContext setCheckpoints(@Nullable CheckpointStore checkpoints) {
+        this.checkpoints = checkpoints;
+        return this;
+    }
+
+    /**
+     * Limits for reading the existing entries if there is no checkpoint, {@code null} to skip them.
+     */
+    @Nullable
+    public Backfill getBackfill() {
+        return backfill;
+    }
+
+    public TailingContext setBackfill(@Nullable Backfill backfill) {
+        this.backfill = backfill;
+        return this;
+    }
+
+    /**
+     * Number of entries the server returns per round trip of a tailing cursor, 0 for the server default.
+     */
+    public int getCursorBatchSize() {
+        return cursorBatchSize;
+    }
+
+    public TailingContext setCursorBatchSize(int cursorBatchSize) {
+        checkArgument(cursorBatchSize >= 0, "The cursor batch size must not be negative.");
+        this.cursorBatchSize = cursorBatchSize;
+        return this;
+    }
+
+    /**
+     * Maximum number of entries handed to the input at once.
+     */
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public TailingContext setBatchSize(int batchSize) {
+        checkArgument(batchSize > 0, "The batch size must be positive.");
+        checkArgument(batchSize <= pipeline.getBufferSize(), "The batch size must not exceed the buffer size.");
+        this.batchSize = batchSize;
+        return this;
+    }
+
+    /**
+     * Maximum time entries are held back to fill a batch while more entries are being read.
+     */
+    public long getMaxBatchLatencyMillis() {
+        return maxBatchLatencyMillis;
+    }
+
+    public TailingContext setMaxBatchLatencyMillis(long maxBatchLatencyMillis) {
+        checkArgument(maxBatchLatencyMillis >= 0, "The maximum batch latency must not be negative.");
+        this.maxBatchLatencyMillis = maxBatchLatencyMillis;
+        return this;
+    }
+}
@@ -0,0 +1,53 @@
+package com.graylog2.inputs.mongoprofiler.input.mongodb.normalizer;
+
+import com.google.common.collect.ImmutableMap;
+
+import javax.annotation.Nullable;
+import java.util.Map;
+
+/**
+ * How the fields hash and the shape describe the arrays of a document.
+ */
+public enum ArrayNormalization {
+    /**
+     * Arrays are described by their distinct element shapes in the order they first appear, so
+     * {@code {$in: [1, 2, 3]}} and {@code {$in: [4]}} share the shape {@code {$in: [?]}}.
+     */
+    COLLAPSE("Collapse to the distinct element shapes"),
+    /**
+     * Arrays are described like documents keyed by the element positions, in lexicographic order of the
+     * positions. Every array length gets its own fields hash.
+     */
+    LEGACY("By position (compatible with existing hashes)");
+
+    private final String description;
+
+    ArrayNormalization(String description) {
+        this.description = description;
+    }
+
+    /**
+     * Returns the normalization with the given name, falling back to {@link #LEGACY} for empty or unknown names, so
+     * inputs configured before there was a choice keep their hashes.
+     */
+    public static ArrayNormalization fromName(@Nullable String name) {
+        if (name != null) {
+            for (ArrayNormalization normalization : values()) {
+                if (normalization.name().equals(name)) {
+                    return normalization;
+                }
+            }
+        }
+
+        return LEGACY;
+    }
+
+    public static Map<String, String> choices() {
+        final ImmutableMap.Builder<String, String> choices = ImmutableMap.builder();
+        for (ArrayNormalization normalization : values()) {
+            choices.put(normalization.name(), normalization.description);
+        }
+
+        return choices.build();
+    }
+}
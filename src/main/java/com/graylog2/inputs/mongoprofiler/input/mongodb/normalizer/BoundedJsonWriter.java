@@ -0,0 +1,192 @@
+package com.graylog2.inputs.mongoprofiler.input.mongodb.normalizer;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Renders the JSON of a document written by the {@link Normalizer} into a buffer reused by the thread, up to
+ * a maximum number of UTF-8 bytes. Once the maximum is reached, everything else is skipped and the rendering
+ * ends with {@link #TRUNCATION_MARKER}, which counts towards the maximum, so rendering a huge document costs no more than rendering one that just
+ * fits. Literal values can be replaced with {@link #PLACEHOLDER} to keep values, and personal data among them,
+ * out of the messages.
+ *
+ * Instances render a single document and must not be used by several threads.
+ */
+public class BoundedJsonWriter {
+    public static final String TRUNCATION_MARKER = "...[truncated]";
+    public static final String PLACEHOLDER = "?";
+
+    private static final int TRUNCATION_MARKER_BYTES = TRUNCATION_MARKER.getBytes(StandardCharsets.UTF_8).length;
+
+    // Buffers of huge renderings aren't kept for the next one.
+    private static final int MAX_RETAINED_CHARS = 1024 * 1024;
+    private static final ThreadLocal<StringBuilder> BUFFERS = ThreadLocal.withInitial(StringBuilder::new);
+
+    private final StringBuilder buffer;
+    private final int maxBytes;
+    private final boolean redactLiterals;
+    private final JsonGenerator json;
+    private int bytes;
+    // Set once nothing more is rendered, and once the output reached the maximum respectively.
+    private boolean skipping;
+    private boolean truncated;
+
+    /**
+     * @param factory        the factory of the generator, whose codec serializes the values
+     * @param maxBytes       the maximum size of the rendering in UTF-8 bytes including the marker, 0 for no limit
+     * @param redactLiterals whether to replace literal values with {@link #PLACEHOLDER}
+     */
+    public BoundedJsonWriter(JsonFactory factory, int maxBytes, boolean redactLiterals) throws IOException {
+        this.buffer = BUFFERS.get();
+        this.buffer.setLength(0);
+        this.maxBytes = maxBytes;
+        this.redactLiterals = redactLiterals;
+        this.json = factory.createGenerator(new BufferWriter())
+                .disable(JsonGenerator.Feature.AUTO_CLOSE_JSON_CONTENT);
+    }
+
+    void writeStartObject() throws IOException {
+        if (!isFull()) {
+            json.writeStartObject();
+        }
+    }
+
+    void writeEndObject() throws IOException {
+        if (!isFull()) {
+            json.writeEndObject();
+        }
+    }
+
+    void writeStartArray() throws IOException {
+        if (!isFull()) {
+            json.writeStartArray();
+        }
+    }
+
+    void writeEndArray() throws IOException {
+        if (!isFull()) {
+            json.writeEndArray();
+        }
+    }
+
+    void writeFieldName(String name) throws IOException {
+        if (!isFull()) {
+            json.writeFieldName(name);
+        }
+    }
+
+    void writeValue(Object value) throws IOException {
+        if (isFull()) {
+            return;
+        }
+
+        if (redactLiterals) {
+            json.writeString(PLACEHOLDER);
+        } else {
+            json.writeObject(value);
+        }
+    }
+
+    /**
+     * Whether the maximum was reached before the whole document was rendered.
+     */
+    public boolean isTruncated() {
+        return skipping || truncated;
+    }
+
+    /**
+     * Finishes the rendering and returns it.
+     */
+    public String finish() throws IOException {
+        json.close();
+        if (isTruncated()) {
+            // Makes room for the marker. A low surrogate counts nothing, so its high surrogate goes with it.
+            int excess = bytes + TRUNCATION_MARKER_BYTES - maxBytes;
+            int end = buffer.length();
+            while (excess > 0 && end > 0) {
+                excess -= utf8Length(buffer.charAt(--end));
+            }
+            buffer.setLength(end);
+            buffer.append(TRUNCATION_MARKER);
+        }
+
+        final String rendering = buffer.toString();
+        if (buffer.capacity() > MAX_RETAINED_CHARS) {
+            BUFFERS.remove();
+        } else {
+            buffer.setLength(0);
+        }
+
+        return rendering;
+    }
+
+    private boolean isFull() {
+        // The generator buffers some output. Every char is at least a byte, so that counts too.
+        if (!skipping && (truncated || maxBytes > 0 && bytes + json.getOutputBuffered() >= maxBytes)) {
+            skipping = true;
+        }
+
+        return skipping;
+    }
+
+    /**
+     * Cuts {@code value} off like a rendering, so that it takes at most {@code maxBytes} UTF-8 bytes including the
+     * marker, 0 for no limit.
+     */
+    public static String truncate(String value, int maxBytes) {
+        if (maxBytes <= 0 || value.length() <= maxBytes / 3) {
+            // Every char takes at most 3 bytes, surrogate pairs 4 for two.
+            return value;
+        }
+
+        int bytes = 0;
+        int end = -1;
+        for (int i = 0; i < value.length(); i++) {
+            bytes += utf8Length(value.charAt(i));
+            if (end < 0 && bytes > maxBytes - TRUNCATION_MARKER_BYTES) {
+                end = i;
+            }
+            if (bytes > maxBytes) {
+                return value.substring(0, end) + TRUNCATION_MARKER;
+            }
+        }
+
+        return value;
+    }
+
+    /**
+     * The number of UTF-8 bytes of a char. The low surrogate of a pair is counted with its high surrogate.
+     */
+    private static int utf8Length(char c) {
+        return c < 0x80 ? 1 : c < 0x800 ? 2 : Character.isHighSurrogate(c) ? 4 : Character.isLowSurrogate(c) ? 0 : 3;
+    }
+
+    private class BufferWriter extends Writer {
+        @Override
+        public void write(char[] chars, int offset, int length) {
+            for (int i = offset; i < offset + length && !truncated; i++) {
+                final char c = chars[i];
+                final int size = utf8Length(c);
+                if (maxBytes > 0 && bytes + size > maxBytes) {
+                    truncated = true;
+                    break;
+                }
+
+                bytes += size;
+                buffer.append(c);
+            }
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package com.graylog2.inputs.mongoprofiler.input.mongodb.normalizer;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+import javax.annotation.Nullable;
+import java.util.Map;
+
+/**
+ * Hash functions available for the query and update object fingerprints.
+ */
+public enum FingerprintAlgorithm {
+    MD5("MD5 (compatible with existing hashes)", Hashing.md5()),
+    MURMUR3_128("MurmurHash3, 128 bit", Hashing.murmur3_128()),
+    SIPHASH_2_4("SipHash-2-4, 64 bit", Hashing.sipHash24());
+
+    private final String description;
+    private final HashFunction hashFunction;
+
+    FingerprintAlgorithm(String description, HashFunction hashFunction) {
+        this.description = description;
+        this.hashFunction = hashFunction;
+    }
+
+    public HashFunction getHashFunction() {
+        return hashFunction;
+    }
+
+    /**
+     * Returns the algorithm with the given name, falling back to {@link #MD5} for empty or unknown names.
+     */
+    public static FingerprintAlgorithm fromName(@Nullable String name) {
+        if (name != null) {
+            for (FingerprintAlgorithm algorithm : values()) {
+                if (algorithm.name().equals(name)) {
+                    return algorithm;
+                }
+            }
+        }
+
+        return MD5;
+    }
+
+    public static Map<String, String> choices() {
+        final ImmutableMap.Builder<String, String> choices = ImmutableMap.builder();
+        for (FingerprintAlgorithm algorithm : values()) {
+            choices.put(algorithm.name(), algorithm.description);
+        }
+
+        return choices.build();
+    }
+}
@@ -0,0 +1,88 @@
+package com.graylog2.inputs.mongoprofiler.input.mongodb.normalizer;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricSet;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.hash.HashCode;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Supplier;
+
+/**
+ * Bounded cache of fields hashes and shapes, keyed by the structural signature of the normalized document.
+ *
+ * Codecs are created for every single message, so caches are kept per input and shared by all codecs
+ * decoding messages of that input.
+ *
+ * Shapes aren't bounded in length, so every full {@value #SHAPE_CHARS_PER_ENTRY} chars of a shape count as
+ * another entry towards the maximum size. That keeps a cache of huge shapes, like those of bulk inserts, as small
+ * as one of the same number of short shapes.
+ */
+public class FingerprintCache {
+    static final int SHAPE_CHARS_PER_ENTRY = 1024;
+
+    private static final ConcurrentMap<String, FingerprintCache> CACHES = new ConcurrentHashMap<>();
+
+    private final Cache<HashCode, Fingerprint> cache;
+
+    private FingerprintCache(long maximumSize) {
+        this.cache = CacheBuilder.newBuilder()
+                .maximumWeight(maximumSize)
+                .weigher((HashCode structure, Fingerprint fingerprint) -> 1 + fingerprint.getShape().length() / SHAPE_CHARS_PER_ENTRY)
+                .recordStats()
+                .build();
+    }
+
+    public static FingerprintCache forInput(String inputId, long maximumSize) {
+        return CACHES.computeIfAbsent(inputId, id -> new FingerprintCache(maximumSize));
+    }
+
+    public static void release(String inputId) {
+        CACHES.remove(inputId);
+    }
+
+    public Fingerprint get(HashCode structure, Supplier<Fingerprint> loader) {
+        Fingerprint fingerprint = cache.getIfPresent(structure);
+        if (fingerprint == null) {
+            fingerprint = loader.get();
+            cache.put(structure, fingerprint);
+        }
+
+        return fingerprint;
+    }
+
+    public MetricSet getMetricSet() {
+        return () -> ImmutableMap.<String, Metric>of(
+                "hits", (Gauge<Long>) () -> cache.stats().hitCount(),
+                "misses", (Gauge<Long>) () -> cache.stats().missCount(),
+                "evictions", (Gauge<Long>) () -> cache.stats().evictionCount(),
+                "size", (Gauge<Long>) cache::size
+        );
+    }
+
+    /**
+     * What is known about the documents of one structure.
+     */
+    public static class Fingerprint {
+        private final String fieldsHash;
+        private final String shape;
+
+        public Fingerprint(String fieldsHash, String shape) {
+            this.fieldsHash = fieldsHash;
+            this.shape = shape;
+        }
+
+        public String getFieldsHash() {
+            return fieldsHash;
+        }
+
+        public String getShape() {
+            return shape;
+        }
+    }
+}
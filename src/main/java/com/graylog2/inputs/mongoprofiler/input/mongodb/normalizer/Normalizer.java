@@ -1,102 +1,534 @@
 package com.graylog2.inputs.mongoprofiler.input.mongodb.normalizer;
 
+import com.google.common.hash.HashCode;
 import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hasher;
 import com.google.common.hash.Hashing;
 import com.mongodb.DBObject;
+import org.bson.LazyBSONObject;
 
-import java.nio.charset.StandardCharsets;
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.nio.CharBuffer;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
-import java.util.TreeMap;
+import java.util.Set;
 
+/**
+ * Builds the normalized representations of a query document in a single traversal.
+ *
+ * Both hashes are computed over the keys of every nesting level in sorted order, while the optional
+ * JSON rendering keeps the original order of the document. The shape is a readable form of what the
+ * fields hash covers, like {@code {created: {$gt: ?}, status: ?}}, with sorted keys and the values left out.
+ * How arrays are described there depends on the {@link ArrayNormalization}, the full hash always covers
+ * every element.
+ *
+ * With a {@link FingerprintCache}, the traversal records a cheap structural signature (the key sequence
+ * and nesting in document order) instead of building the fields representation and the shape, which are
+ * then only built, sorted and hashed for shapes that are not in the cache yet.
+ */
 public class Normalizer {
-    private final TreeMap<String, Object> sortedMap;
+    private static final HashFunction STRUCTURE_HASH = Hashing.murmur3_128();
+
+    private static final byte STRUCTURE_VALUE = 0;
+    private static final byte STRUCTURE_START = 1;
+    private static final byte STRUCTURE_END = 2;
+    private static final byte STRUCTURE_ARRAY_START = 3;
+    private static final HashCode STRUCTURE_SCALAR_ELEMENT = STRUCTURE_HASH.newHasher().putByte(STRUCTURE_VALUE).hash();
+
+    // Collapsed arrays describe all their elements like the first one.
+    private static final String COLLAPSED_ELEMENT_KEY = "0";
+
+    private final DBObject obj;
     private final String db;
     private final String collection;
+    private final FingerprintAlgorithm algorithm;
+    private final ArrayNormalization arrays;
+    @Nullable
+    private final FingerprintCache cache;
+
+    // Not built at all if only the fields hash and the shape are needed.
+    @Nullable
+    private final StringBuilder full;
+    private StringBuilder fields;
+    private StringBuilder shape;
+    private Hasher structure;
+    private HashCode structureKey;
+    private FingerprintCache.Fingerprint fingerprint;
+    private final byte[] scratch = new byte[256];
 
     public Normalizer(DBObject obj, String db, String collection) {
-        this.sortedMap = sort(obj);
+        this(obj, db, collection, FingerprintAlgorithm.MD5);
+    }
+
+    public Normalizer(DBObject obj, String db, String collection, FingerprintAlgorithm algorithm) {
+        this(obj, db, collection, algorithm, ArrayNormalization.LEGACY);
+    }
+
+    public Normalizer(DBObject obj, String db, String collection, FingerprintAlgorithm algorithm, ArrayNormalization arrays) {
+        this(obj, db, collection, algorithm, arrays, null);
 
+        try {
+            walk(null);
+        } catch (IOException e) {
+            // Only the JSON generator can fail and there is none.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private Normalizer(DBObject obj, String db, String collection, FingerprintAlgorithm algorithm, ArrayNormalization arrays,
+                       @Nullable FingerprintCache cache) {
+        this(obj, db, collection, algorithm, arrays, cache, true);
+    }
+
+    private Normalizer(DBObject obj, String db, String collection, FingerprintAlgorithm algorithm, ArrayNormalization arrays,
+                       @Nullable FingerprintCache cache, boolean fullHash) {
+        this.full = fullHash ? new StringBuilder("|") : null;
+        this.obj = obj;
         this.db = db;
         this.collection = collection;
+        this.algorithm = algorithm;
+        this.arrays = arrays;
+        this.cache = cache;
     }
 
-    public String getFullHash() {
-        StringBuilder sb = new StringBuilder("|");
+    /**
+     * Normalizes {@code obj} and, if given, writes its JSON rendering to {@code json} in the same traversal.
+     */
+    public static Normalizer normalize(DBObject obj, String db, String collection, FingerprintAlgorithm algorithm, ArrayNormalization arrays,
+                                       @Nullable FingerprintCache cache, @Nullable BoundedJsonWriter json) throws IOException {
+        final Normalizer normalizer = new Normalizer(obj, db, collection, algorithm, arrays, cache);
+        normalizer.walk(json);
 
-        // Hell recursion into all the nested levels. #neverForget
-        appendFullStringMap(sb, sortedMap);
+        return normalizer;
+    }
 
-        sb.append("|");
+    /**
+     * Normalizes {@code obj} for its fields hash and shape only. The values aren't looked at, so there is no
+     * full hash, and with a cache only the structural signature is computed for shapes already in the cache.
+     */
+    public static Normalizer normalizeFields(DBObject obj, String db, String collection, FingerprintAlgorithm algorithm,
+                                             ArrayNormalization arrays, @Nullable FingerprintCache cache) {
+        final Normalizer normalizer = new Normalizer(obj, db, collection, algorithm, arrays, cache, false);
+        try {
+            normalizer.walk(null);
+        } catch (IOException e) {
+            // Only the JSON generator can fail and there is none.
+            throw new IllegalStateException(e);
+        }
 
-        return hash(sb.toString());
+        return normalizer;
+    }
+
+    public String getFullHash() {
+        if (full == null) {
+            throw new IllegalStateException("Only the fields were normalized.");
+        }
+
+        return hash(full);
     }
 
     public String getFieldsHash() {
-        StringBuilder sb = new StringBuilder("|");
+        return fingerprint().getFieldsHash();
+    }
 
-        // Hell recursion into all the nested levels. #neverForget
-        appendFieldsStringMap(sb, sortedMap);
+    /**
+     * The keys of the document in sorted order, with placeholders for the values.
+     */
+    public String getShape() {
+        return fingerprint().getShape();
+    }
+
+    private FingerprintCache.Fingerprint fingerprint() {
+        if (fingerprint != null) {
+            return fingerprint;
+        }
 
-        sb.append("|");
+        if (cache == null) {
+            fingerprint = new FingerprintCache.Fingerprint(hash(fields), shape.toString());
+        } else {
+            fingerprint = cache.get(structureKey, () -> {
+                fields = new StringBuilder("|");
+                shape = new StringBuilder();
+                appendFieldsLevel(obj);
+                fields.append('|');
 
-        return hash(sb.toString());
+                return new FingerprintCache.Fingerprint(hash(fields), shape.toString());
+            });
+        }
+
+        return fingerprint;
     }
 
-    private String hash(String x) {
-        final HashFunction md5 = Hashing.md5();
+    private String hash(CharSequence x) {
+        final Hasher hasher = algorithm.getHashFunction().newHasher();
+        putUtf8(hasher, x);
         /*
          * We are adding the database and collection to the string because
          * we might end up with the same fields hash when querying just for
          * "_id" but in different collections.
          */
-        return md5.hashString(x + collection + db, StandardCharsets.UTF_8).toString();
+        putUtf8(hasher, String.valueOf(collection));
+        putUtf8(hasher, String.valueOf(db));
+
+        return hasher.hash().toString();
     }
 
-    private TreeMap<String, Object> sort(DBObject obj) {
-        final TreeMap<String, Object> sorted = new TreeMap<>();
-        for (String key : obj.keySet()) {
-            final Object o = obj.get(key);
-            if (o instanceof DBObject) {
-                sorted.put(key, sort((DBObject) o));
+    /**
+     * Feeds the UTF-8 encoding of {@code chars} to the hasher in chunks, without materializing it as a
+     * String or byte array first. Unpaired surrogates are replaced with '?', like {@link String#getBytes} does.
+     */
+    private void putUtf8(Hasher hasher, CharSequence chars) {
+        int pos = 0;
+        for (int i = 0; i < chars.length(); i++) {
+            if (pos > scratch.length - 4) {
+                hasher.putBytes(scratch, 0, pos);
+                pos = 0;
+            }
+
+            final char c = chars.charAt(i);
+            if (c < 0x80) {
+                scratch[pos++] = (byte) c;
+            } else if (c < 0x800) {
+                scratch[pos++] = (byte) (0xC0 | c >> 6);
+                scratch[pos++] = (byte) (0x80 | c & 0x3F);
+            } else if (Character.isSurrogate(c)) {
+                if (Character.isHighSurrogate(c) && i + 1 < chars.length() && Character.isLowSurrogate(chars.charAt(i + 1))) {
+                    final int cp = Character.toCodePoint(c, chars.charAt(++i));
+                    scratch[pos++] = (byte) (0xF0 | cp >> 18);
+                    scratch[pos++] = (byte) (0x80 | cp >> 12 & 0x3F);
+                    scratch[pos++] = (byte) (0x80 | cp >> 6 & 0x3F);
+                    scratch[pos++] = (byte) (0x80 | cp & 0x3F);
+                } else {
+                    scratch[pos++] = '?';
+                }
             } else {
-                sorted.put(key, o);
+                scratch[pos++] = (byte) (0xE0 | c >> 12);
+                scratch[pos++] = (byte) (0x80 | c >> 6 & 0x3F);
+                scratch[pos++] = (byte) (0x80 | c & 0x3F);
             }
         }
 
-        return sorted;
+        hasher.putBytes(scratch, 0, pos);
     }
 
-    @SuppressWarnings("unchecked")
-    private void appendFullStringMap(StringBuilder sb, TreeMap<String, Object> map) {
-        for (Map.Entry<String, Object> x : map.entrySet()) {
-            final Object value = x.getValue();
-            if (value instanceof TreeMap) {
-                sb.append("{");
-                appendFullStringMap(sb, (TreeMap<String, Object>) value);
-                sb.append("},");
+    private void walk(@Nullable BoundedJsonWriter json) throws IOException {
+        if (cache == null) {
+            fields = new StringBuilder("|");
+            shape = new StringBuilder();
+        } else {
+            structure = STRUCTURE_HASH.newHasher()
+                    .putUnencodedChars(String.valueOf(db))
+                    .putByte(STRUCTURE_VALUE)
+                    .putUnencodedChars(String.valueOf(collection))
+                    .putByte(STRUCTURE_VALUE)
+                    .putInt(algorithm.ordinal())
+                    .putInt(arrays.ordinal());
+        }
+
+        appendLevel(obj, json);
+
+        if (full != null) {
+            full.append('|');
+        }
+        if (fields != null) {
+            fields.append('|');
+        }
+        if (structure != null) {
+            structureKey = structure.hash();
+        }
+    }
+
+    private void appendLevel(DBObject obj, @Nullable BoundedJsonWriter json) throws IOException {
+        final boolean isArray = obj instanceof List;
+        final boolean collapse = isArray && arrays == ArrayNormalization.COLLAPSE;
+        if (json != null) {
+            if (isArray) {
+                json.writeStartArray();
+            } else {
+                json.writeStartObject();
+            }
+        }
+
+        final int fullStart = full == null ? 0 : full.length();
+        final List<Segment> fullSegments = full == null ? null : new ArrayList<>();
+        final int fieldsStart = fields == null ? 0 : fields.length();
+        final List<Segment> fieldsSegments = fields == null ? null : new ArrayList<>();
+        if (shape != null) {
+            shape.append(isArray ? '[' : '{');
+        }
+        final int shapeStart = shape == null ? 0 : shape.length();
+        final List<Segment> shapeSegments = shape == null ? null : new ArrayList<>();
+        // The elements of a collapsed array are signed on their own, the level gets their distinct signatures.
+        final Hasher levelStructure = structure;
+        final Set<HashCode> elementStructures = collapse && structure != null ? new LinkedHashSet<>() : null;
+
+        for (Map.Entry<String, Object> entry : entries(obj)) {
+            final String key = entry.getKey();
+            final String fieldsKey = collapse ? COLLAPSED_ELEMENT_KEY : key;
+            final Object value = entry.getValue();
+
+            final Segment fullSegment = full == null ? null : new Segment(key, full.length());
+            final Segment fieldsSegment = fields == null ? null : new Segment(fieldsKey, fields.length());
+            final Segment shapeSegment = shape == null ? null : new Segment(fieldsKey, shape.length());
+
+            if (json != null && !isArray) {
+                json.writeFieldName(key);
+            }
+            if (shape != null && !isArray) {
+                shape.append(key).append(": ");
+            }
+            if (structure != null && !collapse) {
+                structure.putInt(key.length()).putUnencodedChars(key);
+            }
+
+            // Hell recursion into all the nested levels. #neverForget
+            if (value instanceof DBObject) {
+                if (full != null) {
+                    full.append('{');
+                }
+                if (fields != null) {
+                    fields.append('{');
+                }
+                if (structure != null) {
+                    if (elementStructures != null) {
+                        structure = STRUCTURE_HASH.newHasher();
+                    }
+                    structure.putByte(value instanceof List ? STRUCTURE_ARRAY_START : STRUCTURE_START);
+                }
+
+                appendLevel((DBObject) value, json);
+
+                if (full != null) {
+                    full.append("},");
+                }
+                if (fields != null) {
+                    fields.append("},");
+                }
+                if (structure != null) {
+                    structure.putByte(STRUCTURE_END);
+                    if (elementStructures != null) {
+                        elementStructures.add(structure.hash());
+                        structure = levelStructure;
+                    }
+                }
+            } else {
+                if (json != null) {
+                    json.writeValue(value);
+                }
+                if (full != null) {
+                    full.append(key).append(':').append(value).append(',');
+                }
+                if (fields != null) {
+                    fields.append(fieldsKey).append(',');
+                }
+                if (elementStructures != null) {
+                    elementStructures.add(STRUCTURE_SCALAR_ELEMENT);
+                } else if (structure != null) {
+                    structure.putByte(STRUCTURE_VALUE);
+                }
+                if (shape != null) {
+                    shape.append('?');
+                }
+            }
+            if (shape != null) {
+                shape.append(", ");
+            }
+
+            if (fullSegment != null) {
+                fullSegments.add(fullSegment.end(full.length()));
+            }
+            if (fieldsSegment != null) {
+                fieldsSegments.add(fieldsSegment.end(fields.length()));
+            }
+            if (shapeSegment != null) {
+                shapeSegments.add(shapeSegment.end(shape.length()));
+            }
+        }
+
+        if (full != null) {
+            sortSegments(full, fullStart, fullSegments);
+        }
+        if (fields != null) {
+            if (collapse) {
+                dedupeSegments(fields, fieldsStart, fieldsSegments);
             } else {
-                sb.append(x.getKey()).append(":").append(value).append(",");
+                sortSegments(fields, fieldsStart, fieldsSegments);
             }
         }
+        if (shape != null) {
+            endShapeLevel(isArray, collapse, shapeStart, shapeSegments);
+        }
+        if (elementStructures != null) {
+            structure.putInt(elementStructures.size());
+            for (HashCode elementStructure : elementStructures) {
+                structure.putBytes(elementStructure.asBytes());
+            }
+        }
+
+        // Remove last comma. An empty level loses its opening bracket instead, just like it always did.
+        if (full != null) {
+            full.setLength(full.length() - 1);
+        }
+        if (fields != null) {
+            fields.setLength(fields.length() - 1);
+        }
 
-        // Remove last comma.
-        sb.deleteCharAt(sb.toString().length() - 1);
+        if (json != null) {
+            if (isArray) {
+                json.writeEndArray();
+            } else {
+                json.writeEndObject();
+            }
+        }
     }
 
-    @SuppressWarnings("unchecked")
-    private void appendFieldsStringMap(StringBuilder sb, TreeMap<String, Object> map) {
-        for (Map.Entry<String, Object> x : map.entrySet()) {
-            final Object value = x.getValue();
-            if (value instanceof TreeMap) {
-                sb.append("{");
-                appendFieldsStringMap(sb, (TreeMap<String, Object>) value);
-                sb.append("},");
+    /**
+     * Builds the fields representation and the shape on their own. Only used for shapes missing from the cache.
+     */
+    private void appendFieldsLevel(DBObject obj) {
+        final boolean isArray = obj instanceof List;
+        final boolean collapse = isArray && arrays == ArrayNormalization.COLLAPSE;
+        final int start = fields.length();
+        final List<Segment> segments = new ArrayList<>();
+        shape.append(isArray ? '[' : '{');
+        final int shapeStart = shape.length();
+        final List<Segment> shapeSegments = new ArrayList<>();
+
+        for (Map.Entry<String, Object> entry : entries(obj)) {
+            final String key = collapse ? COLLAPSED_ELEMENT_KEY : entry.getKey();
+            final Segment segment = new Segment(key, fields.length());
+            final Segment shapeSegment = new Segment(key, shape.length());
+            if (!isArray) {
+                shape.append(key).append(": ");
+            }
+
+            if (entry.getValue() instanceof DBObject) {
+                fields.append('{');
+                appendFieldsLevel((DBObject) entry.getValue());
+                fields.append("},");
             } else {
-                sb.append(x.getKey()).append(",");
+                fields.append(key).append(',');
+                shape.append('?');
             }
+            shape.append(", ");
+
+            segments.add(segment.end(fields.length()));
+            shapeSegments.add(shapeSegment.end(shape.length()));
+        }
+
+        if (collapse) {
+            dedupeSegments(fields, start, segments);
+        } else {
+            sortSegments(fields, start, segments);
         }
+        fields.setLength(fields.length() - 1);
+        endShapeLevel(isArray, collapse, shapeStart, shapeSegments);
+    }
 
-        // Remove last comma.
-        sb.deleteCharAt(sb.toString().length() - 1);
+    /**
+     * Sorts the keys of an object, arrays keep their order, and closes the level.
+     */
+    private void endShapeLevel(boolean isArray, boolean collapse, int start, List<Segment> segments) {
+        if (collapse) {
+            dedupeSegments(shape, start, segments);
+        } else if (!isArray) {
+            sortSegments(shape, start, segments);
+        }
+        if (!segments.isEmpty()) {
+            shape.setLength(shape.length() - 2);
+        }
+        shape.append(isArray ? ']' : '}');
+    }
+
+    /**
+     * Reorders the segments written for the keys of one level so that they appear sorted by key.
+     */
+    private static void sortSegments(StringBuilder sb, int start, List<Segment> segments) {
+        boolean sorted = true;
+        for (int i = 1; i < segments.size() && sorted; i++) {
+            sorted = segments.get(i - 1).key.compareTo(segments.get(i).key) < 0;
+        }
+        if (sorted) {
+            return;
+        }
+
+        final char[] chars = copyTail(sb, start);
+
+        Collections.sort(segments, (a, b) -> a.key.compareTo(b.key));
+        for (Segment segment : segments) {
+            sb.append(chars, segment.start - start, segment.end - segment.start);
+        }
+    }
+
+    /**
+     * Drops the segments written for the elements of an array that repeat an earlier element, the others keep their order.
+     */
+    private static void dedupeSegments(StringBuilder sb, int start, List<Segment> segments) {
+        if (segments.size() < 2) {
+            return;
+        }
+
+        final char[] chars = copyTail(sb, start);
+
+        final Set<CharBuffer> distinct = new HashSet<>();
+        for (Segment segment : segments) {
+            if (distinct.add(CharBuffer.wrap(chars, segment.start - start, segment.end - segment.start))) {
+                sb.append(chars, segment.start - start, segment.end - segment.start);
+            }
+        }
+    }
+
+    private static char[] copyTail(StringBuilder sb, int start) {
+        final char[] chars = new char[sb.length() - start];
+        sb.getChars(start, sb.length(), chars, 0);
+        sb.setLength(start);
+
+        return chars;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Iterable<Map.Entry<String, Object>> entries(DBObject obj) {
+        if (obj instanceof Map) {
+            return ((Map<String, Object>) obj).entrySet();
+        }
+
+        // Lazy documents and lists look up every key and index by scanning their BSON, so they are only iterated.
+        final List<Map.Entry<String, Object>> entries = new ArrayList<>();
+        if (obj instanceof List) {
+            int i = 0;
+            for (Object value : (List<Object>) obj) {
+                entries.add(new AbstractMap.SimpleImmutableEntry<>(String.valueOf(i++), value));
+            }
+        } else if (obj instanceof LazyBSONObject) {
+            return ((LazyBSONObject) obj).entrySet();
+        } else {
+            for (String key : obj.keySet()) {
+                entries.add(new AbstractMap.SimpleImmutableEntry<>(key, obj.get(key)));
+            }
+        }
+
+        return entries;
+    }
+
+    private static class Segment {
+        private final String key;
+        private final int start;
+        private int end;
+
+        private Segment(String key, int start) {
+            this.key = key;
+            this.start = start;
+        }
+
+        private Segment end(int end) {
+            this.end = end;
+            return this;
+        }
     }
 }
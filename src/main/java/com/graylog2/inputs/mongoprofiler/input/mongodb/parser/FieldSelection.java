@@ -0,0 +1,135 @@
+package com.graylog2.inputs.mongoprofiler.input.mongodb.parser;
+
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+
+import javax.annotation.Nullable;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The message fields built by the parser, compiled once from a comma separated list of field names. Names
+ * ending in * select all fields starting with the rest of the name, like "lockwait_*". Fields that aren't
+ * selected aren't computed at all, so leaving out "query", "command" and their hashes skips normalizing.
+ *
+ * Codecs are created for every single message, so compiled selections are shared by the codecs of all inputs
+ * with the same list.
+ */
+public class FieldSelection {
+    public static final FieldSelection ALL = new FieldSelection(ImmutableSet.of(), ImmutableList.of(""));
+
+    // Inputs rarely differ in their lists, anything beyond that is compiled again.
+    private static final int MAX_COMPILED = 64;
+    private static final ConcurrentMap<String, FieldSelection> COMPILED = new ConcurrentHashMap<>();
+
+    private final Set<String> names;
+    private final List<String> prefixes;
+    private final boolean[] fields = new boolean[MessageField.values().length];
+    private final boolean lockFields;
+    // The lock fields are named after the locked resources, the few a server knows are looked up once each.
+    private final ConcurrentMap<String, Boolean> includedLockFields = new ConcurrentHashMap<>();
+
+    private FieldSelection(Set<String> names, List<String> prefixes) {
+        this.names = names;
+        this.prefixes = prefixes;
+        for (MessageField field : MessageField.values()) {
+            fields[field.ordinal()] = matches(field.getFieldName());
+        }
+
+        boolean lockFields = false;
+        for (String prefix : prefixes) {
+            lockFields |= "lock_".startsWith(prefix) || prefix.startsWith("lock_") || "lockwait_".startsWith(prefix) || prefix.startsWith("lockwait_");
+        }
+        for (String name : names) {
+            lockFields |= MessageField.isLockField(name);
+        }
+        this.lockFields = lockFields;
+    }
+
+    /**
+     * @param spec comma separated field names, empty for all fields
+     * @throws IllegalArgumentException if a name isn't a field of the parser
+     */
+    public static FieldSelection parse(@Nullable String spec) {
+        final ImmutableSet.Builder<String> names = ImmutableSet.builder();
+        final ImmutableList.Builder<String> prefixes = ImmutableList.builder();
+        boolean empty = true;
+        for (String name : Splitter.on(',').trimResults().omitEmptyStrings().split(spec == null ? "" : spec)) {
+            empty = false;
+            if (name.endsWith("*")) {
+                prefixes.add(name.substring(0, name.length() - 1));
+            } else if (MessageField.fromFieldName(name) != null || MessageField.isLockField(name)) {
+                names.add(name);
+            } else {
+                throw new IllegalArgumentException("Unknown message field " + name + ".");
+            }
+        }
+
+        return empty ? ALL : new FieldSelection(names.build(), prefixes.build());
+    }
+
+    /**
+     * Like {@link #parse(String)}, but compiles every list only once.
+     */
+    public static FieldSelection forSpec(@Nullable String spec) {
+        final String key = spec == null ? "" : spec;
+        final FieldSelection selection = COMPILED.get(key);
+        if (selection != null) {
+            return selection;
+        }
+
+        final FieldSelection compiled = parse(key);
+        if (COMPILED.size() < MAX_COMPILED) {
+            COMPILED.put(key, compiled);
+        }
+        return compiled;
+    }
+
+    public boolean includes(MessageField field) {
+        return fields[field.ordinal()];
+    }
+
+    public boolean includesAny(MessageField... fields) {
+        for (MessageField field : fields) {
+            if (includes(field)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Whether any of the lock fields of MongoDB 3.0 and later may be selected.
+     */
+    public boolean includesLockFields() {
+        return lockFields;
+    }
+
+    /**
+     * Whether the given lock field of MongoDB 3.0 and later is selected.
+     */
+    public boolean includesLockField(String fieldName) {
+        if (!lockFields) {
+            return false;
+        }
+
+        return includedLockFields.computeIfAbsent(fieldName, this::matches);
+    }
+
+    private boolean matches(String fieldName) {
+        if (names.contains(fieldName)) {
+            return true;
+        }
+        for (String prefix : prefixes) {
+            if (fieldName.startsWith(prefix)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+}
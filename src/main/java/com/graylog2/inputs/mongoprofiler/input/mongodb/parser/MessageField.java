@@ -0,0 +1,102 @@
+package com.graylog2.inputs.mongoprofiler.input.mongodb.parser;
+
+import com.google.common.collect.ImmutableMap;
+
+import javax.annotation.Nullable;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * The message fields the parser builds from a profile entry. The lock fields of MongoDB 3.0 and later are named
+ * after the locked resource and therefore aren't listed, see {@link #isLockField(String)}.
+ */
+public enum MessageField {
+    OPERATION("operation"),
+    COLLECTION("collection"),
+    DATABASE("database"),
+    MILLIS("millis"),
+    CLIENT("client"),
+    USER("user"),
+    APP_NAME("app_name"),
+    QUERY("query"),
+    COMMAND("command"),
+    QUERY_FULL_HASH("query_full_hash"),
+    QUERY_FIELDS_HASH("query_fields_hash"),
+    QUERY_SHAPE("query_shape"),
+    UPDATE_OBJECT("update_object"),
+    UPDATE_OBJECT_FULL_HASH("update_object_full_hash"),
+    UPDATE_OBJECT_FIELDS_HASH("update_object_fields_hash"),
+    UPDATE_OBJECT_SHAPE("update_object_shape"),
+    CURSOR_ID("cursor_id"),
+    DOCS_TO_SKIP("docs_to_skip"),
+    DOCS_TO_RETURN("docs_to_return"),
+    DOCS_SCANNED("docs_scanned"),
+    KEYS_EXAMINED("keys_examined"),
+    DOCS_EXAMINED("docs_examined"),
+    SCAN_AND_ORDER("scan_and_order"),
+    MOVED("moved"),
+    DOCS_MOVED("docs_moved"),
+    DOCS_UPDATED("docs_updated"),
+    DOCS_INSERTED("docs_inserted"),
+    DOCS_DELETED("docs_deleted"),
+    INDEX_KEYS_UPDATED("index_keys_updated"),
+    WRITE_CONFLICTS("write_conflicts"),
+    YIELDS("yields"),
+    DOCS_RETURNED("docs_returned"),
+    RESPONSE_BYTES("response_bytes"),
+    KEYS_EXAMINED_PER_RETURNED("keys_examined_per_returned"),
+    DOCS_EXAMINED_PER_RETURNED("docs_examined_per_returned"),
+    PLAN_SUMMARY("plan_summary"),
+    QUERY_HASH("query_hash"),
+    PLAN_CACHE_KEY("plan_cache_key"),
+    EXEC_STAGES("exec_stages"),
+    EXEC_MILLIS_ESTIMATE("exec_millis_estimate"),
+    LOCKED_DB_READ_MICROS("locked_db_read_micros"),
+    LOCKED_DB_WRITE_MICROS("locked_db_write_micros"),
+    LOCKED_GLOBAL_READ_MICROS("locked_global_read_micros"),
+    LOCKED_GLOBAL_WRITE_MICROS("locked_global_write_micros"),
+    LOCKWAIT_DB_READ_MICROS("lockwait_db_read_micros"),
+    LOCKWAIT_DB_WRITE_MICROS("lockwait_db_write_micros"),
+    LOCKWAIT_GLOBAL_READ_MICROS("lockwait_global_read_micros"),
+    LOCKWAIT_GLOBAL_WRITE_MICROS("lockwait_global_write_micros"),
+    STORAGE_BYTES_READ("storage_bytes_read"),
+    STORAGE_READ_MICROS("storage_read_micros"),
+    STORAGE_BYTES_WRITTEN("storage_bytes_written"),
+    STORAGE_WRITE_MICROS("storage_write_micros");
+
+    private static final Pattern LOCK_FIELD = Pattern.compile("lock_[a-z0-9]+_(acquire|wait)_count|lockwait_[a-z0-9]+_micros");
+    private static final Map<String, MessageField> BY_NAME;
+
+    static {
+        final ImmutableMap.Builder<String, MessageField> byName = ImmutableMap.builder();
+        for (MessageField field : values()) {
+            byName.put(field.fieldName, field);
+        }
+        BY_NAME = byName.build();
+    }
+
+    private final String fieldName;
+
+    MessageField(String fieldName) {
+        this.fieldName = fieldName;
+    }
+
+    public String getFieldName() {
+        return fieldName;
+    }
+
+    /**
+     * Returns the field with the given message field name, {@code null} if there is none.
+     */
+    @Nullable
+    public static MessageField fromFieldName(String fieldName) {
+        return BY_NAME.get(fieldName);
+    }
+
+    /**
+     * Whether {@code fieldName} is one of the lock fields of MongoDB 3.0 and later, like "lockwait_collection_micros".
+     */
+    public static boolean isLockField(String fieldName) {
+        return LOCK_FIELD.matcher(fieldName).matches();
+    }
+}
@@ -1,8 +1,12 @@
 package com.graylog2.inputs.mongoprofiler.input.mongodb.parser;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.module.SimpleModule;
+import com.google.common.collect.ImmutableSet;
+import com.graylog2.inputs.mongoprofiler.input.mongodb.normalizer.ArrayNormalization;
+import com.graylog2.inputs.mongoprofiler.input.mongodb.normalizer.BoundedJsonWriter;
+import com.graylog2.inputs.mongoprofiler.input.mongodb.normalizer.FingerprintAlgorithm;
+import com.graylog2.inputs.mongoprofiler.input.mongodb.normalizer.FingerprintCache;
 import com.graylog2.inputs.mongoprofiler.input.mongodb.normalizer.Normalizer;
 import com.mongodb.DBObject;
 import org.bson.types.ObjectId;
@@ -12,171 +16,721 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nullable;
-import java.util.HashMap;
+import java.io.IOException;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class Parser {
     private static final Logger LOG = LoggerFactory.getLogger(Parser.class);
 
-    private final ObjectMapper om;
+    // Codecs are created for every single message, so the mapper is shared instead of being built each time.
+    private static final ObjectMapper om = new ObjectMapper()
+            .registerModule(
+                    new SimpleModule("BSONObjectIdParser").addSerializer(ObjectId.class, new ObjectIdSerializer())
+            );
+
+    /**
+     * The top-level fields of a profile document the parser reads. All others can be left out when reading them.
+     */
+    public static final Set<String> PROFILE_FIELDS = ImmutableSet.of(
+            "op", "ns", "ts", "millis", "client", "user", "query", "command", "updateobj", "cursorid",
+            "ntoskip", "ntoreturn", "nscanned", "scanAndOrder", "moved", "nmoved", "nupdated", "keyUpdates",
+            "numYield", "nreturned", "responseLength", "lockStats", "nscannedObjects", "keysExamined",
+            "docsExamined", "hasSortStage", "nModified", "ninserted", "ndeleted", "writeConflicts",
+            "planSummary", "execStats", "locks", "storage", "queryHash", "planCacheKey", "appName");
+
+    /**
+     * The paths of a profile document the parser reads. Like {@link #PROFILE_FIELDS}, except that only the stage
+     * names of the plan in "execStats" are read instead of all of its statistics.
+     */
+    public static final Set<String> PROFILE_PATHS;
+
+    // Plans are deeper than this in rare cases only, their remaining stages are left out.
+    private static final int MAX_STAGE_DEPTH = 8;
+
+    static {
+        final ImmutableSet.Builder<String> paths = ImmutableSet.builder();
+        for (String field : PROFILE_FIELDS) {
+            if (!"execStats".equals(field)) {
+                paths.add(field);
+            }
+        }
+        paths.add("execStats.executionTimeMillisEstimate");
+        for (Schema schema : Schema.values()) {
+            String stage = "execStats";
+            for (int depth = 0; depth < MAX_STAGE_DEPTH; depth++) {
+                paths.add(stage + "." + schema.stageKey);
+                paths.add(stage + "." + schema.childrenKey + "." + schema.stageKey);
+                stage = stage + "." + schema.childKey;
+            }
+        }
+        PROFILE_PATHS = paths.build();
+    }
+
+    private final FingerprintAlgorithm fingerprintAlgorithm;
+    private final FieldSelection fields;
+    private final int maxJsonBytes;
+    private final boolean redactLiterals;
+    private final ArrayNormalization arrayNormalization;
+    // What to compute, resolved once from the selected fields.
+    private final boolean normalizeQuery;
+    private final boolean normalizeCommand;
+    private final boolean normalizeUpdate;
+    private final boolean locks;
+    private final boolean storage;
 
     public Parser() {
-        this.om = new ObjectMapper()
-                .registerModule(
-                        new SimpleModule("BSONObjectIdParser").addSerializer(ObjectId.class, new ObjectIdSerializer())
-                );
+        this(FingerprintAlgorithm.MD5);
     }
 
-    public Message parse(DBObject doc) throws UnparsableException {
-        if (!doc.containsField("op")) {
-            LOG.debug("Not parsing profile info with no op.");
-            throw new UnparsableException();
-        }
+    public Parser(FingerprintAlgorithm fingerprintAlgorithm) {
+        this(fingerprintAlgorithm, FieldSelection.ALL);
+    }
 
-        final Message msg = new Message(buildShortMessage(doc), "mongoprof", new DateTime(doc.get("ts")));
+    public Parser(FingerprintAlgorithm fingerprintAlgorithm, FieldSelection fields) {
+        this(fingerprintAlgorithm, fields, 0, false);
+    }
 
-        // Add all fields.
-        msg.addFields(getFields(doc));
+    public Parser(FingerprintAlgorithm fingerprintAlgorithm, FieldSelection fields, int maxJsonBytes, boolean redactLiterals) {
+        this(fingerprintAlgorithm, fields, maxJsonBytes, redactLiterals, ArrayNormalization.LEGACY);
+    }
 
-        return msg;
+    /**
+     * @param maxJsonBytes       the maximum size of the JSON of a query, command or update object, 0 for no limit
+     * @param redactLiterals     whether to replace the values in the JSON with placeholders
+     * @param arrayNormalization how the fields hashes and shapes describe arrays
+     */
+    public Parser(FingerprintAlgorithm fingerprintAlgorithm, FieldSelection fields, int maxJsonBytes, boolean redactLiterals,
+                  ArrayNormalization arrayNormalization) {
+        this.fingerprintAlgorithm = fingerprintAlgorithm;
+        this.fields = fields;
+        this.maxJsonBytes = maxJsonBytes;
+        this.redactLiterals = redactLiterals;
+        this.arrayNormalization = arrayNormalization;
+        this.normalizeQuery = fields.includesAny(MessageField.QUERY, MessageField.QUERY_FULL_HASH,
+                MessageField.QUERY_FIELDS_HASH, MessageField.QUERY_SHAPE);
+        this.normalizeCommand = fields.includesAny(MessageField.COMMAND, MessageField.QUERY_FULL_HASH,
+                MessageField.QUERY_FIELDS_HASH, MessageField.QUERY_SHAPE);
+        this.normalizeUpdate = fields.includesAny(MessageField.UPDATE_OBJECT, MessageField.UPDATE_OBJECT_FULL_HASH,
+                MessageField.UPDATE_OBJECT_FIELDS_HASH, MessageField.UPDATE_OBJECT_SHAPE);
+        this.locks = fields.includesLockFields() || fields.includesAny(
+                MessageField.LOCKED_DB_READ_MICROS, MessageField.LOCKED_DB_WRITE_MICROS,
+                MessageField.LOCKED_GLOBAL_READ_MICROS, MessageField.LOCKED_GLOBAL_WRITE_MICROS,
+                MessageField.LOCKWAIT_DB_READ_MICROS, MessageField.LOCKWAIT_DB_WRITE_MICROS,
+                MessageField.LOCKWAIT_GLOBAL_READ_MICROS, MessageField.LOCKWAIT_GLOBAL_WRITE_MICROS);
+        this.storage = fields.includesAny(MessageField.STORAGE_BYTES_READ, MessageField.STORAGE_READ_MICROS,
+                MessageField.STORAGE_BYTES_WRITTEN, MessageField.STORAGE_WRITE_MICROS);
     }
 
-    private String buildShortMessage(DBObject doc) {
-        return String.valueOf(doc.get("op")) + " " + String.valueOf(doc.get("ns")) + " [" + String.valueOf(doc.get("millis")) + "ms]";
+    public Message parse(DBObject doc) throws UnparsableException {
+        return parse(doc, null);
     }
 
-    private Map<String, Object> getFields(DBObject doc) {
-        String collection = null;
-        String database = null;
+    public Message parse(DBObject doc, @Nullable FingerprintCache fingerprintCache) throws UnparsableException {
+        return parseEntry(doc, fingerprintCache).getMessage();
+    }
+
+    /**
+     * Like {@link #parse(DBObject, FingerprintCache)}, but also returns what the metrics of the codec need to know
+     * about the entry. Parsers keep no state of their own, so they can be shared by threads.
+     */
+    public Result parseEntry(DBObject doc, @Nullable FingerprintCache fingerprintCache) throws UnparsableException {
+        final ProfileEntry entry = new ProfileEntry(doc);
+        if (entry.op == null) {
+            LOG.debug("Not parsing profile info with no op.");
+            throw new UnparsableException();
+        }
 
         /*
          * The "namespace" (ns) is a combination of database.collection.
          * Split it to the interesting parts.
          */
-        if (doc.containsField("ns") && ((String) doc.get("ns")).contains(".")) {
-            String ns = (String) doc.get("ns");
+        if (entry.ns instanceof String && ((String) entry.ns).contains(".")) {
+            String ns = (String) entry.ns;
             int x = ns.indexOf(".");
-            database = ns.substring(0, x);
-            collection = ns.substring(x + 1);
+            entry.database = ns.substring(0, x);
+            entry.collection = ns.substring(x + 1);
         }
 
-        final Map<String, Object> fields = new HashMap<>();
+        final Message msg = new Message(buildShortMessage(entry), "mongoprof", new DateTime(entry.ts));
+
+        // Add all selected fields.
+        addFields(msg, entry, fingerprintCache);
+
+        return new Result(msg, entry.database, entry.normalizeNanos);
+    }
+
+    /**
+     * Builds the message of a rollup of the profile entries of one query shape. The rollup's "ts" is the end of
+     * its window, all other values become message fields.
+     */
+    public Message parseRollup(DBObject rollup) {
+        final Object ts = rollup.get("ts");
+        final String shortMessage = "rollup " + rollup.get("operation") + " " + rollup.get("database") + "." + rollup.get("collection")
+                + " [" + rollup.get("count") + " ops, " + rollup.get("millis_max") + "ms max]";
+        final Message msg = new Message(shortMessage, "mongoprof", new DateTime(ts));
+
+        msg.addField("rollup", true);
+        for (String key : rollup.keySet()) {
+            final Object value = rollup.get(key);
+            if ("ts".equals(key) || value == null) {
+                continue;
+            }
 
+            msg.addField(key, value instanceof Date ? new DateTime(value) : value);
+        }
+
+        return msg;
+    }
+
+    private String buildShortMessage(ProfileEntry entry) {
+        return String.valueOf(entry.op) + " " + String.valueOf(entry.ns) + " [" + String.valueOf(entry.millis) + "ms]";
+    }
+
+    private void addFields(Message msg, ProfileEntry entry, @Nullable FingerprintCache fingerprintCache) {
         // Standard fields of every op type.
-        fields.put("operation", doc.get("op"));
-        fields.put("collection", collection);
-        fields.put("database", database);
-        fields.put("millis", doc.get("millis"));
-        fields.put("client", doc.get("client"));
-        fields.put("user", doc.get("user"));
+        add(msg, MessageField.OPERATION, entry.op);
+        add(msg, MessageField.COLLECTION, entry.collection);
+        add(msg, MessageField.DATABASE, entry.database);
+        // Fast operations take 0ms, leaving them out would skew the statistics.
+        add(msg, MessageField.MILLIS, entry.millis);
+        add(msg, MessageField.CLIENT, entry.client);
+        add(msg, MessageField.USER, entry.user);
+        add(msg, MessageField.APP_NAME, entry.appName instanceof String ? entry.appName : null);
 
         // Query.
-        if (doc.containsField("query")) {
+        if (entry.query != null && normalizeQuery) {
             try {
-                final Normalizer normalizer = new Normalizer((DBObject) doc.get("query"), database, collection);
-                fields.put("query", om.writeValueAsString(doc.get("query")));
-                fields.put("query_full_hash", normalizer.getFullHash());
-                fields.put("query_fields_hash", normalizer.getFieldsHash());
-            } catch (JsonProcessingException e) {
-                LOG.error("Could not parse MongoDB query to JSON. Not including in fields. Query: " + doc.get("query"), e);
+                addNormalized(msg, entry, (DBObject) entry.query, fingerprintCache, MessageField.QUERY, MessageField.QUERY_FULL_HASH, MessageField.QUERY_FIELDS_HASH, MessageField.QUERY_SHAPE);
+            } catch (IOException e) {
+                LOG.error("Could not parse MongoDB query to JSON. Not including in fields. Query: " + entry.query, e);
             }
         }
 
         // Command
-        if (doc.containsField("command")) {
+        if (entry.command != null && normalizeCommand) {
             try {
-                final Normalizer normalizer = new Normalizer((DBObject) doc.get("command"), database, collection);
-                fields.put("command", om.writeValueAsString(doc.get("command")));
-                fields.put("query_full_hash", normalizer.getFullHash());
-                fields.put("query_fields_hash", normalizer.getFieldsHash());
-            } catch (JsonProcessingException e) {
-                LOG.error("Could not parse MongoDB command to JSON. Not including in fields. Command: " + doc.get("command"), e);
+                addNormalized(msg, entry, (DBObject) entry.command, fingerprintCache, MessageField.COMMAND, MessageField.QUERY_FULL_HASH, MessageField.QUERY_FIELDS_HASH, MessageField.QUERY_SHAPE);
+            } catch (IOException e) {
+                LOG.error("Could not parse MongoDB command to JSON. Not including in fields. Command: " + entry.command, e);
             }
         }
 
         // Update object.
-        if (doc.containsField("updateobj")) {
+        if (entry.updateobj != null && normalizeUpdate) {
             try {
-                final Normalizer normalizer = new Normalizer((DBObject) doc.get("updateobj"), database, collection);
-                fields.put("update_object", om.writeValueAsString(doc.get("updateobj")));
-                fields.put("update_object_full_hash", normalizer.getFullHash());
-                fields.put("update_object_fields_hash", normalizer.getFieldsHash());
-            } catch (JsonProcessingException e) {
-                LOG.error("Could not parse MongoDB update object to JSON. Not including in fields. Update object: " + doc.get("updateobj"), e);
+                addNormalized(msg, entry, (DBObject) entry.updateobj, fingerprintCache, MessageField.UPDATE_OBJECT, MessageField.UPDATE_OBJECT_FULL_HASH, MessageField.UPDATE_OBJECT_FIELDS_HASH, MessageField.UPDATE_OBJECT_SHAPE);
+            } catch (IOException e) {
+                LOG.error("Could not parse MongoDB update object to JSON. Not including in fields. Update object: " + entry.updateobj, e);
             }
         }
 
+        final Schema schema = Schema.of(entry);
+        final Number keysExamined = positive(schema.keysExamined(entry));
+        final Number docsExamined = positive(schema.docsExamined(entry));
+        final Number returned = positive(entry.nreturned);
+
         // Some of these will/might be NULL.
-        fields.put("cursor_id", doc.get("cursorid"));
-        fields.put("docs_to_skip", getIntFieldNotZero(doc, "ntoskip"));
-        fields.put("docs_to_return", getIntFieldNotZero(doc, "ntoreturn"));
-        fields.put("docs_scanned", doc.get("nscanned"));
-        fields.put("scan_and_order", doc.get("scanAndOrder"));
-        fields.put("moved", doc.get("moved"));
-        fields.put("docs_moved", getIntFieldNotZero(doc, "nmoved"));
-        fields.put("docs_updated", getIntFieldNotZero(doc, "nupdated"));
-        fields.put("index_keys_updated", getIntFieldNotZero(doc, "keyUpdates"));
-        fields.put("yields", getIntFieldNotZero(doc, "numYield"));
-        fields.put("docs_returned", getIntFieldNotZero(doc, "nreturned"));
-        fields.put("response_bytes", doc.get("responseLength"));
+        add(msg, MessageField.CURSOR_ID, positive(entry.cursorid));
+        add(msg, MessageField.DOCS_TO_SKIP, positive(entry.ntoskip));
+        add(msg, MessageField.DOCS_TO_RETURN, positive(entry.ntoreturn));
+        // What 3.2 calls keysExamined, under its 2.x name.
+        add(msg, MessageField.DOCS_SCANNED, keysExamined);
+        add(msg, MessageField.KEYS_EXAMINED, keysExamined);
+        add(msg, MessageField.DOCS_EXAMINED, docsExamined);
+        add(msg, MessageField.SCAN_AND_ORDER, isTrue(entry.scanAndOrder) || isTrue(entry.hasSortStage) ? true : null);
+        add(msg, MessageField.MOVED, isTrue(entry.moved) ? true : null);
+        add(msg, MessageField.DOCS_MOVED, positive(entry.nmoved));
+        add(msg, MessageField.DOCS_UPDATED, positive(entry.nModified != null ? entry.nModified : entry.nupdated));
+        add(msg, MessageField.DOCS_INSERTED, positive(entry.ninserted));
+        add(msg, MessageField.DOCS_DELETED, positive(entry.ndeleted));
+        add(msg, MessageField.INDEX_KEYS_UPDATED, positive(entry.keyUpdates));
+        add(msg, MessageField.WRITE_CONFLICTS, positive(entry.writeConflicts));
+        add(msg, MessageField.YIELDS, positive(entry.numYield));
+        add(msg, MessageField.DOCS_RETURNED, returned);
+        add(msg, MessageField.RESPONSE_BYTES, positive(entry.responseLength));
+
+        // How efficiently the documents were found, the higher the worse.
+        if (fields.includes(MessageField.KEYS_EXAMINED_PER_RETURNED)) {
+            add(msg, MessageField.KEYS_EXAMINED_PER_RETURNED, ratio(keysExamined, returned));
+        }
+        if (fields.includes(MessageField.DOCS_EXAMINED_PER_RETURNED)) {
+            add(msg, MessageField.DOCS_EXAMINED_PER_RETURNED, ratio(docsExamined, returned));
+        }
 
+        // Query plan.
+        add(msg, MessageField.PLAN_SUMMARY, entry.planSummary instanceof String ? entry.planSummary : null);
+        add(msg, MessageField.QUERY_HASH, entry.queryHash instanceof String ? entry.queryHash : null);
+        add(msg, MessageField.PLAN_CACHE_KEY, entry.planCacheKey instanceof String ? entry.planCacheKey : null);
+        if (entry.execStats instanceof DBObject) {
+            final DBObject execStats = (DBObject) entry.execStats;
+            if (fields.includes(MessageField.EXEC_STAGES)) {
+                add(msg, MessageField.EXEC_STAGES, schema.stages(execStats));
+            }
+            add(msg, MessageField.EXEC_MILLIS_ESTIMATE, positive(execStats.get("executionTimeMillisEstimate")));
+        }
 
         // Lock stats.
-        if (doc.containsField("lockStats")) {
-            fields.putAll(lockStats(doc));
+        if (locks) {
+            schema.addLocks(msg, entry, fields);
         }
 
-        return fields;
+        // Storage engine stats, the data read from and written to disk.
+        if (storage && entry.storage instanceof DBObject && ((DBObject) entry.storage).get("data") instanceof DBObject) {
+            final DBObject data = (DBObject) ((DBObject) entry.storage).get("data");
+            add(msg, MessageField.STORAGE_BYTES_READ, positive(data.get("bytesRead")));
+            add(msg, MessageField.STORAGE_READ_MICROS, positive(data.get("timeReadingMicros")));
+            add(msg, MessageField.STORAGE_BYTES_WRITTEN, positive(data.get("bytesWritten")));
+            add(msg, MessageField.STORAGE_WRITE_MICROS, positive(data.get("timeWritingMicros")));
+        }
     }
 
-    @Nullable
-    private Integer getIntFieldNotZero(DBObject doc, String key) {
-        if (!doc.containsField(key)) {
-            return null;
+    /**
+     * Renders {@code obj} as JSON and computes both of its hashes in one traversal. The JSON is only rendered
+     * if its field is selected, the hashes always cover the whole document.
+     */
+    private void addNormalized(Message msg, ProfileEntry entry, DBObject obj, @Nullable FingerprintCache fingerprintCache,
+                               MessageField jsonField, MessageField fullHashField, MessageField fieldsHashField,
+                               MessageField shapeField) throws IOException {
+        final long start = System.nanoTime();
+        final Normalizer normalizer;
+        if (fields.includes(jsonField)) {
+            final BoundedJsonWriter json = new BoundedJsonWriter(om.getFactory(), maxJsonBytes, redactLiterals);
+            normalizer = Normalizer.normalize(obj, entry.database, entry.collection, fingerprintAlgorithm, arrayNormalization, fingerprintCache, json);
+            msg.addField(jsonField.getFieldName(), json.finish());
+        } else {
+            normalizer = Normalizer.normalize(obj, entry.database, entry.collection, fingerprintAlgorithm, arrayNormalization, fingerprintCache, null);
         }
 
-        final Integer val = (Integer) doc.get(key);
-        if (val > 0) {
-            return val;
-        } else {
-            return null;
+        add(msg, fullHashField, normalizer.getFullHash());
+        add(msg, fieldsHashField, normalizer.getFieldsHash());
+        if (fields.includes(shapeField)) {
+            add(msg, shapeField, bounded(normalizer.getShape()));
         }
+        entry.normalizeNanos += System.nanoTime() - start;
     }
 
+    /**
+     * Cuts off shapes longer than the JSON may be, like the shapes of queries with huge arrays.
+     */
+    private String bounded(String shape) {
+        return BoundedJsonWriter.truncate(shape, maxJsonBytes);
+    }
+
+    /**
+     * Adds a field if it's selected and has a value, empty strings don't count as values.
+     */
+    private void add(Message msg, MessageField field, @Nullable Object value) {
+        if (value != null && fields.includes(field) && !"".equals(value)) {
+            msg.addField(field.getFieldName(), value);
+        }
+    }
+
+    private static boolean isTrue(@Nullable Object value) {
+        return Boolean.TRUE.equals(value);
+    }
+
+    /**
+     * Returns a positive counter, {@code null} for anything else. Depending on the server version and on how
+     * the entry was written, counters are 32 or 64 bit integers or doubles. The latter are converted to longs.
+     */
     @Nullable
-    private Long getLongFieldNotZero(DBObject doc, String key) {
-        if (!doc.containsField(key)) {
-            return null;
+    private static Number positive(@Nullable Object value) {
+        if (value instanceof Integer || value instanceof Long) {
+            return ((Number) value).longValue() > 0 ? (Number) value : null;
+        }
+        if (value instanceof Number) {
+            final long val = ((Number) value).longValue();
+            return val > 0 ? val : null;
         }
 
-        final Long val = (Long) doc.get(key);
-        if (val > 0) {
-            return val;
-        } else {
+        return null;
+    }
+
+    @Nullable
+    private static Long positive(@Nullable DBObject doc, String key) {
+        final Number value = doc == null ? null : positive(doc.get(key));
+        return value == null ? null : value.longValue();
+    }
+
+    /**
+     * Returns the number of keys or documents examined per document returned, counting operations returning
+     * nothing as returning a single document.
+     */
+    @Nullable
+    private static Double ratio(@Nullable Number examined, @Nullable Number returned) {
+        if (examined == null) {
             return null;
         }
+
+        return examined.doubleValue() / (returned == null ? 1L : returned.longValue());
     }
 
-    private Map<String, Object> lockStats(DBObject doc) {
-        final Map<String, Object> result = new HashMap<>();
+    @Nullable
+    private static DBObject document(@Nullable Object value) {
+        return value instanceof DBObject ? (DBObject) value : null;
+    }
 
-        final DBObject stats = (DBObject) doc.get("lockStats");
-        final DBObject timeLocked = (DBObject) stats.get("timeLockedMicros");
-        final DBObject timeAcquiring = (DBObject) stats.get("timeAcquiringMicros");
+    private static void lockStats(Message msg, DBObject stats, FieldSelection fields) {
+        final DBObject timeLocked = document(stats.get("timeLockedMicros"));
+        final DBObject timeAcquiring = document(stats.get("timeAcquiringMicros"));
 
         // The time in microseconds the operation held a specific lock.
-        result.put("locked_db_read_micros", getLongFieldNotZero(timeLocked, "r"));
-        result.put("locked_db_write_micros", getLongFieldNotZero(timeLocked, "w"));
-        result.put("locked_global_read_micros", getLongFieldNotZero(timeLocked, "R"));
-        result.put("locked_global_write_micros", getLongFieldNotZero(timeLocked, "W"));
+        addLockField(msg, fields, MessageField.LOCKED_DB_READ_MICROS, positive(timeLocked, "r"));
+        addLockField(msg, fields, MessageField.LOCKED_DB_WRITE_MICROS, positive(timeLocked, "w"));
+        addLockField(msg, fields, MessageField.LOCKED_GLOBAL_READ_MICROS, positive(timeLocked, "R"));
+        addLockField(msg, fields, MessageField.LOCKED_GLOBAL_WRITE_MICROS, positive(timeLocked, "W"));
 
         // The time in microseconds the operation spent waiting to acquire a specific lock
-        result.put("lockwait_db_read_micros", getLongFieldNotZero(timeAcquiring, "r"));
-        result.put("lockwait_db_write_micros", getLongFieldNotZero(timeAcquiring, "w"));
-        result.put("lockwait_global_read_micros", getLongFieldNotZero(timeAcquiring, "R"));
-        result.put("lockwait_global_write_micros", getLongFieldNotZero(timeAcquiring, "W"));
+        addLockField(msg, fields, MessageField.LOCKWAIT_DB_READ_MICROS, positive(timeAcquiring, "r"));
+        addLockField(msg, fields, MessageField.LOCKWAIT_DB_WRITE_MICROS, positive(timeAcquiring, "w"));
+        addLockField(msg, fields, MessageField.LOCKWAIT_GLOBAL_READ_MICROS, positive(timeAcquiring, "R"));
+        addLockField(msg, fields, MessageField.LOCKWAIT_GLOBAL_WRITE_MICROS, positive(timeAcquiring, "W"));
+    }
 
-        return result;
+    private static void addLockField(Message msg, FieldSelection fields, MessageField field, @Nullable Long value) {
+        if (value != null && fields.includes(field)) {
+            msg.addField(field.getFieldName(), value);
+        }
+    }
+
+    private static void addLockField(Message msg, FieldSelection fields, String fieldName, @Nullable Long value) {
+        if (value != null && fields.includesLockField(fieldName)) {
+            msg.addField(fieldName, value);
+        }
+    }
+
+    /**
+     * Adds the lock statistics of 3.0 and later, which are kept per resource like "Global", "Database" or
+     * "Collection" and, within a resource, per lock mode. The modes are summed up.
+     */
+    private static void locks(Message msg, DBObject locks, FieldSelection fields) {
+        for (String resource : locks.keySet()) {
+            final DBObject stats = document(locks.get(resource));
+            if (stats == null) {
+                continue;
+            }
+
+            final LockFields names = LockFields.of(resource);
+            addLockField(msg, fields, names.acquireCount, sum(stats.get("acquireCount")));
+            addLockField(msg, fields, names.waitCount, sum(stats.get("acquireWaitCount")));
+            addLockField(msg, fields, names.waitMicros, sum(stats.get("timeAcquiringMicros")));
+        }
+    }
+
+    @Nullable
+    private static Long sum(@Nullable Object modes) {
+        final DBObject doc = document(modes);
+        if (doc == null) {
+            return null;
+        }
+
+        long sum = 0L;
+        for (String mode : doc.keySet()) {
+            final Number value = positive(doc.get(mode));
+            if (value != null) {
+                sum += value.longValue();
+            }
+        }
+
+        return sum > 0 ? sum : null;
+    }
+
+    /**
+     * The message fields of the locks of a resource, built once per resource.
+     */
+    private static class LockFields {
+        // Servers know a dozen resources or so, anything beyond that isn't cached.
+        private static final int MAX_CACHED = 64;
+        private static final Map<String, LockFields> CACHE = new ConcurrentHashMap<>();
+
+        private final String acquireCount;
+        private final String waitCount;
+        private final String waitMicros;
+
+        private LockFields(String resource) {
+            // Like the 2.x fields, "Database" becomes "db".
+            final String name = "Database".equals(resource) ? "db" : resource.toLowerCase(Locale.ENGLISH);
+            this.acquireCount = "lock_" + name + "_acquire_count";
+            this.waitCount = "lock_" + name + "_wait_count";
+            this.waitMicros = "lockwait_" + name + "_micros";
+        }
+
+        private static LockFields of(String resource) {
+            final LockFields fields = CACHE.get(resource);
+            if (fields != null) {
+                return fields;
+            }
+
+            final LockFields created = new LockFields(resource);
+            if (CACHE.size() < MAX_CACHED) {
+                CACHE.put(resource, created);
+            }
+            return created;
+        }
+    }
+
+    /**
+     * The profile schemas of the server versions, told apart by the fields only they write. The schema of an
+     * entry is resolved once, it then reads the fields it knows without looking for those of the others.
+     */
+    private enum Schema {
+        /**
+         * 2.x, with the lock times of "lockStats" and plans made of "children".
+         */
+        V2("type", "children", "children") {
+            @Override
+            Object keysExamined(ProfileEntry entry) {
+                return entry.nscanned;
+            }
+
+            @Override
+            Object docsExamined(ProfileEntry entry) {
+                return entry.nscannedObjects;
+            }
+
+            @Override
+            void addLocks(Message msg, ProfileEntry entry, FieldSelection fields) {
+                if (entry.lockStats instanceof DBObject) {
+                    lockStats(msg, (DBObject) entry.lockStats, fields);
+                }
+            }
+        },
+
+        /**
+         * 3.0, which kept the scan counters of 2.x but reports locks per resource.
+         */
+        V3_0("stage", "inputStage", "inputStages") {
+            @Override
+            Object keysExamined(ProfileEntry entry) {
+                return entry.nscanned;
+            }
+
+            @Override
+            Object docsExamined(ProfileEntry entry) {
+                return entry.nscannedObjects;
+            }
+        },
+
+        /**
+         * 3.2 and later, which renamed the scan counters.
+         */
+        V3_2("stage", "inputStage", "inputStages") {
+            @Override
+            Object keysExamined(ProfileEntry entry) {
+                return entry.keysExamined;
+            }
+
+            @Override
+            Object docsExamined(ProfileEntry entry) {
+                return entry.docsExamined;
+            }
+        };
+
+        private final String stageKey;
+        private final String childKey;
+        private final String childrenKey;
+
+        Schema(String stageKey, String childKey, String childrenKey) {
+            this.stageKey = stageKey;
+            this.childKey = childKey;
+            this.childrenKey = childrenKey;
+        }
+
+        private static Schema of(ProfileEntry entry) {
+            if (entry.keysExamined != null || entry.docsExamined != null) {
+                return V3_2;
+            }
+            if (entry.locks != null) {
+                return V3_0;
+            }
+
+            return V2;
+        }
+
+        @Nullable
+        abstract Object keysExamined(ProfileEntry entry);
+
+        @Nullable
+        abstract Object docsExamined(ProfileEntry entry);
+
+        void addLocks(Message msg, ProfileEntry entry, FieldSelection fields) {
+            if (entry.locks instanceof DBObject) {
+                locks(msg, (DBObject) entry.locks, fields);
+            }
+        }
+
+        /**
+         * Returns the stage names of a plan from the root down, like "FETCH>IXSCAN". Stages with several inputs
+         * are followed through their first one.
+         */
+        @Nullable
+        String stages(DBObject execStats) {
+            final StringBuilder stages = new StringBuilder();
+            DBObject stage = execStats;
+            for (int depth = 0; stage != null && depth < MAX_STAGE_DEPTH; depth++) {
+                final Object name = stage.get(stageKey);
+                if (!(name instanceof String)) {
+                    break;
+                }
+                if (stages.length() > 0) {
+                    stages.append('>');
+                }
+                stages.append(name);
+
+                final Object children = stage.get(childrenKey);
+                stage = children instanceof List && !((List<?>) children).isEmpty()
+                        ? document(((List<?>) children).get(0))
+                        : document(stage.get(childKey));
+            }
+
+            return stages.length() == 0 ? null : stages.toString();
+        }
+    }
+
+    /**
+     * A parsed profile entry with what the metrics of the codec need to know about it.
+     */
+    public static class Result {
+        private final Message message;
+        @Nullable
+        private final String database;
+        private final long normalizeNanos;
+
+        public Result(Message message, @Nullable String database, long normalizeNanos) {
+            this.message = message;
+            this.database = database;
+            this.normalizeNanos = normalizeNanos;
+        }
+
+        public Message getMessage() {
+            return message;
+        }
+
+        /**
+         * The database of the entry, even if it's not a selected message field.
+         */
+        @Nullable
+        public String getDatabase() {
+            return database;
+        }
+
+        /**
+         * Time spent normalizing the query, command and update object documents of the entry.
+         */
+        public long getNormalizeNanos() {
+            return normalizeNanos;
+        }
+    }
+
+    /**
+     * The top-level values of a profile document, picked up in a single pass over its keys.
+     * Keep in sync with {@link #PROFILE_FIELDS}.
+     */
+    private static class ProfileEntry {
+        private Object op;
+        private Object ns;
+        private Object ts;
+        private Object millis;
+        private Object client;
+        private Object user;
+        private Object query;
+        private Object command;
+        private Object updateobj;
+        private Object cursorid;
+        private Object ntoskip;
+        private Object ntoreturn;
+        private Object nscanned;
+        private Object scanAndOrder;
+        private Object moved;
+        private Object nmoved;
+        private Object nupdated;
+        private Object keyUpdates;
+        private Object numYield;
+        private Object nreturned;
+        private Object responseLength;
+        private Object lockStats;
+        private Object nscannedObjects;
+        private Object keysExamined;
+        private Object docsExamined;
+        private Object hasSortStage;
+        private Object nModified;
+        private Object ninserted;
+        private Object ndeleted;
+        private Object writeConflicts;
+        private Object planSummary;
+        private Object execStats;
+        private Object locks;
+        private Object storage;
+        private Object queryHash;
+        private Object planCacheKey;
+        private Object appName;
+
+        // Not part of the document. The namespace split up, and the time spent normalizing.
+        private String database;
+        private String collection;
+        private long normalizeNanos;
+
+        private ProfileEntry(DBObject doc) {
+            if (doc instanceof Map) {
+                @SuppressWarnings("unchecked")
+                final Map<String, Object> map = (Map<String, Object>) doc;
+                for (Map.Entry<String, Object> e : map.entrySet()) {
+                    set(e.getKey(), e.getValue());
+                }
+            } else {
+                for (String key : doc.keySet()) {
+                    set(key, doc.get(key));
+                }
+            }
+        }
+
+        private void set(String key, Object value) {
+            switch (key) {
+                case "op": op = value; break;
+                case "ns": ns = value; break;
+                case "ts": ts = value; break;
+                case "millis": millis = value; break;
+                case "client": client = value; break;
+                case "user": user = value; break;
+                case "query": query = value; break;
+                case "command": command = value; break;
+                case "updateobj": updateobj = value; break;
+                case "cursorid": cursorid = value; break;
+                case "ntoskip": ntoskip = value; break;
+                case "ntoreturn": ntoreturn = value; break;
+                case "nscanned": nscanned = value; break;
+                case "scanAndOrder": scanAndOrder = value; break;
+                case "moved": moved = value; break;
+                case "nmoved": nmoved = value; break;
+                case "nupdated": nupdated = value; break;
+                case "keyUpdates": keyUpdates = value; break;
+                case "numYield": numYield = value; break;
+                case "nreturned": nreturned = value; break;
+                case "responseLength": responseLength = value; break;
+                case "lockStats": lockStats = value; break;
+                case "nscannedObjects": nscannedObjects = value; break;
+                case "keysExamined": keysExamined = value; break;
+                case "docsExamined": docsExamined = value; break;
+                case "hasSortStage": hasSortStage = value; break;
+                case "nModified": nModified = value; break;
+                case "ninserted": ninserted = value; break;
+                case "ndeleted": ndeleted = value; break;
+                case "writeConflicts": writeConflicts = value; break;
+                case "planSummary": planSummary = value; break;
+                case "execStats": execStats = value; break;
+                case "locks": locks = value; break;
+                case "storage": storage = value; break;
+                case "queryHash": queryHash = value; break;
+                case "planCacheKey": planCacheKey = value; break;
+                case "appName": appName = value; break;
+                default: break;
+            }
+        }
     }
 
     public static class UnparsableException extends Exception {
@@ -1,22 +1,140 @@
 package com.graylog2.inputs.mongoprofiler.input.mongodb.parser;
 
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBEncoder;
 import com.mongodb.DBObject;
+import com.mongodb.DefaultDBEncoder;
+import org.bson.io.BasicOutputBuffer;
 import org.graylog2.plugin.journal.RawMessage;
 
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
-import java.io.ObjectOutputStream;
+import javax.annotation.Nullable;
+import java.util.List;
 
 public class RawParser {
-    public RawMessage parse(DBObject doc) throws IOException {
-        try (final ByteArrayOutputStream byteOut = new ByteArrayOutputStream();
-             final ObjectOutputStream out = new ObjectOutputStream(byteOut)) {
-            out.writeObject(doc);
+    /**
+     * Marks a payload holding the native BSON encoding of a single profile document.
+     * Payloads written by older versions are Java-serialized and always start with 0xACED.
+     */
+    public static final byte FORMAT_BSON = 0x01;
 
-            final RawMessage message = new RawMessage(byteOut.toByteArray());
-            message.setCodecName("mongodb-profiler-info");
+    /**
+     * Marks a payload holding a BSON document of additional message fields, followed by the
+     * BSON encoding of the profile document.
+     */
+    public static final byte FORMAT_BSON_WITH_FIELDS = 0x02;
 
-            return message;
+    /**
+     * Marks a payload holding the BSON encoding of a rollup of profile entries.
+     */
+    public static final byte FORMAT_ROLLUP = 0x03;
+
+    /**
+     * Marks a payload holding several profile documents. Every document is encoded like a single payload in
+     * the {@link #FORMAT_BSON} or {@link #FORMAT_BSON_WITH_FIELDS} format, including its marker.
+     */
+    public static final byte FORMAT_BSON_BATCH = 0x04;
+
+    /**
+     * Message field holding the {@link RawProfileDocument#getSampleWeight() sample weight} of sampled entries.
+     */
+    public static final String FIELD_SAMPLE_WEIGHT = "sample_weight";
+
+    private final DBEncoder encoder = DefaultDBEncoder.FACTORY.create();
+
+    @Nullable
+    private final DBObject messageFields;
+    // Marker and encoded message fields, identical for every message that isn't sampled.
+    private final byte[] prefix;
+
+    public RawParser() {
+        this(null);
+    }
+
+    /**
+     * @param messageFields fields added to every message, like the member the documents were read from
+     */
+    public RawParser(@Nullable DBObject messageFields) {
+        this.messageFields = messageFields;
+        this.prefix = messageFields == null ? new byte[]{FORMAT_BSON} : fieldsPrefix(encoder, messageFields);
+    }
+
+    private static byte[] fieldsPrefix(DBEncoder encoder, DBObject fields) {
+        final BasicOutputBuffer buffer = new BasicOutputBuffer();
+        buffer.writeByte(FORMAT_BSON_WITH_FIELDS);
+        encoder.writeObject(buffer, fields);
+
+        return buffer.toByteArray();
+    }
+
+    public RawMessage parse(DBObject doc) {
+        final BasicOutputBuffer buffer = new BasicOutputBuffer();
+        buffer.write(prefix);
+        encoder.writeObject(buffer, doc);
+
+        return buildMessage(buffer.toByteArray());
+    }
+
+    public RawMessage parse(RawProfileDocument doc) {
+        final byte[] prefix = doc.getSampleWeight() > 0 ? sampledPrefix(doc.getSampleWeight()) : this.prefix;
+
+        // The document already holds its BSON encoding, so there is nothing to re-encode.
+        final byte[] payload = new byte[prefix.length + doc.getBSONSize()];
+        System.arraycopy(prefix, 0, payload, 0, prefix.length);
+        doc.copyTo(payload, prefix.length);
+
+        return buildMessage(payload);
+    }
+
+    /**
+     * Combines several documents into a single message, to be split up again when decoding it.
+     */
+    public RawMessage parse(List<RawProfileDocument> docs) {
+        int size = 1;
+        final byte[][] prefixes = new byte[docs.size()][];
+        for (int i = 0; i < docs.size(); i++) {
+            final RawProfileDocument doc = docs.get(i);
+            prefixes[i] = doc.getSampleWeight() > 0 ? sampledPrefix(doc.getSampleWeight()) : prefix;
+            size += prefixes[i].length + doc.getBSONSize();
+        }
+
+        final byte[] payload = new byte[size];
+        payload[0] = FORMAT_BSON_BATCH;
+        int pos = 1;
+        for (int i = 0; i < docs.size(); i++) {
+            System.arraycopy(prefixes[i], 0, payload, pos, prefixes[i].length);
+            pos += prefixes[i].length;
+            pos += docs.get(i).copyTo(payload, pos);
+        }
+
+        return buildMessage(payload);
+    }
+
+    /**
+     * Encodes a rollup built by the input, see {@link Parser#parseRollup(DBObject)}.
+     */
+    public RawMessage parseRollup(DBObject rollup) {
+        final BasicOutputBuffer buffer = new BasicOutputBuffer();
+        buffer.writeByte(FORMAT_ROLLUP);
+        encoder.writeObject(buffer, rollup);
+
+        return buildMessage(buffer.toByteArray());
+    }
+
+    private byte[] sampledPrefix(int sampleWeight) {
+        final BasicDBObject fields = new BasicDBObject();
+        if (messageFields != null) {
+            fields.putAll(messageFields);
         }
+        fields.put(FIELD_SAMPLE_WEIGHT, sampleWeight);
+
+        // Processor threads share the parser of a subscriber, so the encoder can't be shared here.
+        return fieldsPrefix(DefaultDBEncoder.FACTORY.create(), fields);
+    }
+
+    private RawMessage buildMessage(byte[] payload) {
+        final RawMessage message = new RawMessage(payload);
+        message.setCodecName("mongodb-profiler-info");
+
+        return message;
     }
 }
@@ -0,0 +1,107 @@
+package com.graylog2.inputs.mongoprofiler.input.mongodb.parser;
+
+import com.mongodb.DBCollection;
+import com.mongodb.DBDecoderFactory;
+import com.mongodb.DBObject;
+import com.mongodb.LazyDBCallback;
+import com.mongodb.LazyDBDecoder;
+import com.mongodb.LazyDBObject;
+import org.bson.io.Bits;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Date;
+import java.util.function.IntConsumer;
+
+/**
+ * A profile document backed by the BSON bytes received from the server. Fields are only
+ * decoded when they are accessed, so the tailing thread never builds the full object graph.
+ */
+public class RawProfileDocument extends LazyDBObject {
+    public static final DBDecoderFactory DECODER_FACTORY = () -> new Decoder(null);
+
+    // Not part of the document.
+    private int sampleWeight;
+
+    public RawProfileDocument(byte[] bytes) {
+        super(bytes, new LazyDBCallback(null));
+    }
+
+    @Nullable
+    public Date getTimestamp() {
+        final Object ts = get("ts");
+        return ts instanceof Date ? (Date) ts : null;
+    }
+
+    @Nullable
+    public String getNamespace() {
+        final Object ns = get("ns");
+        return ns instanceof String ? (String) ns : null;
+    }
+
+    /**
+     * The number of profile entries this one stands for if entries are sampled, 0 if they are not.
+     */
+    public int getSampleWeight() {
+        return sampleWeight;
+    }
+
+    public void setSampleWeight(int sampleWeight) {
+        this.sampleWeight = sampleWeight;
+    }
+
+    /**
+     * Copies the raw BSON encoding of this document into {@code dest}, starting at {@code destPos}.
+     *
+     * @return the number of bytes copied
+     */
+    public int copyTo(byte[] dest, int destPos) {
+        final int size = getBSONSize();
+        System.arraycopy(getBytes(), getOffset(), dest, destPos, size);
+        return size;
+    }
+
+    /**
+     * Returns a decoder factory reporting the size of every document when the driver decodes it, which happens
+     * when a reply from the server is received.
+     */
+    public static DBDecoderFactory decoderFactory(IntConsumer onDecoded) {
+        return () -> new Decoder(onDecoded);
+    }
+
+    private static class Decoder extends LazyDBDecoder {
+        @Nullable
+        private final IntConsumer onDecoded;
+
+        private Decoder(@Nullable IntConsumer onDecoded) {
+            this.onDecoded = onDecoded;
+        }
+
+        @Override
+        public DBObject decode(byte[] bytes, DBCollection collection) {
+            if (onDecoded != null) {
+                onDecoded.accept(bytes.length);
+            }
+
+            // The driver hands us a buffer holding exactly one document, so it can be wrapped without copying.
+            return new RawProfileDocument(bytes);
+        }
+
+        @Override
+        public DBObject decode(InputStream in, DBCollection collection) throws IOException {
+            final byte[] sizeBytes = new byte[4];
+            Bits.readFully(in, sizeBytes);
+            final int size = Bits.readInt(sizeBytes);
+
+            final byte[] bytes = new byte[size];
+            System.arraycopy(sizeBytes, 0, bytes, 0, sizeBytes.length);
+            Bits.readFully(in, bytes, sizeBytes.length, size - sizeBytes.length);
+            if (onDecoded != null) {
+                onDecoded.accept(size);
+            }
+
+            return new RawProfileDocument(bytes);
+        }
+    }
+}
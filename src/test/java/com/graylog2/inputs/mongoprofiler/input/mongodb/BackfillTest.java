@@ -0,0 +1,31 @@
+package com.graylog2.inputs.mongoprofiler.input.mongodb;
+
+import org.testng.annotations.Test;
+
+import static org.testng.AssertJUnit.assertFalse;
+import static org.testng.AssertJUnit.assertTrue;
+
+public class BackfillTest {
+    @Test
+    public void testUnlimited() throws Exception {
+        final Backfill backfill = new Backfill(500, 0);
+
+        for (int i = 0; i < 100; i++) {
+            assertTrue(backfill.tryAcquireBatch());
+        }
+    }
+
+    @Test
+    public void testRateLimited() throws Exception {
+        final Backfill backfill = new Backfill(500, 100);
+
+        // The first batch is granted right away, the next one has to wait five seconds.
+        assertTrue(backfill.tryAcquireBatch());
+        assertFalse(backfill.tryAcquireBatch());
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testInvalidBatchSize() throws Exception {
+        new Backfill(0, 100);
+    }
+}
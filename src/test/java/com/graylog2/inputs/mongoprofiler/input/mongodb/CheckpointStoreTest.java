@@ -0,0 +1,67 @@
+package com.graylog2.inputs.mongoprofiler.input.mongodb;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertFalse;
+import static org.testng.AssertJUnit.assertNull;
+import static org.testng.AssertJUnit.assertTrue;
+
+public class CheckpointStoreTest {
+    private Path dir;
+    private Path file;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("checkpoints");
+        file = dir.resolve("nested").resolve("input.json");
+    }
+
+    @AfterMethod
+    public void tearDown() throws Exception {
+        Files.walk(dir)
+                .sorted((a, b) -> b.compareTo(a))
+                .forEach(path -> path.toFile().delete());
+    }
+
+    @Test
+    public void testFlushAndReopen() throws Exception {
+        final CheckpointStore store = CheckpointStore.open(file);
+        assertNull(store.get("db"));
+
+        store.update("db", new CheckpointStore.Checkpoint(1459468800000L, 3));
+        store.update("db@shard0/db1:27017", new CheckpointStore.Checkpoint(1459468801000L, 1));
+        store.flush();
+
+        final CheckpointStore reopened = CheckpointStore.open(file);
+        assertEquals(new CheckpointStore.Checkpoint(1459468800000L, 3), reopened.get("db"));
+        assertEquals(new CheckpointStore.Checkpoint(1459468801000L, 1), reopened.get("db@shard0/db1:27017"));
+    }
+
+    @Test
+    public void testFlushWithoutChanges() throws Exception {
+        final CheckpointStore store = CheckpointStore.open(file);
+        store.flush();
+        assertFalse(Files.exists(file));
+
+        store.update("db", new CheckpointStore.Checkpoint(1L, 1));
+        store.flush();
+        assertTrue(Files.exists(file));
+    }
+
+    @Test
+    public void testUnreadableFile() throws Exception {
+        Files.createDirectories(file.getParent());
+        Files.write(file, "{ broken".getBytes(StandardCharsets.UTF_8));
+
+        final CheckpointStore store = CheckpointStore.open(file);
+
+        assertNull(store.get("db"));
+    }
+}
@@ -0,0 +1,62 @@
+package com.graylog2.inputs.mongoprofiler.input.mongodb;
+
+import com.google.common.collect.ImmutableSet;
+import org.testng.annotations.Test;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertFalse;
+import static org.testng.AssertJUnit.assertTrue;
+
+public class DatabaseSelectorTest {
+    @Test
+    public void testSingleDatabase() throws Exception {
+        final DatabaseSelector selector = DatabaseSelector.parse("graylog");
+
+        assertTrue(selector.isStatic());
+        assertEquals(ImmutableSet.of("graylog"), selector.getNames());
+        assertTrue(selector.matches("graylog"));
+        assertFalse(selector.matches("graylog2"));
+    }
+
+    @Test
+    public void testDatabaseList() throws Exception {
+        final DatabaseSelector selector = DatabaseSelector.parse(" app1, app2,,admin ");
+
+        assertTrue(selector.isStatic());
+        assertEquals(ImmutableSet.of("app1", "app2", "admin"), selector.getNames());
+        assertTrue(selector.matches("admin"));
+        assertFalse(selector.matches("app3"));
+    }
+
+    @Test
+    public void testPattern() throws Exception {
+        final DatabaseSelector selector = DatabaseSelector.parse("/^app_/");
+
+        assertFalse(selector.isStatic());
+        assertTrue(selector.getNames().isEmpty());
+        assertTrue(selector.matches("app_orders"));
+        assertFalse(selector.matches("billing"));
+        assertEquals("/^app_/", selector.toString());
+    }
+
+    @Test
+    public void testAllDatabases() throws Exception {
+        final DatabaseSelector selector = DatabaseSelector.parse("*");
+
+        assertFalse(selector.isStatic());
+        assertTrue(selector.matches("billing"));
+        assertFalse(selector.matches("admin"));
+        assertFalse(selector.matches("local"));
+        assertFalse(selector.matches("config"));
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testInvalidPattern() throws Exception {
+        DatabaseSelector.parse("/app_[/");
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testEmptySelection() throws Exception {
+        DatabaseSelector.parse(" , ");
+    }
+}
@@ -0,0 +1,138 @@
+package com.graylog2.inputs.mongoprofiler.input.mongodb;
+
+import com.graylog2.inputs.mongoprofiler.input.mongodb.parser.RawProfileDocument;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DefaultDBEncoder;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertFalse;
+import static org.testng.AssertJUnit.assertNull;
+import static org.testng.AssertJUnit.assertTrue;
+
+public class FileProfileSourceTest {
+    private Path dir;
+    private Path file;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("dump").resolve("app");
+        Files.createDirectory(dir);
+        file = dir.resolve("system.profile.bson");
+        append(entry("query", "app.orders", 1000L), entry("update", "app.orders", 2000L), entry("query", "app.users", 3000L));
+    }
+
+    @AfterMethod
+    public void tearDown() throws Exception {
+        Files.deleteIfExists(file);
+        Files.deleteIfExists(dir);
+        Files.deleteIfExists(dir.getParent());
+    }
+
+    @DataProvider(name = "modes")
+    public Object[][] modes() {
+        return new Object[][]{{FileProfileSource.Mode.STREAM}, {FileProfileSource.Mode.MAPPED}};
+    }
+
+    @Test(dataProvider = "modes")
+    public void testRead(FileProfileSource.Mode mode) throws Exception {
+        final ProfileSource source = FileProfileSource.open(file, mode, ProfileFilter.ALL);
+        assertEquals("app", source.getDatabase());
+        assertTrue(source.isReady());
+
+        final AtomicLong bytes = new AtomicLong();
+        try (ProfileSource.Cursor cursor = source.read(null, 0, bytes::addAndGet)) {
+            final List<Date> timestamps = timestamps(cursor);
+
+            assertEquals(3, timestamps.size());
+            assertEquals(new Date(3000L), timestamps.get(2));
+            assertTrue(cursor.isExhausted());
+        }
+        assertEquals(Files.size(file), bytes.get());
+    }
+
+    @Test(dataProvider = "modes")
+    public void testFilter(FileProfileSource.Mode mode) throws Exception {
+        final ProfileFilter filter = ProfileFilter.parse(0, null, null, "app.orders", null);
+        final ProfileSource source = FileProfileSource.open(file, mode, filter);
+
+        try (ProfileSource.Cursor cursor = source.read(new Date(2000L), 0, size -> {})) {
+            final List<Date> timestamps = timestamps(cursor);
+
+            assertEquals(1, timestamps.size());
+            assertEquals(new Date(2000L), timestamps.get(0));
+        }
+    }
+
+    @Test
+    public void testMappedWindowsAreRemapped() throws Exception {
+        // Every entry is smaller than a window, but no two of them fit into one.
+        final long entrySize = new DefaultDBEncoder().encode(entry("query", "app.orders", 1000L)).length;
+        final ProfileSource source = new MappedProfileSource(file, ProfileFilter.ALL, entrySize + entrySize / 2);
+
+        try (ProfileSource.Cursor cursor = source.read(null, 0, size -> {})) {
+            final List<Date> timestamps = timestamps(cursor);
+
+            assertEquals(3, timestamps.size());
+            assertEquals(new Date(1000L), timestamps.get(0));
+            assertEquals(new Date(3000L), timestamps.get(2));
+        }
+    }
+
+    @Test
+    public void testTailFollowsAppendedEntries() throws Exception {
+        final ProfileSource source = FileProfileSource.open(file, FileProfileSource.Mode.STREAM, ProfileFilter.ALL);
+
+        try (ProfileSource.Cursor cursor = source.tail(null, 0, size -> {})) {
+            assertEquals(3, timestamps(cursor).size());
+            assertFalse(cursor.isExhausted());
+
+            append(entry("query", "app.orders", 4000L));
+            final RawProfileDocument doc = cursor.tryNext();
+            assertEquals(new Date(4000L), doc.getTimestamp());
+            assertNull(cursor.tryNext());
+        }
+    }
+
+    @Test
+    public void testDatabaseOfFileName() throws Exception {
+        final Path other = dir.resolve("reports.system.profile.bson");
+        Files.copy(file, other);
+        try {
+            assertEquals("reports", FileProfileSource.open(other, FileProfileSource.Mode.STREAM, ProfileFilter.ALL).getDatabase());
+        } finally {
+            Files.delete(other);
+        }
+    }
+
+    private static List<Date> timestamps(ProfileSource.Cursor cursor) {
+        final List<Date> timestamps = new ArrayList<>();
+        RawProfileDocument doc;
+        while ((doc = cursor.tryNext()) != null) {
+            timestamps.add(doc.getTimestamp());
+        }
+
+        return timestamps;
+    }
+
+    private static BasicDBObject entry(String op, String ns, long ts) {
+        return new BasicDBObject("op", op).append("ns", ns).append("millis", 5).append("ts", new Date(ts));
+    }
+
+    private void append(BasicDBObject... entries) throws Exception {
+        for (BasicDBObject entry : entries) {
+            Files.write(file, new DefaultDBEncoder().encode(entry), StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package com.graylog2.inputs.mongoprofiler.input.mongodb;
+
+import com.google.common.collect.ImmutableList;
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.ServerAddress;
+import org.testng.annotations.Test;
+
+import java.util.List;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertTrue;
+import static org.testng.AssertJUnit.fail;
+
+public class MemberDiscoveryTest {
+    @Test
+    public void testParseShardHosts() throws Exception {
+        assertEquals(ImmutableList.of(new ServerAddress("db1", 27017), new ServerAddress("db2", 27018)),
+                MemberDiscovery.parseShardHosts("rs0/db1:27017,db2:27018"));
+        assertEquals(ImmutableList.of(new ServerAddress("db3", 27019)),
+                MemberDiscovery.parseShardHosts("db3:27019"));
+    }
+
+    @Test
+    public void testReplicaSetMembers() throws Exception {
+        final BasicDBList members = new BasicDBList();
+        members.add(new BasicDBObject("name", "db1:27017").append("state", 1).append("stateStr", "PRIMARY"));
+        members.add(new BasicDBObject("name", "db2:27017").append("state", 2).append("stateStr", "SECONDARY"));
+        members.add(new BasicDBObject("name", "db3:27017").append("state", 7).append("stateStr", "ARBITER"));
+        members.add(new BasicDBObject("name", "db4:27017").append("state", 8).append("stateStr", "(not reachable/healthy)"));
+
+        final List<ClusterMember> result = MemberDiscovery.replicaSetMembers(new BasicDBObject("set", "rs0").append("members", members), "shard0");
+
+        assertEquals(ImmutableList.of(
+                new ClusterMember("shard0", new ServerAddress("db1", 27017)),
+                new ClusterMember("shard0", new ServerAddress("db2", 27017))), result);
+    }
+
+    @Test
+    public void testStaticMembers() throws Exception {
+        final List<ServerAddress> seeds = ImmutableList.of(new ServerAddress("db1", 27017), new ServerAddress("db2", 27017));
+        final MemberDiscovery discovery = new MemberDiscovery(MemberDiscovery.Mode.STATIC, seeds, addresses -> {
+            fail("No client should be needed.");
+            return null;
+        });
+
+        final List<ClusterMember> members = discovery.discover(null);
+
+        assertEquals(2, members.size());
+        assertEquals("db1:27017", members.get(0).getHost());
+        assertEquals(null, members.get(0).getShard());
+    }
+
+    @Test
+    public void testDriverModeHasNoMembers() throws Exception {
+        final MemberDiscovery discovery = new MemberDiscovery(MemberDiscovery.Mode.fromName(null), ImmutableList.of(), addresses -> null);
+
+        assertEquals(MemberDiscovery.Mode.DRIVER, discovery.getMode());
+        assertTrue(discovery.discover(null).isEmpty());
+    }
+
+    @Test
+    public void testMemberFields() throws Exception {
+        final ClusterMember member = new ClusterMember("shard0", new ServerAddress("db1.example.org", 27017));
+
+        assertEquals(new BasicDBObject("host", "db1.example.org:27017").append("shard", "shard0"), member.getMessageFields());
+        assertEquals("shard0_db1_example_org_27017", member.getMetricName());
+        assertEquals(new BasicDBObject("host", "db1.example.org:27017"),
+                new ClusterMember(null, new ServerAddress("db1.example.org", 27017)).getMessageFields());
+    }
+}
@@ -1,13 +1,20 @@
 package com.graylog2.inputs.mongoprofiler.input.mongodb;
 
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.collect.ImmutableList;
 import com.graylog2.inputs.mongoprofiler.input.mongodb.parser.Parser;
 import com.graylog2.inputs.mongoprofiler.input.mongodb.parser.RawParser;
+import com.graylog2.inputs.mongoprofiler.input.mongodb.parser.RawProfileDocument;
 import com.mongodb.BasicDBObject;
 import com.mongodb.DBObject;
+import com.mongodb.DefaultDBEncoder;
+import com.mongodb.ServerAddress;
 import org.graylog2.plugin.Message;
 import org.graylog2.plugin.configuration.Configuration;
 import org.graylog2.plugin.inputs.codecs.Codec;
+import org.graylog2.plugin.inputs.codecs.MultiMessageCodec;
 import org.graylog2.plugin.journal.RawMessage;
+import org.graylog2.plugin.system.NodeId;
 import org.joda.time.DateTime;
 import org.joda.time.DateTimeZone;
 import org.mockito.Mock;
@@ -15,13 +22,24 @@ import org.mockito.MockitoAnnotations;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.when;
 import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertTrue;
 
 public class MongoDBProfilerCodecTest {
     @Mock
     private Parser parser;
+    @Mock
+    private NodeId nodeId;
     private Codec codec;
 
     @BeforeMethod(alwaysRun = true)
@@ -34,11 +52,110 @@ public class MongoDBProfilerCodecTest {
     public void testDecode() throws Exception {
         final RawMessage rawMessage = new RawParser().parse(new BasicDBObject("foo", "bar"));
         final Message stubMessage = new Message("foobar", "source", new DateTime(2016, 4, 1, 0, 0, DateTimeZone.UTC));
-        when(parser.parse(any(DBObject.class))).thenReturn(stubMessage);
+        when(parser.parseEntry(any(DBObject.class), any())).thenReturn(new Parser.Result(stubMessage, null, 0L));
+        final Message message = codec.decode(rawMessage);
+        assertEquals(stubMessage, message);
+    }
+
+    @Test
+    public void testDecodeWithMemberFields() throws Exception {
+        final DBObject doc = new BasicDBObject("foo", "bar");
+        final ClusterMember member = new ClusterMember("shard0", new ServerAddress("db1.example.org", 27018));
+        final RawMessage rawMessage = new RawParser(member.getMessageFields()).parse(doc);
+        final Message stubMessage = new Message("foobar", "source", new DateTime(2016, 4, 1, 0, 0, DateTimeZone.UTC));
+        when(parser.parseEntry(eq(doc), any())).thenReturn(new Parser.Result(stubMessage, null, 0L));
+        final Message message = codec.decode(rawMessage);
+        assertEquals(stubMessage, message);
+        assertEquals("db1.example.org:27018", message.getField("host"));
+        assertEquals("shard0", message.getField("shard"));
+    }
+
+    @Test
+    public void testDecodeRollup() throws Exception {
+        final DBObject rollup = new BasicDBObject("ts", new Date(1459468800000L)).append("count", 3L);
+        final RawMessage rawMessage = new RawParser().parseRollup(rollup);
+        final Message stubMessage = new Message("foobar", "source", new DateTime(2016, 4, 1, 0, 0, DateTimeZone.UTC));
+        when(parser.parseRollup(eq(rollup))).thenReturn(stubMessage);
         final Message message = codec.decode(rawMessage);
         assertEquals(stubMessage, message);
     }
 
+    @Test
+    public void testDecodeMessagesBatch() throws Exception {
+        final DBObject doc1 = new BasicDBObject("op", "query");
+        final DBObject doc2 = new BasicDBObject("op", "update");
+        final RawProfileDocument rawDoc1 = new RawProfileDocument(new DefaultDBEncoder().encode(doc1));
+        final RawProfileDocument rawDoc2 = new RawProfileDocument(new DefaultDBEncoder().encode(doc2));
+        rawDoc2.setSampleWeight(5);
+        final RawMessage rawMessage = new RawParser().parse(ImmutableList.of(rawDoc1, rawDoc2));
+        assertEquals(RawParser.FORMAT_BSON_BATCH, rawMessage.getPayload()[0]);
+
+        final Message stubMessage1 = new Message("foo", "source", new DateTime(2016, 4, 1, 0, 0, DateTimeZone.UTC));
+        final Message stubMessage2 = new Message("bar", "source", new DateTime(2016, 4, 1, 0, 0, DateTimeZone.UTC));
+        when(parser.parseEntry(eq(doc1), any())).thenReturn(new Parser.Result(stubMessage1, null, 0L));
+        when(parser.parseEntry(eq(doc2), any())).thenReturn(new Parser.Result(stubMessage2, null, 0L));
+
+        final List<Message> messages = new ArrayList<>(((MultiMessageCodec) codec).decodeMessages(rawMessage));
+        assertEquals(2, messages.size());
+        assertEquals(stubMessage1, messages.get(0));
+        assertEquals(stubMessage2, messages.get(1));
+        assertEquals(5, messages.get(1).getField(RawParser.FIELD_SAMPLE_WEIGHT));
+    }
+
+    @Test
+    public void testDecodeMessagesSingle() throws Exception {
+        final RawMessage rawMessage = new RawParser().parse(new BasicDBObject("foo", "bar"));
+        final Message stubMessage = new Message("foobar", "source", new DateTime(2016, 4, 1, 0, 0, DateTimeZone.UTC));
+        when(parser.parseEntry(any(DBObject.class), any())).thenReturn(new Parser.Result(stubMessage, null, 0L));
+
+        assertEquals(Collections.singletonList(stubMessage), ((MultiMessageCodec) codec).decodeMessages(rawMessage));
+    }
+
+    @Test
+    public void testDecodeMetrics() throws Exception {
+        final MetricRegistry metricRegistry = new MetricRegistry();
+        CodecMetrics.register("input-1", metricRegistry, "input.codec");
+        try {
+            final ClusterMember member = new ClusterMember("shard0", new ServerAddress("db1.example.org", 27018));
+            final RawMessage rawMessage = new RawParser(member.getMessageFields()).parse(new BasicDBObject("foo", "bar"));
+            rawMessage.addSourceNode("input-1", nodeId);
+            final Message stubMessage = new Message("foobar", "source", new DateTime(2016, 4, 1, 0, 0, DateTimeZone.UTC));
+            when(parser.parseEntry(any(DBObject.class), any())).thenReturn(new Parser.Result(stubMessage, "graylog", 0L));
+            codec.decode(rawMessage);
+
+            final String prefix = "input.codec.members." + member.getMetricName() + ".databases.graylog.";
+            assertEquals(1, metricRegistry.timer(prefix + "deserializeTime").getCount());
+            assertEquals(1, metricRegistry.timer(prefix + "parseTime").getCount());
+            assertEquals(1, metricRegistry.timer(prefix + "normalizeTime").getCount());
+
+            final RawMessage invalidMessage = new RawMessage(new byte[0]);
+            invalidMessage.addSourceNode("input-1", nodeId);
+            try {
+                codec.decode(invalidMessage);
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+            assertEquals(1, metricRegistry.meter("input.codec.errors." + CodecMetrics.ERROR_DESERIALIZE).getCount());
+        } finally {
+            CodecMetrics.release("input-1");
+        }
+
+        assertTrue(metricRegistry.getMetrics().isEmpty());
+    }
+
+    @Test
+    public void testDecodeLegacySerializedPayload() throws Exception {
+        final DBObject doc = new BasicDBObject("foo", "bar");
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (final ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(doc);
+        }
+        final Message stubMessage = new Message("foobar", "source", new DateTime(2016, 4, 1, 0, 0, DateTimeZone.UTC));
+        when(parser.parseEntry(eq(doc), any())).thenReturn(new Parser.Result(stubMessage, null, 0L));
+        final Message message = codec.decode(new RawMessage(bytes.toByteArray()));
+        assertEquals(stubMessage, message);
+    }
+
     @Test(
             expectedExceptions = IllegalArgumentException.class,
             expectedExceptionsMessageRegExp = "^Could not de-serialize MongoDB profiler information from raw message.*")
@@ -51,7 +168,7 @@ public class MongoDBProfilerCodecTest {
             expectedExceptions = RuntimeException.class,
             expectedExceptionsMessageRegExp = "^Could not parse MongoDB profiler information.*")
     public void testDecodeInvalidDBObject() throws Exception {
-        when(parser.parse(any(DBObject.class))).thenThrow(Parser.UnparsableException.class);
+        when(parser.parseEntry(any(DBObject.class), any())).thenThrow(Parser.UnparsableException.class);
         final RawMessage rawMessage = new RawParser().parse(new BasicDBObject("foo", "bar"));
         codec.decode(rawMessage);
     }
@@ -0,0 +1,88 @@
+package com.graylog2.inputs.mongoprofiler.input.mongodb;
+
+import com.google.common.collect.ImmutableSet;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import com.mongodb.QueryBuilder;
+import org.testng.annotations.Test;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertFalse;
+import static org.testng.AssertJUnit.assertTrue;
+
+public class ProfileFilterTest {
+    @Test
+    public void testAll() throws Exception {
+        final DBObject query = ProfileFilter.ALL.apply(QueryBuilder.start(), "graylog").get();
+
+        assertEquals(1, query.keySet().size());
+        assertEquals(new BasicDBObject("$nin", Collections.singletonList("graylog.system.profile")), query.get("ns"));
+    }
+
+    @Test
+    public void testConditions() throws Exception {
+        final ProfileFilter filter = ProfileFilter.parse(100, "query, update", "getmore", "graylog.messages,/^graylog\\.app_/", "graylog.sessions");
+        final DBObject query = filter.apply(QueryBuilder.start("ts").greaterThan(0), "graylog").get();
+
+        assertEquals(new BasicDBObject("$gt", 0), query.get("ts"));
+        assertEquals(new BasicDBObject("$gte", 100), query.get("millis"));
+
+        final DBObject op = (DBObject) query.get("op");
+        assertEquals(ImmutableSet.of("query", "update"), op.get("$in"));
+        assertEquals(ImmutableSet.of("getmore"), op.get("$nin"));
+
+        final DBObject ns = (DBObject) query.get("ns");
+        final List<?> excluded = (List<?>) ns.get("$nin");
+        assertEquals(2, excluded.size());
+        assertEquals("graylog.system.profile", excluded.get(0));
+        assertEquals("graylog.sessions", excluded.get(1));
+
+        final List<?> included = (List<?>) ns.get("$in");
+        assertEquals(2, included.size());
+        assertEquals("graylog.messages", included.get(0));
+        assertEquals("^graylog\\.app_", ((Pattern) included.get(1)).pattern());
+    }
+
+    @Test
+    public void testMatches() throws Exception {
+        final ProfileFilter filter = ProfileFilter.parse(100, "query, update", "getmore", "graylog.messages,/^graylog\\.app_/", "graylog.sessions");
+
+        assertTrue(filter.matches(entry("query", "graylog.messages", 100), "graylog"));
+        assertTrue(filter.matches(entry("update", "graylog.app_orders", 250), "graylog"));
+        assertFalse(filter.matches(entry("query", "graylog.messages", 99), "graylog"));
+        assertFalse(filter.matches(entry("insert", "graylog.messages", 100), "graylog"));
+        assertFalse(filter.matches(entry("query", "graylog.sessions", 100), "graylog"));
+        assertFalse(filter.matches(entry("query", "graylog.users", 100), "graylog"));
+        assertFalse(filter.matches(new BasicDBObject("op", "query").append("ns", "graylog.messages"), "graylog"));
+
+        assertTrue(ProfileFilter.ALL.matches(entry("getmore", "graylog.sessions", 0), "graylog"));
+        assertFalse(ProfileFilter.ALL.matches(entry("query", "graylog.system.profile", 0), "graylog"));
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testInvalidPattern() throws Exception {
+        ProfileFilter.parse(0, null, null, "/(/", null);
+    }
+
+    @Test
+    public void testProjection() throws Exception {
+        final DBObject projection = ProfileFilter.ALL.getProjection();
+
+        assertEquals(1, projection.get("ts"));
+        assertEquals(1, projection.get("query"));
+        assertEquals(0, projection.get("_id"));
+        assertFalse(projection.containsField("execStats"));
+        assertTrue(projection.containsField("execStats.stage"));
+        assertTrue(projection.containsField("execStats.inputStage.inputStage.stage"));
+        assertTrue(projection.containsField("locks"));
+        assertTrue(projection.containsField("lockStats"));
+    }
+
+    private static DBObject entry(String op, String ns, int millis) {
+        return new BasicDBObject("op", op).append("ns", ns).append("millis", millis);
+    }
+}
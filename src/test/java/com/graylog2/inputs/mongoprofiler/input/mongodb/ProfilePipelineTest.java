@@ -0,0 +1,108 @@
+package com.graylog2.inputs.mongoprofiler.input.mongodb;
+
+import com.codahale.metrics.Timer;
+import com.google.common.collect.ImmutableList;
+import com.graylog2.inputs.mongoprofiler.input.mongodb.parser.RawParser;
+import com.graylog2.inputs.mongoprofiler.input.mongodb.parser.RawProfileDocument;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DefaultDBEncoder;
+import org.graylog2.plugin.LocalMetricRegistry;
+import org.graylog2.plugin.inputs.MessageInput;
+import org.graylog2.plugin.journal.RawMessage;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.testng.AssertJUnit.assertEquals;
+
+public class ProfilePipelineTest {
+    @Mock
+    private MessageInput input;
+    private LocalMetricRegistry metricRegistry;
+    private ProfilePipeline pipeline;
+
+    private final RawParser rawParser = new RawParser();
+    private final RawProfileDocument doc = new RawProfileDocument(
+            new DefaultDBEncoder().encode(new BasicDBObject("op", "query").append("ns", "db.coll")));
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        when(input.getUniqueReadableId()).thenReturn("input");
+        metricRegistry = new LocalMetricRegistry();
+    }
+
+    @AfterMethod
+    public void tearDown() throws Exception {
+        if (pipeline != null) {
+            pipeline.shutdown(5, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    public void testPublish() throws Exception {
+        pipeline = new ProfilePipeline(input, metricRegistry, 10, 2, 1, Executors.defaultThreadFactory());
+        assertEquals(16, pipeline.getBufferSize());
+
+        final Timer processTime = metricRegistry.timer("input.pipeline.processTime");
+        final long sequence = pipeline.tryPublish(ImmutableList.of(doc, doc, doc), rawParser, null);
+        assertEquals(2L, sequence);
+
+        // Shutting down waits for the published entries to be processed.
+        pipeline.shutdown(5, TimeUnit.SECONDS);
+        pipeline = null;
+
+        verify(input, times(3)).processRawMessage(any(RawMessage.class));
+        assertEquals(3L, processTime.getCount());
+        assertEquals(0, metricRegistry.getMetrics().size());
+    }
+
+    @Test
+    public void testEntriesPerMessage() throws Exception {
+        pipeline = new ProfilePipeline(input, metricRegistry, 16, 1, 2, Executors.defaultThreadFactory());
+
+        assertEquals(1L, pipeline.tryPublish(ImmutableList.of(doc, doc, doc), rawParser, null));
+        pipeline.shutdown(5, TimeUnit.SECONDS);
+        pipeline = null;
+
+        final ArgumentCaptor<RawMessage> messages = ArgumentCaptor.forClass(RawMessage.class);
+        verify(input, times(2)).processRawMessage(messages.capture());
+        assertEquals(RawParser.FORMAT_BSON_BATCH, messages.getAllValues().get(0).getPayload()[0]);
+        assertEquals(RawParser.FORMAT_BSON, messages.getAllValues().get(1).getPayload()[0]);
+    }
+
+    @Test
+    public void testBackPressure() throws Exception {
+        final CountDownLatch blocked = new CountDownLatch(1);
+        doAnswer(invocation -> {
+            blocked.await();
+            return null;
+        }).when(input).processRawMessage(any(RawMessage.class));
+        pipeline = new ProfilePipeline(input, metricRegistry, 2, 1, 1, Executors.defaultThreadFactory());
+
+        assertEquals(1L, pipeline.tryPublish(ImmutableList.of(doc, doc), rawParser, null));
+        assertEquals(-1L, pipeline.tryPublish(ImmutableList.of(doc), rawParser, null));
+        assertEquals(1L, metricRegistry.meter("input.pipeline.backPressure").getCount());
+        assertEquals(-1L, pipeline.getProcessedSequence());
+
+        blocked.countDown();
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (pipeline.getProcessedSequence() < 1L && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(1L, pipeline.getProcessedSequence());
+        assertEquals(2L, pipeline.tryPublish(ImmutableList.of(doc), rawParser, null));
+    }
+}
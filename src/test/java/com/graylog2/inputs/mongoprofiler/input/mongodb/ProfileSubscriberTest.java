@@ -0,0 +1,267 @@
+package com.graylog2.inputs.mongoprofiler.input.mongodb;
+
+import com.graylog2.inputs.mongoprofiler.input.mongodb.normalizer.ArrayNormalization;
+import com.graylog2.inputs.mongoprofiler.input.mongodb.normalizer.FingerprintAlgorithm;
+import com.graylog2.inputs.mongoprofiler.input.mongodb.normalizer.Normalizer;
+import com.graylog2.inputs.mongoprofiler.input.mongodb.parser.RawProfileDocument;
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import com.mongodb.DefaultDBEncoder;
+import org.graylog2.plugin.LocalMetricRegistry;
+import org.graylog2.plugin.inputs.MessageInput;
+import org.graylog2.plugin.journal.RawMessage;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import javax.annotation.Nullable;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntConsumer;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertNull;
+import static org.testng.AssertJUnit.assertTrue;
+
+public class ProfileSubscriberTest {
+    @Mock
+    private MessageInput input;
+    private LocalMetricRegistry metricRegistry;
+    private ScheduledExecutorService executor;
+    private ProfilePipeline pipeline;
+    private Path checkpointFile;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        when(input.getUniqueReadableId()).thenReturn("input");
+        metricRegistry = new LocalMetricRegistry();
+        executor = Executors.newSingleThreadScheduledExecutor();
+        pipeline = new ProfilePipeline(input, metricRegistry, 16, 1, 1, Executors.defaultThreadFactory());
+        checkpointFile = Files.createTempFile("checkpoints", ".json");
+    }
+
+    @AfterMethod
+    public void tearDown() throws Exception {
+        executor.shutdownNow();
+        pipeline.shutdown(5, TimeUnit.SECONDS);
+        Files.deleteIfExists(checkpointFile);
+    }
+
+    @Test
+    public void testTailAndCheckpoint() throws Exception {
+        final CheckpointStore checkpoints = CheckpointStore.open(checkpointFile);
+        final TailingContext context = new TailingContext(input, metricRegistry, executor, pipeline, () -> false)
+                .setCheckpoints(checkpoints)
+                .setBatchSize(2);
+        final ListProfileSource source = new ListProfileSource(new Date(1000L), new Date(2000L), new Date(2000L));
+        final ProfileSubscriber subscriber = new ProfileSubscriber(source, null, context);
+        subscriber.start();
+
+        verify(input, timeout(5000).times(3)).processRawMessage(any(RawMessage.class));
+        final long deadline = System.currentTimeMillis() + 5000;
+        while ((checkpoints.get("db") == null || checkpoints.get("db").getCount() < 2) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        subscriber.terminate();
+
+        assertEquals(new CheckpointStore.Checkpoint(2000L, 2), checkpoints.get("db"));
+        assertEquals(3L, metricRegistry.meter("input.cursorReads").getCount());
+        assertEquals(source.bytes, metricRegistry.meter("input.bytesRead").getCount());
+    }
+
+    @Test
+    public void testBackfill() throws Exception {
+        final TailingContext context = new TailingContext(input, metricRegistry, executor, pipeline, () -> false)
+                .setBackfill(new Backfill(2, 0));
+        final ListProfileSource source = new ListProfileSource(new Date(1000L), new Date(2000L), new Date(3000L));
+        final ProfileSubscriber subscriber = new ProfileSubscriber(source, null, context);
+        subscriber.start();
+
+        verify(input, timeout(5000).times(3)).processRawMessage(any(RawMessage.class));
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (source.tailedFrom == null && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(3L, metricRegistry.meter("input.databases.db.backfillReads").getCount());
+        subscriber.terminate();
+
+        // Tailing resumes at the last entry read, which is skipped.
+        assertEquals(new Date(3000L), source.tailedFrom);
+        verify(input, times(3)).processRawMessage(any(RawMessage.class));
+    }
+
+    @Test
+    public void testReplayDumpsOfTheSameDatabase() throws Exception {
+        final Path dumps = Files.createTempDirectory("dumps");
+        final Path first = dump(dumps.resolve("first"), new Date(1000L), new Date(2000L));
+        final Path second = dump(dumps.resolve("second"), new Date(3000L));
+        try {
+            final CheckpointStore checkpoints = CheckpointStore.open(checkpointFile);
+            final TailingContext context = new TailingContext(input, metricRegistry, executor, pipeline, () -> false)
+                    .setCheckpoints(checkpoints);
+            final ProfileSource firstSource = FileProfileSource.open(first, FileProfileSource.Mode.STREAM, ProfileFilter.ALL);
+            final ProfileSource secondSource = FileProfileSource.open(second, FileProfileSource.Mode.STREAM, ProfileFilter.ALL);
+            assertEquals(firstSource.getDatabase(), secondSource.getDatabase());
+
+            final ProfileSubscriber firstSubscriber = new ProfileSubscriber(firstSource, null, context);
+            final ProfileSubscriber secondSubscriber = new ProfileSubscriber(secondSource, null, context);
+            firstSubscriber.start();
+            secondSubscriber.start();
+
+            verify(input, timeout(5000).times(3)).processRawMessage(any(RawMessage.class));
+            final long deadline = System.currentTimeMillis() + 5000;
+            while ((checkpoints.get(firstSource.getName()) == null || checkpoints.get(secondSource.getName()) == null)
+                    && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            // Each subscriber has its own metrics.
+            assertEquals(2, metricRegistry.getGauges((name, metric) -> name.endsWith(".lagMillis")).size());
+            firstSubscriber.terminate();
+            secondSubscriber.terminate();
+
+            assertEquals(new CheckpointStore.Checkpoint(2000L, 1), checkpoints.get(firstSource.getName()));
+            assertEquals(new CheckpointStore.Checkpoint(3000L, 1), checkpoints.get(secondSource.getName()));
+            assertNull(checkpoints.get("app"));
+            assertEquals(3L, metricRegistry.meter("input.cursorReads").getCount());
+            assertTrue(metricRegistry.getGauges((name, metric) -> name.endsWith(".lagMillis")).isEmpty());
+        } finally {
+            Files.delete(first);
+            Files.delete(first.getParent());
+            Files.delete(first.getParent().getParent());
+            Files.delete(second);
+            Files.delete(second.getParent());
+            Files.delete(second.getParent().getParent());
+            Files.delete(dumps);
+        }
+    }
+
+    @Test
+    public void testLargeInOnTheReadingThread() throws Exception {
+        final BasicDBList in = new BasicDBList();
+        for (int i = 0; i < 20000; i++) {
+            in.add(i);
+        }
+        final DBObject doc = new BasicDBObject("op", "query")
+                .append("ns", "db.coll")
+                .append("ts", new Date(1000L))
+                .append("millis", 1)
+                .append("query", new BasicDBObject("x", new BasicDBObject("$in", in)));
+
+        final RollupAggregator aggregator = new RollupAggregator(FingerprintAlgorithm.MD5, ArrayNormalization.LEGACY, null, 10);
+        final TailingContext context = new TailingContext(input, metricRegistry, executor, pipeline, () -> false)
+                .setSampler(new Sampler(FingerprintAlgorithm.MD5, ArrayNormalization.LEGACY, null, 100, 10))
+                .setAggregator(aggregator, false);
+        final ProfileSubscriber subscriber = new ProfileSubscriber(new ListProfileSource(doc), null, context);
+        subscriber.start();
+
+        // Both normalize the lazy document on the reading thread, which must not take long.
+        verify(input, timeout(5000)).processRawMessage(any(RawMessage.class));
+        subscriber.terminate();
+
+        final List<DBObject> rollups = aggregator.drain(new Date(0L), new Date(2000L));
+        assertEquals(1, rollups.size());
+        assertEquals(1L, rollups.get(0).get(RollupAggregator.FIELD_COUNT));
+        assertEquals(new Normalizer((DBObject) doc.get("query"), "db", "coll").getFieldsHash(), rollups.get(0).get("query_fields_hash"));
+    }
+
+    /**
+     * Writes a mongodump of the profile entries of the "app" database to {@code dir}.
+     */
+    private static Path dump(Path dir, Date... timestamps) throws Exception {
+        final Path file = Files.createDirectories(dir.resolve("app")).resolve("system.profile.bson");
+        for (Date ts : timestamps) {
+            final DBObject entry = new BasicDBObject("op", "query").append("ns", "app.coll").append("millis", 1).append("ts", ts);
+            Files.write(file, new DefaultDBEncoder().encode(entry), StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        }
+
+        return file;
+    }
+
+    private static class ListProfileSource implements ProfileSource {
+        private final List<RawProfileDocument> docs = new ArrayList<>();
+        private long bytes;
+        private volatile Date tailedFrom;
+
+        private ListProfileSource(Date... timestamps) {
+            for (Date ts : timestamps) {
+                docs.add(new RawProfileDocument(new DefaultDBEncoder().encode(
+                        new BasicDBObject("op", "query").append("ns", "db.coll").append("ts", ts))));
+            }
+        }
+
+        private ListProfileSource(DBObject... entries) {
+            for (DBObject entry : entries) {
+                docs.add(new RawProfileDocument(new DefaultDBEncoder().encode(entry)));
+            }
+        }
+
+        @Override
+        public String getDatabase() {
+            return "db";
+        }
+
+        @Override
+        public boolean isReady() {
+            return true;
+        }
+
+        @Override
+        public Cursor tail(@Nullable Date from, int batchSize, IntConsumer onRead) {
+            tailedFrom = from;
+            return cursor(from, onRead, false);
+        }
+
+        @Override
+        public Cursor read(@Nullable Date from, int batchSize, IntConsumer onRead) {
+            return cursor(from, onRead, true);
+        }
+
+        private Cursor cursor(@Nullable Date from, IntConsumer onRead, boolean finite) {
+            final Iterator<RawProfileDocument> iterator = docs.stream()
+                    .filter(doc -> from == null || !doc.getTimestamp().before(from))
+                    .iterator();
+
+            return new Cursor() {
+                @Nullable
+                @Override
+                public RawProfileDocument tryNext() {
+                    if (!iterator.hasNext()) {
+                        return null;
+                    }
+
+                    final RawProfileDocument doc = iterator.next();
+                    final int size = doc.copyTo(new byte[doc.getBSONSize()], 0);
+                    bytes += size;
+                    onRead.accept(size);
+                    return doc;
+                }
+
+                @Override
+                public boolean isExhausted() {
+                    return finite && !iterator.hasNext();
+                }
+
+                @Override
+                public void close() {
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package com.graylog2.inputs.mongoprofiler.input.mongodb;
+
+import com.graylog2.inputs.mongoprofiler.input.mongodb.normalizer.ArrayNormalization;
+import com.graylog2.inputs.mongoprofiler.input.mongodb.normalizer.FingerprintAlgorithm;
+import com.graylog2.inputs.mongoprofiler.input.mongodb.parser.Parser;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import org.graylog2.plugin.Message;
+import org.joda.time.DateTime;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.Date;
+import java.util.List;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertTrue;
+
+public class RollupAggregatorTest {
+    private static final Date WINDOW_START = new Date(1459468800000L);
+    private static final Date WINDOW_END = new Date(1459468860000L);
+
+    private RollupAggregator aggregator;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        aggregator = new RollupAggregator(FingerprintAlgorithm.MD5, ArrayNormalization.LEGACY, null, 100);
+    }
+
+    private static DBObject find(Object status, int millis) {
+        return new BasicDBObject("op", "query")
+                .append("ns", "graylog.messages")
+                .append("query", new BasicDBObject("status", status))
+                .append("millis", millis)
+                .append("nscanned", 10)
+                .append("nreturned", 2)
+                .append("responseLength", 100);
+    }
+
+    @Test
+    public void testDrain() throws Exception {
+        for (int i = 1; i <= 100; i++) {
+            aggregator.add(find("status-" + i, i));
+        }
+        aggregator.add(new BasicDBObject("op", "insert").append("ns", "graylog.messages").append("millis", 3));
+
+        final List<DBObject> rollups = aggregator.drain(WINDOW_START, WINDOW_END);
+        assertEquals(2, rollups.size());
+
+        final DBObject rollup = "query".equals(rollups.get(0).get("operation")) ? rollups.get(0) : rollups.get(1);
+        assertEquals("query", rollup.get("operation"));
+        assertEquals("graylog", rollup.get("database"));
+        assertEquals("messages", rollup.get("collection"));
+        assertEquals(new Parser().parse(find("x", 1)).getField("query_fields_hash"), rollup.get("query_fields_hash"));
+        assertEquals(new Parser().parse(find("x", 1)).getField("query_shape"), rollup.get("query_shape"));
+        assertEquals(WINDOW_END, rollup.get("ts"));
+        assertEquals(WINDOW_START, rollup.get(RollupAggregator.FIELD_WINDOW_START));
+        assertEquals(100L, rollup.get(RollupAggregator.FIELD_COUNT));
+        assertEquals(5050L, rollup.get("millis_sum"));
+        assertEquals(1L, rollup.get("millis_min"));
+        assertEquals(100L, rollup.get("millis_max"));
+        assertEquals(50.5, rollup.get("millis_mean"));
+        assertEquals(50L, rollup.get("millis_p50"));
+        assertEquals(95L, rollup.get("millis_p95"));
+        assertEquals(1000L, rollup.get("docs_scanned"));
+        assertEquals(200L, rollup.get("docs_returned"));
+        assertEquals(10000L, rollup.get("response_bytes"));
+
+        // The next window starts empty.
+        assertTrue(aggregator.drain(WINDOW_END, WINDOW_END).isEmpty());
+    }
+
+    @Test
+    public void testMaxShapes() throws Exception {
+        final RollupAggregator aggregator = new RollupAggregator(FingerprintAlgorithm.MD5, ArrayNormalization.LEGACY, null, 1);
+        aggregator.add(find("a", 1));
+        aggregator.add(new BasicDBObject("op", "insert").append("ns", "graylog.messages").append("millis", 3));
+
+        final List<DBObject> rollups = aggregator.drain(WINDOW_START, WINDOW_END);
+        assertEquals(1, rollups.size());
+        assertEquals("insert", rollups.get(0).get("operation"));
+    }
+
+    @Test
+    public void testParseRollup() throws Exception {
+        aggregator.add(find("a", 7));
+        final DBObject rollup = aggregator.drain(WINDOW_START, WINDOW_END).get(0);
+
+        final Message message = new Parser().parseRollup(rollup);
+        assertEquals("rollup query graylog.messages [1 ops, 7ms max]", message.getMessage());
+        assertEquals(WINDOW_END.getTime(), message.getTimestamp().getMillis());
+        assertEquals(true, message.getField("rollup"));
+        assertEquals(1L, message.getField(RollupAggregator.FIELD_COUNT));
+        assertEquals(WINDOW_START.getTime(), ((DateTime) message.getField(RollupAggregator.FIELD_WINDOW_START)).getMillis());
+    }
+}
@@ -0,0 +1,121 @@
+package com.graylog2.inputs.mongoprofiler.input.mongodb;
+
+import com.codahale.metrics.Counter;
+import com.google.common.base.Ticker;
+import com.graylog2.inputs.mongoprofiler.input.mongodb.normalizer.ArrayNormalization;
+import com.graylog2.inputs.mongoprofiler.input.mongodb.normalizer.FingerprintAlgorithm;
+import com.graylog2.inputs.mongoprofiler.input.mongodb.parser.Parser;
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertFalse;
+
+public class SamplerTest {
+    private AtomicLong time;
+    private Sampler sampler;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        time = new AtomicLong();
+        sampler = new Sampler(FingerprintAlgorithm.MD5, ArrayNormalization.LEGACY, null, 100, 2, new Ticker() {
+            @Override
+            public long read() {
+                return time.get();
+            }
+        });
+    }
+
+    private static DBObject find(String field, Object value, int millis) {
+        return new BasicDBObject("op", "query")
+                .append("ns", "graylog.messages")
+                .append("millis", millis)
+                .append("query", new BasicDBObject(field, value));
+    }
+
+    @Test
+    public void testSamplesPerShape() throws Exception {
+        assertEquals(1, sampler.sample(find("status", "a", 1)));
+        assertEquals(1, sampler.sample(find("status", "b", 1)));
+        assertEquals(0, sampler.sample(find("status", "c", 1)));
+        assertEquals(0, sampler.sample(find("status", "d", 1)));
+
+        // Another shape has its own samples.
+        assertEquals(1, sampler.sample(find("source", "a", 1)));
+
+        // The next sample stands for the skipped entries as well.
+        time.addAndGet(TimeUnit.MINUTES.toNanos(1));
+        assertEquals(3, sampler.sample(find("status", "e", 1)));
+        assertEquals(1, sampler.sample(find("status", "f", 1)));
+    }
+
+    @Test
+    public void testSlowOperationsAreKept() throws Exception {
+        sampler.sample(find("status", "a", 1));
+        sampler.sample(find("status", "b", 1));
+
+        for (int i = 0; i < 10; i++) {
+            assertEquals(1, sampler.sample(find("status", "c", 100)));
+        }
+        assertEquals(0, sampler.sample(find("status", "d", 99)));
+    }
+
+    @Test
+    public void testDroppedSkipsOfQuietShapes() throws Exception {
+        final Counter droppedSkips = (Counter) sampler.getMetricSet().getMetrics().get("droppedSkips");
+        for (int i = 0; i < 5; i++) {
+            sampler.sample(find("status", "a", 1));
+        }
+
+        // Credited to the next kept entry of the shape.
+        time.addAndGet(TimeUnit.MINUTES.toNanos(1));
+        assertEquals(4, sampler.sample(find("status", "b", 1)));
+        sampler.sample(find("status", "c", 1));
+        sampler.sample(find("status", "d", 1));
+        assertEquals(0L, droppedSkips.getCount());
+
+        // The shape went quiet, its skipped entry can't be credited anymore.
+        time.addAndGet(TimeUnit.MINUTES.toNanos(2));
+        sampler.cleanUp();
+        assertEquals(1L, droppedSkips.getCount());
+        assertEquals(1, sampler.sample(find("status", "e", 1)));
+    }
+
+    @Test
+    public void testShapeOf() throws Exception {
+        final DBObject update = new BasicDBObject("op", "update")
+                .append("ns", "graylog.messages")
+                .append("query", new BasicDBObject("status", "a"));
+
+        assertEquals(sampler.shapeOf(find("status", "a", 1)), sampler.shapeOf(find("status", "b", 5)));
+        assertFalse(sampler.shapeOf(find("status", "a", 1)).equals(sampler.shapeOf(update)));
+        assertEquals("insert|graylog.messages", sampler.shapeOf(new BasicDBObject("op", "insert").append("ns", "graylog.messages")));
+    }
+
+    @Test
+    public void testShapesGroupLikeQueryFieldsHash() throws Exception {
+        final DBObject in1 = find("status", new BasicDBObject("$in", list(1)), 1);
+        final DBObject in2 = find("status", new BasicDBObject("$in", list(2)), 1);
+        final Parser parser = new Parser();
+
+        assertEquals("query|" + parser.parse(in1).getField("query_fields_hash"), sampler.shapeOf(in1));
+        assertFalse(sampler.shapeOf(in1).equals(sampler.shapeOf(in2)));
+
+        final Sampler collapsing = new Sampler(FingerprintAlgorithm.MD5, ArrayNormalization.COLLAPSE, null, 100, 2);
+        assertEquals(collapsing.shapeOf(in1), collapsing.shapeOf(in2));
+    }
+
+    private static BasicDBList list(int size) {
+        final BasicDBList list = new BasicDBList();
+        for (int i = 0; i < size; i++) {
+            list.add(i);
+        }
+        return list;
+    }
+}
@@ -0,0 +1,119 @@
+package com.graylog2.inputs.mongoprofiler.input.mongodb.normalizer;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Strings;
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import org.testng.annotations.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertFalse;
+import static org.testng.AssertJUnit.assertTrue;
+
+public class BoundedJsonWriterTest {
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    @Test
+    public void testUnlimited() throws Exception {
+        final DBObject doc = document(100);
+        final BoundedJsonWriter json = new BoundedJsonWriter(objectMapper.getFactory(), 0, false);
+        Normalizer.normalize(doc, "db", "coll", FingerprintAlgorithm.MD5, ArrayNormalization.LEGACY, null, json);
+
+        assertEquals(objectMapper.writeValueAsString(doc), json.finish());
+        assertFalse(json.isTruncated());
+    }
+
+    @Test
+    public void testFits() throws Exception {
+        final DBObject doc = document(3);
+        final int size = objectMapper.writeValueAsBytes(doc).length;
+        final BoundedJsonWriter json = new BoundedJsonWriter(objectMapper.getFactory(), size, false);
+        Normalizer.normalize(doc, "db", "coll", FingerprintAlgorithm.MD5, ArrayNormalization.LEGACY, null, json);
+
+        assertEquals(objectMapper.writeValueAsString(doc), json.finish());
+        assertFalse(json.isTruncated());
+    }
+
+    @Test
+    public void testTruncated() throws Exception {
+        final DBObject doc = document(100000);
+        final BoundedJsonWriter json = new BoundedJsonWriter(objectMapper.getFactory(), 1000, false);
+        final Normalizer normalizer = Normalizer.normalize(doc, "db", "coll", FingerprintAlgorithm.MD5, ArrayNormalization.LEGACY, null, json);
+        final String rendering = json.finish();
+
+        assertTrue(json.isTruncated());
+        assertTrue(rendering.endsWith(BoundedJsonWriter.TRUNCATION_MARKER));
+        assertTrue(rendering.getBytes(StandardCharsets.UTF_8).length <= 1000);
+        assertTrue(objectMapper.writeValueAsString(doc).startsWith(rendering.substring(0, rendering.length() - BoundedJsonWriter.TRUNCATION_MARKER.length())));
+
+        // The hashes don't depend on the rendering.
+        final Normalizer full = new Normalizer(doc, "db", "coll");
+        assertEquals(full.getFullHash(), normalizer.getFullHash());
+        assertEquals(full.getFieldsHash(), normalizer.getFieldsHash());
+    }
+
+    @Test
+    public void testTruncatedMultiByte() throws Exception {
+        final DBObject doc = new BasicDBObject("name", Strings.repeat("ä😀", 1000));
+        final BoundedJsonWriter json = new BoundedJsonWriter(objectMapper.getFactory(), 101, false);
+        Normalizer.normalize(doc, "db", "coll", FingerprintAlgorithm.MD5, ArrayNormalization.LEGACY, null, json);
+        final String rendering = json.finish();
+        final String cut = rendering.substring(0, rendering.length() - BoundedJsonWriter.TRUNCATION_MARKER.length());
+
+        assertTrue(rendering.getBytes(StandardCharsets.UTF_8).length <= 101);
+        assertFalse(Character.isHighSurrogate(cut.charAt(cut.length() - 1)));
+    }
+
+    @Test
+    public void testTruncatedLongLiteral() throws Exception {
+        final int maxBytes = 32766;
+        final DBObject doc = new BasicDBObject("name", Strings.repeat("x", 40000));
+        final BoundedJsonWriter json = new BoundedJsonWriter(objectMapper.getFactory(), maxBytes, false);
+        Normalizer.normalize(doc, "db", "coll", FingerprintAlgorithm.MD5, ArrayNormalization.LEGACY, null, json);
+        final String rendering = json.finish();
+
+        assertTrue(json.isTruncated());
+        assertTrue(rendering.endsWith(BoundedJsonWriter.TRUNCATION_MARKER));
+        assertEquals(maxBytes, rendering.getBytes(StandardCharsets.UTF_8).length);
+    }
+
+    @Test
+    public void testRedactLiterals() throws Exception {
+        final BasicDBList in = new BasicDBList();
+        in.add("alice@example.org");
+        in.add(5);
+        final DBObject doc = new BasicDBObject("email", new BasicDBObject("$in", in)).append("age", new BasicDBObject("$gt", 21));
+        final BoundedJsonWriter json = new BoundedJsonWriter(objectMapper.getFactory(), 0, true);
+        Normalizer.normalize(doc, "db", "coll", FingerprintAlgorithm.MD5, ArrayNormalization.LEGACY, null, json);
+
+        assertEquals("{\"email\":{\"$in\":[\"?\",\"?\"]},\"age\":{\"$gt\":\"?\"}}", json.finish());
+    }
+
+    @Test
+    public void testTruncate() throws Exception {
+        assertEquals("{a: ?}", BoundedJsonWriter.truncate("{a: ?}", 6));
+        assertEquals("{a: ?}", BoundedJsonWriter.truncate("{a: ?}", 0));
+
+        final String shape = Strings.repeat("{поле: ?}, ", 4000);
+        final String truncated = BoundedJsonWriter.truncate(shape, 32766);
+        assertTrue(truncated.endsWith(BoundedJsonWriter.TRUNCATION_MARKER));
+        assertTrue(truncated.getBytes(StandardCharsets.UTF_8).length <= 32766);
+        assertTrue(shape.startsWith(truncated.substring(0, truncated.length() - BoundedJsonWriter.TRUNCATION_MARKER.length())));
+
+        final String emoji = BoundedJsonWriter.truncate(Strings.repeat("😀", 100), 101);
+        assertTrue(emoji.getBytes(StandardCharsets.UTF_8).length <= 101);
+        assertFalse(Character.isHighSurrogate(emoji.charAt(emoji.length() - BoundedJsonWriter.TRUNCATION_MARKER.length() - 1)));
+    }
+
+    private static DBObject document(int values) {
+        final BasicDBList in = new BasicDBList();
+        for (int i = 0; i < values; i++) {
+            in.add("value-" + i);
+        }
+
+        return new BasicDBObject("status", "active").append("tags", new BasicDBObject("$in", in));
+    }
+}
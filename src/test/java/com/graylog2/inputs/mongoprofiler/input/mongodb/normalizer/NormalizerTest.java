@@ -1,11 +1,19 @@
 package com.graylog2.inputs.mongoprofiler.input.mongodb.normalizer;
 
+import com.codahale.metrics.Gauge;
+import com.google.common.base.Strings;
+import com.google.common.hash.HashCode;
+import com.mongodb.BasicDBList;
 import com.mongodb.BasicDBObject;
 import com.mongodb.DBObject;
+import com.mongodb.DefaultDBEncoder;
+import com.mongodb.LazyDBCallback;
+import com.mongodb.LazyDBObject;
 import org.testng.annotations.Test;
 
 import static org.testng.AssertJUnit.assertEquals;
 import static org.testng.AssertJUnit.assertFalse;
+import static org.testng.AssertJUnit.assertTrue;
 
 public class NormalizerTest {
 
@@ -237,4 +245,202 @@ public class NormalizerTest {
 
         assertFalse(n1.getFullHash().equals(n2.getFullHash()));
     }
+
+    @Test
+    public void testOrderingOfMurmurHash() throws Exception {
+        DBObject dbo1 = new BasicDBObject();
+        dbo1.put("stream_id", "12345678abc");
+        dbo1.put("username", "lennart");
+
+        DBObject dbo2 = new BasicDBObject();
+        dbo2.put("username", "kay");
+        dbo2.put("stream_id", "12345678abc");
+
+        Normalizer n1 = new Normalizer(dbo1, "db", "coll", FingerprintAlgorithm.MURMUR3_128);
+        Normalizer n2 = new Normalizer(dbo2, "db", "coll", FingerprintAlgorithm.MURMUR3_128);
+
+        assertEquals(32, n1.getFieldsHash().length());
+        assertEquals(n1.getFieldsHash(), n2.getFieldsHash());
+        assertFalse(n1.getFullHash().equals(n2.getFullHash()));
+        assertFalse(n1.getFieldsHash().equals(new Normalizer(dbo1, "db", "coll").getFieldsHash()));
+    }
+
+    @Test
+    public void testSipHash() throws Exception {
+        DBObject dbo = new BasicDBObject("stream_id", "12345678abc");
+        Normalizer n = new Normalizer(dbo, "db", "coll", FingerprintAlgorithm.SIPHASH_2_4);
+
+        assertEquals(16, n.getFieldsHash().length());
+    }
+
+    @Test
+    public void testFingerprintAlgorithmFromName() throws Exception {
+        assertEquals(FingerprintAlgorithm.MURMUR3_128, FingerprintAlgorithm.fromName("MURMUR3_128"));
+        assertEquals(FingerprintAlgorithm.MD5, FingerprintAlgorithm.fromName(null));
+        assertEquals(FingerprintAlgorithm.MD5, FingerprintAlgorithm.fromName("foo"));
+    }
+
+    @Test
+    public void testShape() throws Exception {
+        final BasicDBList in = new BasicDBList();
+        in.add("a");
+        in.add(new BasicDBObject("b", 1).append("a", 2));
+        final DBObject dbo = new BasicDBObject("status", "active")
+                .append("created", new BasicDBObject("$gt", 5).append("$lt", 10))
+                .append("tags", new BasicDBObject("$in", in))
+                .append("empty", new BasicDBObject());
+
+        assertEquals("{created: {$gt: ?, $lt: ?}, empty: {}, status: ?, tags: {$in: [?, {a: ?, b: ?}]}}",
+                new Normalizer(dbo, "db", "coll").getShape());
+    }
+
+    @Test
+    public void testCachedFieldsHash() throws Exception {
+        final FingerprintCache cache = FingerprintCache.forInput("testCachedFieldsHash", 10);
+        try {
+            DBObject dbo1 = new BasicDBObject("stream_id", "12345678abc").append("sodeep", new BasicDBObject("$gt", 5));
+            DBObject dbo2 = new BasicDBObject("stream_id", 9001).append("sodeep", new BasicDBObject("$gt", 2));
+
+            Normalizer n1 = Normalizer.normalize(dbo1, "db", "coll", FingerprintAlgorithm.MD5, ArrayNormalization.LEGACY, cache, null);
+            Normalizer n2 = Normalizer.normalize(dbo2, "db", "coll", FingerprintAlgorithm.MD5, ArrayNormalization.LEGACY, cache, null);
+            Normalizer n3 = Normalizer.normalize(dbo2, "db", "coll2", FingerprintAlgorithm.MD5, ArrayNormalization.LEGACY, cache, null);
+
+            final String fieldsHash = n1.getFieldsHash();
+            assertEquals(new Normalizer(dbo1, "db", "coll").getFieldsHash(), fieldsHash);
+            assertEquals(fieldsHash, n2.getFieldsHash());
+            assertEquals(new Normalizer(dbo2, "db", "coll2").getFieldsHash(), n3.getFieldsHash());
+            assertEquals(new Normalizer(dbo2, "db", "coll").getFullHash(), n2.getFullHash());
+            assertEquals("{sodeep: {$gt: ?}, stream_id: ?}", n1.getShape());
+            assertEquals(n1.getShape(), n2.getShape());
+
+            assertEquals(1L, ((Gauge<?>) cache.getMetricSet().getMetrics().get("hits")).getValue());
+            assertEquals(2L, ((Gauge<?>) cache.getMetricSet().getMetrics().get("misses")).getValue());
+        } finally {
+            FingerprintCache.release("testCachedFieldsHash");
+        }
+    }
+
+    @Test
+    public void testCollapsedArrays() throws Exception {
+        final DBObject dbo1 = inQuery(50);
+        final DBObject dbo2 = inQuery(51);
+
+        final Normalizer n1 = new Normalizer(dbo1, "db", "coll", FingerprintAlgorithm.MD5, ArrayNormalization.COLLAPSE);
+        final Normalizer n2 = new Normalizer(dbo2, "db", "coll", FingerprintAlgorithm.MD5, ArrayNormalization.COLLAPSE);
+        assertEquals(n1.getFieldsHash(), n2.getFieldsHash());
+        assertEquals("{status: ?, tags: {$in: [?]}}", n1.getShape());
+        assertEquals(n1.getShape(), n2.getShape());
+        assertFalse(n1.getFullHash().equals(n2.getFullHash()));
+
+        // A collapsed array hashes like a single element array did.
+        assertEquals(new Normalizer(inQuery(1), "db", "coll").getFieldsHash(), n1.getFieldsHash());
+
+        final Normalizer legacy1 = new Normalizer(dbo1, "db", "coll", FingerprintAlgorithm.MD5, ArrayNormalization.LEGACY);
+        final Normalizer legacy2 = new Normalizer(dbo2, "db", "coll", FingerprintAlgorithm.MD5, ArrayNormalization.LEGACY);
+        assertFalse(legacy1.getFieldsHash().equals(legacy2.getFieldsHash()));
+        assertEquals(new Normalizer(dbo1, "db", "coll").getFieldsHash(), legacy1.getFieldsHash());
+        assertEquals(legacy1.getFullHash(), n1.getFullHash());
+    }
+
+    @Test
+    public void testCollapsedMixedArrays() throws Exception {
+        final BasicDBList or1 = new BasicDBList();
+        or1.add(new BasicDBObject("a", 1));
+        or1.add(new BasicDBObject("b", 1));
+        or1.add(new BasicDBObject("a", 2));
+        or1.add("x");
+        final BasicDBList or2 = new BasicDBList();
+        or2.add(new BasicDBObject("a", 3));
+        or2.add(new BasicDBObject("b", 4));
+        or2.add("y");
+
+        final Normalizer n1 = new Normalizer(new BasicDBObject("$or", or1), "db", "coll", FingerprintAlgorithm.MD5, ArrayNormalization.COLLAPSE);
+        final Normalizer n2 = new Normalizer(new BasicDBObject("$or", or2), "db", "coll", FingerprintAlgorithm.MD5, ArrayNormalization.COLLAPSE);
+        assertEquals("{$or: [{a: ?}, {b: ?}, ?]}", n1.getShape());
+        assertEquals(n1.getShape(), n2.getShape());
+        assertEquals(n1.getFieldsHash(), n2.getFieldsHash());
+    }
+
+    @Test
+    public void testCachedCollapsedArrays() throws Exception {
+        final FingerprintCache cache = FingerprintCache.forInput("testCachedCollapsedArrays", 10);
+        try {
+            final BasicDBList or = new BasicDBList();
+            or.add(new BasicDBObject("a", 1).append("b", 2));
+            or.add(new BasicDBObject("b", 3).append("a", 4));
+            final DBObject dbo = new BasicDBObject("$or", or).append("tags", inQuery(12).get("tags"));
+
+            final Normalizer expected = new Normalizer(dbo, "db", "coll", FingerprintAlgorithm.MD5, ArrayNormalization.COLLAPSE);
+            final Normalizer n1 = Normalizer.normalize(dbo, "db", "coll", FingerprintAlgorithm.MD5, ArrayNormalization.COLLAPSE, cache, null);
+            final Normalizer n2 = Normalizer.normalize(inQuery(50), "db", "coll", FingerprintAlgorithm.MD5, ArrayNormalization.COLLAPSE, cache, null);
+            final Normalizer n3 = Normalizer.normalize(inQuery(51), "db", "coll", FingerprintAlgorithm.MD5, ArrayNormalization.COLLAPSE, cache, null);
+            final Normalizer n4 = Normalizer.normalize(inQuery(51), "db", "coll", FingerprintAlgorithm.MD5, ArrayNormalization.LEGACY, cache, null);
+
+            assertEquals(expected.getFieldsHash(), n1.getFieldsHash());
+            assertEquals("{$or: [{a: ?, b: ?}], tags: {$in: [?]}}", n1.getShape());
+            assertEquals(n2.getFieldsHash(), n3.getFieldsHash());
+            assertEquals(new Normalizer(inQuery(51), "db", "coll").getFieldsHash(), n4.getFieldsHash());
+
+            assertEquals(1L, ((Gauge<?>) cache.getMetricSet().getMetrics().get("hits")).getValue());
+            assertEquals(3L, ((Gauge<?>) cache.getMetricSet().getMetrics().get("misses")).getValue());
+        } finally {
+            FingerprintCache.release("testCachedCollapsedArrays");
+        }
+    }
+
+    @Test
+    public void testCacheWeighsShapes() throws Exception {
+        final FingerprintCache cache = FingerprintCache.forInput("testCacheWeighsShapes", 10);
+        try {
+            final Gauge<?> size = (Gauge<?>) cache.getMetricSet().getMetrics().get("size");
+            for (int i = 0; i < 5; i++) {
+                cache.get(HashCode.fromInt(i), () -> new FingerprintCache.Fingerprint("hash", "{a: ?}"));
+            }
+            assertEquals(5L, size.getValue());
+
+            // Like the positional shape of a huge array, too heavy to be kept along with the others.
+            final String shape = Strings.repeat("?, ", 3 * FingerprintCache.SHAPE_CHARS_PER_ENTRY);
+            assertEquals(shape, cache.get(HashCode.fromInt(5), () -> new FingerprintCache.Fingerprint("hash", shape)).getShape());
+            assertTrue((Long) size.getValue() < 6L);
+        } finally {
+            FingerprintCache.release("testCacheWeighsShapes");
+        }
+    }
+
+    @Test
+    public void testArrayNormalizationFromName() throws Exception {
+        assertEquals(ArrayNormalization.COLLAPSE, ArrayNormalization.fromName("COLLAPSE"));
+        assertEquals(ArrayNormalization.LEGACY, ArrayNormalization.fromName(null));
+        assertEquals(ArrayNormalization.LEGACY, ArrayNormalization.fromName("foo"));
+    }
+
+    @Test
+    public void testLazyDocument() throws Exception {
+        final DBObject dbo = inQuery(20000);
+        final DBObject lazy = new LazyDBObject(new DefaultDBEncoder().encode(dbo), new LazyDBCallback(null));
+
+        final Normalizer expected = new Normalizer(dbo, "db", "coll");
+        final Normalizer n = new Normalizer(lazy, "db", "coll");
+        assertEquals(expected.getFullHash(), n.getFullHash());
+        assertEquals(expected.getFieldsHash(), n.getFieldsHash());
+        assertEquals(expected.getShape(), n.getShape());
+    }
+
+    @Test
+    public void testNormalizeFields() throws Exception {
+        final DBObject dbo = new BasicDBObject("stream_id", "12345678abc").append("sodeep", new BasicDBObject("$gt", 5));
+        final Normalizer n = Normalizer.normalizeFields(dbo, "db", "coll", FingerprintAlgorithm.MD5, ArrayNormalization.LEGACY, null);
+
+        assertEquals(new Normalizer(dbo, "db", "coll").getFieldsHash(), n.getFieldsHash());
+        assertEquals("{sodeep: {$gt: ?}, stream_id: ?}", n.getShape());
+    }
+
+    private static DBObject inQuery(int values) {
+        final BasicDBList in = new BasicDBList();
+        for (int i = 0; i < values; i++) {
+            in.add("value-" + i);
+        }
+
+        return new BasicDBObject("status", "active").append("tags", new BasicDBObject("$in", in));
+    }
 }
@@ -0,0 +1,52 @@
+package com.graylog2.inputs.mongoprofiler.input.mongodb.parser;
+
+import org.testng.annotations.Test;
+
+import static org.testng.AssertJUnit.assertFalse;
+import static org.testng.AssertJUnit.assertSame;
+import static org.testng.AssertJUnit.assertTrue;
+
+public class FieldSelectionTest {
+    @Test
+    public void testAll() throws Exception {
+        assertSame(FieldSelection.ALL, FieldSelection.parse(" , "));
+        assertSame(FieldSelection.ALL, FieldSelection.parse(null));
+        for (MessageField field : MessageField.values()) {
+            assertTrue(FieldSelection.ALL.includes(field));
+        }
+        assertTrue(FieldSelection.ALL.includesLockField("lockwait_collection_micros"));
+    }
+
+    @Test
+    public void testNamesAndPrefixes() throws Exception {
+        final FieldSelection selection = FieldSelection.parse("operation, millis, docs_*, lockwait_db_micros");
+
+        assertTrue(selection.includes(MessageField.OPERATION));
+        assertTrue(selection.includes(MessageField.MILLIS));
+        assertTrue(selection.includes(MessageField.DOCS_EXAMINED));
+        assertTrue(selection.includes(MessageField.DOCS_RETURNED));
+        assertTrue(selection.includes(MessageField.DOCS_EXAMINED_PER_RETURNED));
+        assertFalse(selection.includes(MessageField.QUERY));
+        assertFalse(selection.includesAny(MessageField.QUERY, MessageField.QUERY_FIELDS_HASH));
+
+        assertTrue(selection.includesLockFields());
+        assertTrue(selection.includesLockField("lockwait_db_micros"));
+        assertFalse(selection.includesLockField("lockwait_global_micros"));
+    }
+
+    @Test
+    public void testWithoutLockFields() throws Exception {
+        assertFalse(FieldSelection.parse("operation,query_fields_hash").includesLockFields());
+        assertTrue(FieldSelection.parse("lock*").includesLockFields());
+    }
+
+    @Test
+    public void testForSpecCompilesOnce() throws Exception {
+        assertSame(FieldSelection.forSpec("operation,millis"), FieldSelection.forSpec("operation,millis"));
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testUnknownField() throws Exception {
+        FieldSelection.parse("operation,nscanned");
+    }
+}
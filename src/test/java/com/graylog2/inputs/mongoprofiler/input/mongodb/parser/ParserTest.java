@@ -0,0 +1,228 @@
+package com.graylog2.inputs.mongoprofiler.input.mongodb.parser;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.module.SimpleModule;
+import com.graylog2.inputs.mongoprofiler.input.mongodb.normalizer.BoundedJsonWriter;
+import com.graylog2.inputs.mongoprofiler.input.mongodb.normalizer.FingerprintAlgorithm;
+import com.graylog2.inputs.mongoprofiler.input.mongodb.normalizer.Normalizer;
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import org.bson.types.ObjectId;
+import org.graylog2.plugin.Message;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.Collections;
+import java.util.Date;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertFalse;
+import static org.testng.AssertJUnit.assertTrue;
+
+public class ParserTest {
+    private final ObjectMapper objectMapper = new ObjectMapper()
+            .registerModule(new SimpleModule("test").addSerializer(ObjectId.class, new ObjectIdSerializer()));
+
+    private Parser parser;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        parser = new Parser();
+    }
+
+    @Test
+    public void testParseQuery() throws Exception {
+        final BasicDBList in = new BasicDBList();
+        in.add("a");
+        in.add(new ObjectId("deadbeefcafebabe12345678"));
+        final DBObject query = new BasicDBObject("username", "lennart")
+                .append("created", new BasicDBObject("$gt", new Date(1459468800000L)))
+                .append("tags", new BasicDBObject("$in", in));
+
+        final DBObject doc = new BasicDBObject("op", "query")
+                .append("ns", "db.coll")
+                .append("query", query)
+                .append("ntoreturn", 0)
+                .append("nscanned", 12)
+                .append("nreturned", 3)
+                .append("responseLength", 128)
+                .append("millis", 42)
+                .append("ts", new Date(1459468800000L))
+                .append("client", "127.0.0.1");
+
+        final Message message = parser.parse(doc);
+        final Normalizer normalizer = new Normalizer(query, "db", "coll");
+
+        assertEquals("query db.coll [42ms]", message.getMessage());
+        assertEquals(new DateTime(2016, 4, 1, 0, 0, DateTimeZone.UTC), message.getTimestamp().withZone(DateTimeZone.UTC));
+        assertEquals("query", message.getField("operation"));
+        assertEquals("db", message.getField("database"));
+        assertEquals("coll", message.getField("collection"));
+        assertEquals(objectMapper.writeValueAsString(query), message.getField("query"));
+        assertEquals(normalizer.getFullHash(), message.getField("query_full_hash"));
+        assertEquals(normalizer.getFieldsHash(), message.getField("query_fields_hash"));
+        assertEquals("{created: {$gt: ?}, tags: {$in: [?, ?]}, username: ?}", message.getField("query_shape"));
+        assertEquals(12, message.getField("docs_scanned"));
+        assertEquals(3, message.getField("docs_returned"));
+        assertFalse(message.hasField("docs_to_return"));
+        assertFalse(message.hasField("update_object"));
+    }
+
+    @Test
+    public void testParseUpdate() throws Exception {
+        final DBObject query = new BasicDBObject("_id", 5);
+        final DBObject update = new BasicDBObject("$set", new BasicDBObject("x", 1).append("a", "b"));
+        final DBObject doc = new BasicDBObject("op", "update")
+                .append("ns", "db.coll")
+                .append("query", query)
+                .append("updateobj", update)
+                .append("nupdated", 1)
+                .append("millis", 3)
+                .append("ts", new Date());
+
+        final Message message = parser.parse(doc);
+        final Normalizer normalizer = new Normalizer(update, "db", "coll");
+
+        assertEquals(objectMapper.writeValueAsString(update), message.getField("update_object"));
+        assertEquals(normalizer.getFullHash(), message.getField("update_object_full_hash"));
+        assertEquals(normalizer.getFieldsHash(), message.getField("update_object_fields_hash"));
+        assertEquals(1, message.getField("docs_updated"));
+    }
+
+    @Test
+    public void testParseModern() throws Exception {
+        final DBObject locks = new BasicDBObject("Global", new BasicDBObject("acquireCount", new BasicDBObject("r", 2L).append("w", 1L)))
+                .append("Database", new BasicDBObject("acquireCount", new BasicDBObject("r", 1L))
+                        .append("acquireWaitCount", new BasicDBObject("r", 1L))
+                        .append("timeAcquiringMicros", new BasicDBObject("r", 250L)));
+        final DBObject execStats = new BasicDBObject("stage", "LIMIT")
+                .append("executionTimeMillisEstimate", 40)
+                .append("inputStage", new BasicDBObject("stage", "FETCH")
+                        .append("inputStage", new BasicDBObject("stage", "IXSCAN")));
+        final DBObject doc = new BasicDBObject("op", "query")
+                .append("ns", "db.coll")
+                .append("command", new BasicDBObject("find", "coll").append("filter", new BasicDBObject("email", "x")))
+                .append("keysExamined", 120)
+                .append("docsExamined", 120.0)
+                .append("nreturned", 4L)
+                .append("planSummary", "IXSCAN { email: 1 }")
+                .append("execStats", execStats)
+                .append("locks", locks)
+                .append("storage", new BasicDBObject("data", new BasicDBObject("bytesRead", 4096L).append("timeReadingMicros", 80L)))
+                .append("queryHash", "8A2E1B3C")
+                .append("planCacheKey", "F1A09C2D")
+                .append("appName", "orders-service")
+                .append("millis", 42)
+                .append("ts", new Date());
+
+        final Message message = parser.parse(doc);
+
+        assertEquals(120, message.getField("keys_examined"));
+        assertEquals(120, message.getField("docs_scanned"));
+        assertEquals(120L, message.getField("docs_examined"));
+        assertEquals(4L, message.getField("docs_returned"));
+        assertEquals(30.0, message.getField("keys_examined_per_returned"));
+        assertEquals(30.0, message.getField("docs_examined_per_returned"));
+        assertEquals("IXSCAN { email: 1 }", message.getField("plan_summary"));
+        assertEquals("LIMIT>FETCH>IXSCAN", message.getField("exec_stages"));
+        assertEquals(40, message.getField("exec_millis_estimate"));
+        assertEquals(3L, message.getField("lock_global_acquire_count"));
+        assertEquals(1L, message.getField("lock_db_wait_count"));
+        assertEquals(250L, message.getField("lockwait_db_micros"));
+        assertFalse(message.hasField("lockwait_global_micros"));
+        assertEquals(4096L, message.getField("storage_bytes_read"));
+        assertEquals(80L, message.getField("storage_read_micros"));
+        assertEquals("8A2E1B3C", message.getField("query_hash"));
+        assertEquals("F1A09C2D", message.getField("plan_cache_key"));
+        assertEquals("orders-service", message.getField("app_name"));
+    }
+
+    @Test
+    public void testParseLegacyLocksAndPlan() throws Exception {
+        final DBObject doc = new BasicDBObject("op", "query")
+                .append("ns", "db.coll")
+                .append("nscanned", 10)
+                .append("nscannedObjects", 5)
+                .append("nreturned", 0)
+                .append("execStats", new BasicDBObject("type", "FETCH")
+                        .append("children", Collections.singletonList(new BasicDBObject("type", "IXSCAN"))))
+                .append("lockStats", new BasicDBObject("timeLockedMicros", new BasicDBObject("r", 100L).append("w", 0))
+                        .append("timeAcquiringMicros", new BasicDBObject("r", 7)))
+                .append("millis", 3)
+                .append("ts", new Date());
+
+        final Message message = parser.parse(doc);
+
+        assertEquals(10, message.getField("keys_examined"));
+        assertEquals(5, message.getField("docs_examined"));
+        assertFalse(message.hasField("docs_returned"));
+        assertEquals(5.0, message.getField("docs_examined_per_returned"));
+        assertEquals("FETCH>IXSCAN", message.getField("exec_stages"));
+        assertEquals(100L, message.getField("locked_db_read_micros"));
+        assertFalse(message.hasField("locked_db_write_micros"));
+        assertEquals(7L, message.getField("lockwait_db_read_micros"));
+    }
+
+    @Test
+    public void testParseSelectedFields() throws Exception {
+        final DBObject query = new BasicDBObject("username", "lennart");
+        final DBObject doc = new BasicDBObject("op", "query")
+                .append("ns", "db.coll")
+                .append("query", query)
+                .append("cursorid", 0L)
+                .append("nscanned", 12)
+                .append("nreturned", 0)
+                .append("user", "")
+                .append("lockStats", new BasicDBObject("timeLockedMicros", new BasicDBObject("r", 100L)))
+                .append("millis", 0)
+                .append("ts", new Date());
+
+        final Parser parser = new Parser(FingerprintAlgorithm.MD5, FieldSelection.parse("operation,millis,user,cursor_id,docs_*,query_fields_hash"));
+        final Parser.Result result = parser.parseEntry(doc, null);
+        final Message message = result.getMessage();
+
+        assertEquals("query", message.getField("operation"));
+        assertEquals(0, message.getField("millis"));
+        assertEquals(new Normalizer(query, "db", "coll").getFieldsHash(), message.getField("query_fields_hash"));
+        assertEquals("db", result.getDatabase());
+        assertFalse(message.hasField("query"));
+        assertFalse(message.hasField("query_full_hash"));
+        assertFalse(message.hasField("database"));
+        assertFalse(message.hasField("user"));
+        assertFalse(message.hasField("cursor_id"));
+        assertFalse(message.hasField("docs_returned"));
+        assertFalse(message.hasField("keys_examined"));
+        assertFalse(message.hasField("locked_db_read_micros"));
+        assertEquals(12, message.getField("docs_scanned"));
+    }
+
+    @Test
+    public void testParseBoundedAndRedacted() throws Exception {
+        final BasicDBList in = new BasicDBList();
+        for (int i = 0; i < 10000; i++) {
+            in.add("user-" + i + "@example.org");
+        }
+        final DBObject query = new BasicDBObject("email", new BasicDBObject("$in", in));
+        final DBObject doc = new BasicDBObject("op", "query")
+                .append("ns", "db.coll")
+                .append("query", query)
+                .append("millis", 42)
+                .append("ts", new Date());
+
+        final Message message = new Parser(FingerprintAlgorithm.MD5, FieldSelection.ALL, 256, true).parse(doc);
+        final String json = (String) message.getField("query");
+
+        assertTrue(json.startsWith("{\"email\":{\"$in\":[\"?\",\"?\","));
+        assertTrue(json.endsWith(BoundedJsonWriter.TRUNCATION_MARKER));
+        assertTrue(json.length() <= 256 + BoundedJsonWriter.TRUNCATION_MARKER.length());
+        assertEquals(new Normalizer(query, "db", "coll").getFullHash(), message.getField("query_full_hash"));
+    }
+
+    @Test(expectedExceptions = Parser.UnparsableException.class)
+    public void testParseWithoutOp() throws Exception {
+        parser.parse(new BasicDBObject("ns", "db.coll"));
+    }
+}
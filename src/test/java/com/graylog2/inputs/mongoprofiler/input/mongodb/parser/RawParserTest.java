@@ -1,13 +1,17 @@
 package com.graylog2.inputs.mongoprofiler.input.mongodb.parser;
 
 import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
 import com.mongodb.DBObject;
+import com.mongodb.DefaultDBDecoder;
+import com.mongodb.DefaultDBEncoder;
 import org.graylog2.plugin.journal.RawMessage;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
 import java.io.ByteArrayInputStream;
-import java.io.ObjectInputStream;
+import java.util.Arrays;
+import java.util.Date;
 
 import static org.testng.AssertJUnit.assertEquals;
 import static org.testng.AssertJUnit.assertTrue;
@@ -26,12 +30,54 @@ public class RawParserTest {
         final RawMessage rawMessage = rawParser.parse(doc);
         assertEquals("mongodb-profiler-info", rawMessage.getCodecName());
         final byte[] payload = rawMessage.getPayload();
-        assertTrue(payload.length > 0);
-        final ByteArrayInputStream bytes = new ByteArrayInputStream(payload);
-        final ObjectInputStream objectInputStream = new ObjectInputStream(bytes);
-        final Object o = objectInputStream.readObject();
-        assertTrue(o instanceof DBObject);
-        final DBObject writtenObject = (DBObject) o;
+        assertTrue(payload.length > 1);
+        assertEquals(RawParser.FORMAT_BSON, payload[0]);
+        final ByteArrayInputStream bytes = new ByteArrayInputStream(payload, 1, payload.length - 1);
+        final DBObject writtenObject = new DefaultDBDecoder().decode(bytes, (DBCollection) null);
         assertEquals(doc, writtenObject);
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testParseRawProfileDocument() throws Exception {
+        final Date ts = new Date(1459468800000L);
+        final DBObject doc = new BasicDBObject("op", "query").append("ns", "db.coll").append("ts", ts);
+        final RawProfileDocument rawDoc = new RawProfileDocument(new DefaultDBEncoder().encode(doc));
+        assertEquals("db.coll", rawDoc.getNamespace());
+        assertEquals(ts, rawDoc.getTimestamp());
+
+        final byte[] payload = rawParser.parse(rawDoc).getPayload();
+        assertTrue(Arrays.equals(rawParser.parse(doc).getPayload(), payload));
+    }
+
+    @Test
+    public void testParseWithMessageFields() throws Exception {
+        final DBObject fields = new BasicDBObject("host", "db1:27017").append("shard", "shard0");
+        final DBObject doc = new BasicDBObject("op", "query").append("ns", "db.coll");
+        final RawParser parser = new RawParser(fields);
+
+        final byte[] payload = parser.parse(doc).getPayload();
+        assertEquals(RawParser.FORMAT_BSON_WITH_FIELDS, payload[0]);
+        final ByteArrayInputStream bytes = new ByteArrayInputStream(payload, 1, payload.length - 1);
+        final DefaultDBDecoder decoder = new DefaultDBDecoder();
+        assertEquals(fields, decoder.decode(bytes, (DBCollection) null));
+        assertEquals(doc, decoder.decode(bytes, (DBCollection) null));
+
+        final RawProfileDocument rawDoc = new RawProfileDocument(new DefaultDBEncoder().encode(doc));
+        assertTrue(Arrays.equals(payload, parser.parse(rawDoc).getPayload()));
+    }
+
+    @Test
+    public void testParseWithSampleWeight() throws Exception {
+        final DBObject fields = new BasicDBObject("host", "db1:27017");
+        final DBObject doc = new BasicDBObject("op", "query").append("ns", "db.coll");
+        final RawProfileDocument rawDoc = new RawProfileDocument(new DefaultDBEncoder().encode(doc));
+        rawDoc.setSampleWeight(7);
+
+        final byte[] payload = new RawParser(fields).parse(rawDoc).getPayload();
+        assertEquals(RawParser.FORMAT_BSON_WITH_FIELDS, payload[0]);
+        final ByteArrayInputStream bytes = new ByteArrayInputStream(payload, 1, payload.length - 1);
+        final DefaultDBDecoder decoder = new DefaultDBDecoder();
+        assertEquals(new BasicDBObject("host", "db1:27017").append(RawParser.FIELD_SAMPLE_WEIGHT, 7), decoder.decode(bytes, (DBCollection) null));
+        assertEquals(doc, decoder.decode(bytes, (DBCollection) null));
+    }
+}